@@ -0,0 +1,93 @@
+package com.exploringlines.entitysystem;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures entity lookups by id and by name at increasing world sizes.
+ * Lookup time per call should stay flat as the number of entities grows.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EntityLookupBenchmark {
+    /**
+     * Number of entities in the world.
+     */
+    @Param({"1000", "100000", "1000000"})
+    public int size;
+
+    /**
+     * World to look entities up in.
+     */
+    private EntitySystem entitySystem;
+
+    /**
+     * Ids of the entities.
+     */
+    private long[] ids;
+
+    /**
+     * Names of the entities.
+     */
+    private String[] names;
+
+    /**
+     * Position of the next lookup, stepping through the entities out of order.
+     */
+    private int cursor;
+
+    /**
+     * Builds the world.
+     */
+    @Setup
+    public void setUp() {
+        entitySystem = new EntitySystem();
+        ids = new long[size];
+        names = new String[size];
+        for (int i = 0; i < size; i++) {
+            names[i] = "entity" + i;
+            ids[i] = entitySystem.createEntity(names[i]).getId();
+        }
+    }
+
+    /**
+     * Looks an entity up by id.
+     * @return the entity.
+     */
+    @Benchmark
+    public Entity getEntityById() {
+        return entitySystem.getEntity(ids[next()]);
+    }
+
+    /**
+     * Looks an entity up by name.
+     * @return the entity.
+     */
+    @Benchmark
+    public Entity getEntityByName() {
+        return entitySystem.getEntity(names[next()]);
+    }
+
+    /**
+     * @return the index of the next entity to look up.
+     */
+    private int next() {
+        cursor = (int) ((cursor + 7919L) % size);
+        return cursor;
+    }
+}
@@ -0,0 +1,186 @@
+package com.exploringlines.entitysystem;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures creating and removing entities, adding and removing components, and flushing set changes
+ * at increasing world sizes and numbers of cached sets.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EntityMutationBenchmark {
+    /**
+     * Number of entities changed before each flush.
+     */
+    private static final int BATCH = 100;
+
+    /**
+     * Tag types used to build distinct queries.
+     */
+    private static class Tag0 implements Component {
+        @Override
+        public Component copy() {
+            return new Tag0();
+        }
+    }
+
+    /**
+     * Tag types used to build distinct queries.
+     */
+    private static class Tag1 implements Component {
+        @Override
+        public Component copy() {
+            return new Tag1();
+        }
+    }
+
+    /**
+     * Tag types used to build distinct queries.
+     */
+    private static class Tag2 implements Component {
+        @Override
+        public Component copy() {
+            return new Tag2();
+        }
+    }
+
+    /**
+     * Types the cached queries require or exclude besides the position.
+     */
+    private static final Class[] QUERY_TYPES = {Velocity.class, Tag0.class, Tag1.class, Tag2.class};
+
+    /**
+     * Number of entities in the world.
+     */
+    @Param({"1000", "100000", "1000000"})
+    public int size;
+
+    /**
+     * Number of cached sets, each with a distinct query on the position type.
+     */
+    @Param({"1", "16", "64"})
+    public int sets;
+
+    /**
+     * The world.
+     */
+    private EntitySystem entitySystem;
+
+    /**
+     * The entities of the world in creation order, replaced entities take the place of removed ones.
+     */
+    private Entity[] entities;
+
+    /**
+     * Template of the entities of the world.
+     */
+    private EntityTemplate template;
+
+    /**
+     * Position of the next entity to change.
+     */
+    private int cursor;
+
+    /**
+     * Builds the world and its cached sets, again for each iteration so created entities do not pile up.
+     */
+    @Setup(Level.Iteration)
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        entitySystem = new EntitySystem();
+        template = new EntityTemplate(new Position());
+        entities = entitySystem.createEntities(size, template);
+        for (int i = 0; i < sets; i++) {
+            // Each type is required, excluded, or ignored by a digit of the set number in base three.
+            Query query = Query.all(Position.class);
+            int digits = i;
+            for (Class type : QUERY_TYPES) {
+                if (digits % 3 == 1) {
+                    query = query.and(Query.all(type));
+                } else if (digits % 3 == 2) {
+                    query = query.and(Query.exclude(type));
+                }
+                digits /= 3;
+            }
+            entitySystem.getEntities(query);
+        }
+        entitySystem.flushSetChanges();
+    }
+
+    /**
+     * Creates an entity without components.
+     * @return the entity.
+     */
+    @Benchmark
+    public Entity createEntity() {
+        return entitySystem.createEntity();
+    }
+
+    /**
+     * Adds a component to an entity then removes it, moving the entity to another archetype and back.
+     * @return the entity.
+     */
+    @Benchmark
+    public Entity setAndRemoveComponent() {
+        Entity entity = entities[next()];
+        entitySystem.setComponent(entity, new Velocity());
+        entitySystem.removeComponent(entity, Velocity.class);
+        return entity;
+    }
+
+    /**
+     * Replaces the position of a batch of entities and flushes the set changes.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void flushSetChanges() {
+        for (int i = 0; i < BATCH; i++) {
+            entitySystem.setComponent(entities[next()], new Position());
+        }
+        entitySystem.flushSetChanges();
+    }
+
+    /**
+     * Removes a batch of entities, creates as many to keep the world size, and flushes the set changes.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void removeEntity() {
+        int first = cursor;
+        for (int i = 0; i < BATCH; i++) {
+            entitySystem.removeEntity(entities[next()]);
+        }
+        Entity[] created = entitySystem.createEntities(BATCH, template);
+        cursor = first;
+        for (int i = 0; i < BATCH; i++) {
+            entities[next()] = created[i];
+        }
+        entitySystem.flushSetChanges();
+    }
+
+    /**
+     * @return the index of the next entity to change.
+     */
+    private int next() {
+        cursor = (int) ((cursor + 7919L) % size);
+        return cursor;
+    }
+}
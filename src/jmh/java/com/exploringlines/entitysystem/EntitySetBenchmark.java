@@ -0,0 +1,141 @@
+package com.exploringlines.entitysystem;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures building entity sets from queries and iterating over them, sequentially and in parallel.
+ * Each visit does a small amount of work on a component, the way a movement system would.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EntitySetBenchmark {
+    /**
+     * A world with a set of every entity with a position.
+     */
+    @State(Scope.Benchmark)
+    public static class World {
+        /**
+         * Number of entities in the world.
+         */
+        @Param({"10000", "100000", "1000000"})
+        public int size;
+
+        /**
+         * The world.
+         */
+        EntitySystem entitySystem;
+
+        /**
+         * Set of the entities with a position.
+         */
+        EntitySet positions;
+
+        /**
+         * Moves the position of each visited entity.
+         */
+        EntityVisitor move;
+
+        /**
+         * Builds the world, half of the entities also have a velocity.
+         */
+        @Setup
+        public void setUp() {
+            entitySystem = new EntitySystem();
+            entitySystem.createEntities(size / 2, new EntityTemplate(new Position()));
+            entitySystem.createEntities(size - size / 2, new EntityTemplate(new Position(), new Velocity()));
+            entitySystem.flushSetChanges();
+            positions = entitySystem.getEntities(Position.class);
+            move = new EntityVisitor() {
+                @Override
+                public void visit(Entity entity) {
+                    Position position = entitySystem.getComponent(entity, Position.class);
+                    position.x += 0.5f;
+                    position.y = (float) Math.sqrt(position.x * position.x + position.y);
+                }
+            };
+        }
+    }
+
+    /**
+     * A world without cached sets, built again before each query is built.
+     */
+    @State(Scope.Thread)
+    public static class FreshWorld {
+        /**
+         * Number of entities in the world.
+         */
+        @Param({"10000", "100000", "1000000"})
+        public int size;
+
+        /**
+         * The world.
+         */
+        EntitySystem entitySystem;
+
+        /**
+         * Builds the world, half of the entities also have a velocity.
+         */
+        @Setup(Level.Invocation)
+        public void setUp() {
+            entitySystem = new EntitySystem();
+            entitySystem.createEntities(size / 2, new EntityTemplate(new Position()));
+            entitySystem.createEntities(size - size / 2, new EntityTemplate(new Position(), new Velocity()));
+            entitySystem.flushSetChanges();
+        }
+    }
+
+    /**
+     * Builds the set of a query that is not cached yet.
+     * @param world the world to query.
+     * @return the built set.
+     */
+    @Benchmark
+    public EntitySet buildQuery(FreshWorld world) {
+        return world.entitySystem.getEntities(Query.all(Position.class).and(Query.exclude(Velocity.class)));
+    }
+
+    /**
+     * Retrieves the cached set of a query.
+     * @param world the world to query.
+     * @return the cached set.
+     */
+    @Benchmark
+    public EntitySet getCachedQuery(World world) {
+        return world.entitySystem.getEntities(Position.class);
+    }
+
+    /**
+     * Visits every entity of a set on the calling thread.
+     * @param world the world to iterate.
+     */
+    @Benchmark
+    public void iterate(World world) {
+        world.positions.forEach(world.move);
+    }
+
+    /**
+     * Visits every entity of a set on the common fork join pool.
+     * @param world the world to iterate.
+     */
+    @Benchmark
+    public void parallelIterate(World world) {
+        world.positions.parallelForEach(world.move, EntitySet.DEFAULT_CHUNK_SIZE, ForkJoinPool.commonPool());
+    }
+}
@@ -0,0 +1,19 @@
+package com.exploringlines.entitysystem;
+
+/**
+ * Component with a few numeric fields used by the benchmarks.
+ */
+public class Position implements Component {
+    public float x;
+    public float y;
+    public int layer;
+
+    @Override
+    public Component copy() {
+        Position position = new Position();
+        position.x = x;
+        position.y = y;
+        position.layer = layer;
+        return position;
+    }
+}
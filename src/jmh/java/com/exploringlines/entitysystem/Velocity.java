@@ -0,0 +1,17 @@
+package com.exploringlines.entitysystem;
+
+/**
+ * Second component type used by the benchmarks to move entities between archetypes.
+ */
+public class Velocity implements Component {
+    public float dx;
+    public float dy;
+
+    @Override
+    public Component copy() {
+        Velocity velocity = new Velocity();
+        velocity.dx = dx;
+        velocity.dy = dy;
+        return velocity;
+    }
+}
@@ -0,0 +1,87 @@
+package com.exploringlines.entitysystem;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures writing and restoring a snapshot of a world kept in memory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WorldSnapshotBenchmark {
+    /**
+     * Number of entities in the world.
+     */
+    @Param({"10000", "100000", "1000000"})
+    public int size;
+
+    /**
+     * The world to write.
+     */
+    private EntitySystem entitySystem;
+
+    /**
+     * A snapshot of the world to restore.
+     */
+    private byte[] snapshot;
+
+    /**
+     * Builds the world and a snapshot of it.
+     * @throws IOException never, the snapshot is kept in memory.
+     */
+    @Setup
+    public void setUp() throws IOException {
+        entitySystem = new EntitySystem();
+        for (int i = 0; i < size; i++) {
+            Position position = new Position();
+            position.x = i;
+            position.y = -i;
+            position.layer = i & 7;
+            entitySystem.setComponent(entitySystem.createEntity(), position);
+        }
+        snapshot = write().toByteArray();
+    }
+
+    /**
+     * Writes a snapshot of the world.
+     * @return the snapshot.
+     * @throws IOException never, the snapshot is kept in memory.
+     */
+    @Benchmark
+    public ByteArrayOutputStream write() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(size * 32);
+        WorldSnapshot.write(entitySystem, Channels.newChannel(bytes));
+        return bytes;
+    }
+
+    /**
+     * Restores the snapshot into an empty world.
+     * @return the restored world.
+     * @throws IOException never, the snapshot is kept in memory.
+     */
+    @Benchmark
+    public EntitySystem restore() throws IOException {
+        EntitySystem restored = new EntitySystem();
+        WorldSnapshot.read(restored, Channels.newChannel(new ByteArrayInputStream(snapshot)));
+        return restored;
+    }
+}
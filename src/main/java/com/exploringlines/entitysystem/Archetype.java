@@ -0,0 +1,381 @@
+package com.exploringlines.entitysystem;
+
+import java.util.Arrays;
+
+/**
+ * Stores every entity that has exactly the same set of component types.
+ * Components are kept in one contiguous array per component type where the
+ * component of an entity is at the row of the entity.
+ * Entities are moved to another archetype when their component types change.
+ */
+final class Archetype {
+    /**
+     * Starting capacity of the rows.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Shift to go from a row to its chunk, rows are grouped in chunks to track which rows changed.
+     */
+    static final int CHUNK_SHIFT = 8;
+
+    /**
+     * Number of rows in a chunk.
+     */
+    static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+    /**
+     * Component types of the entities in the archetype.
+     */
+    private final ComponentMask mask;
+
+    /**
+     * Maps a type id to the column that stores it, -1 if the type is not stored.
+     */
+    private final int[] columnIndex;
+
+    /**
+     * Type ids of each column.
+     */
+    private final int[] typeIds;
+
+    /**
+     * Maps a type id to its change ticks in {@link #ticks}, -1 if the archetype does not have the type.
+     */
+    private final int[] tickIndex;
+
+    /**
+     * Type ids of each change tick column, every type of the mask including types kept in a component store.
+     */
+    private final int[] tickTypeIds;
+
+    /**
+     * Change tick of each component, indexed by type then row.
+     */
+    private long[][] ticks;
+
+    /**
+     * Entities in the archetype ordered by row.
+     */
+    private Entity[] entities;
+
+    /**
+     * Components in the archetype, indexed by column then row.
+     */
+    private Component[][] columns;
+
+    /**
+     * Number of rows in use.
+     */
+    private int size = 0;
+
+    /**
+     * Archetype reached by adding a type, indexed by type id.
+     */
+    private Archetype[] addTransitions = new Archetype[0];
+
+    /**
+     * Archetype reached by removing a type, indexed by type id.
+     */
+    private Archetype[] removeTransitions = new Archetype[0];
+
+    /**
+     * One bit per chunk whose rows changed since the dirty chunks were last cleared.
+     */
+    private long[] dirtyChunks = new long[1];
+
+    /**
+     * Initializes the archetype.
+     * @param mask the component types of the entities in the archetype.
+     * @param columnTypes the component types stored in the archetype, types kept in a component store have no column.
+     */
+    Archetype(ComponentMask mask, ComponentMask columnTypes) {
+        this.mask = mask;
+        typeIds = new int[columnTypes.cardinality()];
+        int maxTypeId = -1;
+        int column = 0;
+        for (int typeId = columnTypes.nextTypeId(0); typeId >= 0; typeId = columnTypes.nextTypeId(typeId + 1)) {
+            typeIds[column++] = typeId;
+            maxTypeId = typeId;
+        }
+        columnIndex = new int[maxTypeId + 1];
+        Arrays.fill(columnIndex, -1);
+        for (int i = 0; i < typeIds.length; i++) {
+            columnIndex[typeIds[i]] = i;
+        }
+        tickTypeIds = new int[mask.cardinality()];
+        int tickColumn = 0;
+        for (int typeId = mask.nextTypeId(0); typeId >= 0; typeId = mask.nextTypeId(typeId + 1)) {
+            tickTypeIds[tickColumn++] = typeId;
+        }
+        tickIndex = new int[tickTypeIds.length == 0 ? 0 : tickTypeIds[tickTypeIds.length - 1] + 1];
+        Arrays.fill(tickIndex, -1);
+        for (int i = 0; i < tickTypeIds.length; i++) {
+            tickIndex[tickTypeIds[i]] = i;
+        }
+        entities = new Entity[INITIAL_CAPACITY];
+        columns = new Component[typeIds.length][INITIAL_CAPACITY];
+        ticks = new long[tickTypeIds.length][INITIAL_CAPACITY];
+    }
+
+    /**
+     * @return the component types of the entities in the archetype.
+     */
+    ComponentMask getMask() {
+        return mask;
+    }
+
+    /**
+     * @return the number of entities in the archetype.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Retrieves the entity at a row.
+     * @param row the row of the entity.
+     * @return the entity at the row.
+     */
+    Entity getEntity(int row) {
+        return entities[row];
+    }
+
+    /**
+     * Retrieves the column of a component type.
+     * Only the first {@link #size()} rows are valid and the array is replaced when the archetype grows.
+     * @param typeId the id of the type.
+     * @return the components of the type ordered by row or null if the type has no column.
+     */
+    Component[] getColumn(int typeId) {
+        int column = typeId < columnIndex.length ? columnIndex[typeId] : -1;
+        return column < 0 ? null : columns[column];
+    }
+
+    /**
+     * Retrieves a component.
+     * @param row the row of the entity.
+     * @param typeId the id of the component type.
+     * @return the component or null if the type has no column.
+     */
+    Component get(int row, int typeId) {
+        int column = typeId < columnIndex.length ? columnIndex[typeId] : -1;
+        return column < 0 ? null : columns[column][row];
+    }
+
+    /**
+     * Replaces a component, the type must have a column in the archetype.
+     * @param row the row of the entity.
+     * @param typeId the id of the component type.
+     * @param component the component to store.
+     */
+    void set(int row, int typeId, Component component) {
+        columns[columnIndex[typeId]][row] = component;
+        markDirty(row);
+    }
+
+    /**
+     * Retrieves the change ticks of a component type.
+     * Only the first {@link #size()} rows are valid and the array is replaced when the archetype grows.
+     * @param typeId the id of the type.
+     * @return the tick each component of the type last changed at, ordered by row, or null if the archetype does
+     *         not have the type.
+     */
+    long[] getTicks(int typeId) {
+        int column = typeId < tickIndex.length ? tickIndex[typeId] : -1;
+        return column < 0 ? null : ticks[column];
+    }
+
+    /**
+     * Records the tick a component changed at, the archetype must have the type.
+     * @param row the row of the entity.
+     * @param typeId the id of the component type.
+     * @param tick the tick of the change.
+     */
+    void setTick(int row, int typeId, long tick) {
+        ticks[tickIndex[typeId]][row] = tick;
+    }
+
+    /**
+     * Records the tick every component of a row changed at.
+     * @param row the row of the entity.
+     * @param tick the tick of the change.
+     */
+    void setTicks(int row, long tick) {
+        for (long[] column : ticks) {
+            column[row] = tick;
+        }
+    }
+
+    /**
+     * Adds an entity without any components set, the change ticks of the row start at zero.
+     * @param entity the entity to add.
+     * @return the row of the entity.
+     */
+    int add(Entity entity) {
+        if (size == entities.length) {
+            ensureCapacity(size * 2);
+        }
+        // The row may hold the ticks of the entity that last moved out of it.
+        setTicks(size, 0);
+        entities[size] = entity;
+        entity.archetype = this;
+        entity.row = size;
+        markDirty(size);
+        return size++;
+    }
+
+    /**
+     * Grows the rows so the given number of entities fit without growing again.
+     * @param capacity the number of rows needed.
+     */
+    void ensureCapacity(int capacity) {
+        if (capacity <= entities.length) {
+            return;
+        }
+        entities = Arrays.copyOf(entities, capacity);
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = Arrays.copyOf(columns[i], capacity);
+        }
+        for (int i = 0; i < ticks.length; i++) {
+            ticks[i] = Arrays.copyOf(ticks[i], capacity);
+        }
+    }
+
+    /**
+     * Removes the entity at a row by moving the last row into its place.
+     * @param row the row to remove.
+     */
+    void remove(int row) {
+        Entity removed = entities[row];
+        int last = --size;
+        if (row != last) {
+            Entity moved = entities[last];
+            entities[row] = moved;
+            moved.row = row;
+            for (Component[] column : columns) {
+                column[row] = column[last];
+            }
+            for (long[] column : ticks) {
+                column[row] = column[last];
+            }
+        }
+        entities[last] = null;
+        for (Component[] column : columns) {
+            column[last] = null;
+        }
+        removed.archetype = null;
+        removed.row = -1;
+        markDirty(row);
+        markDirty(last);
+    }
+
+    /**
+     * Moves an entity to another archetype keeping the component columns both archetypes have.
+     * @param row the row of the entity.
+     * @param target the archetype to move to.
+     * @return the row of the entity in the target.
+     */
+    int moveTo(int row, Archetype target) {
+        Entity entity = entities[row];
+        int targetRow = target.add(entity);
+        for (int i = 0; i < typeIds.length; i++) {
+            int typeId = typeIds[i];
+            if (target.mask.has(typeId)) {
+                target.set(targetRow, typeId, columns[i][row]);
+            }
+        }
+        for (int i = 0; i < tickTypeIds.length; i++) {
+            int typeId = tickTypeIds[i];
+            if (target.mask.has(typeId)) {
+                target.setTick(targetRow, typeId, ticks[i][row]);
+            }
+        }
+        // Adding to the target updated the entity location, restore it for the removal.
+        entity.archetype = this;
+        entity.row = row;
+        remove(row);
+        entity.archetype = target;
+        entity.row = targetRow;
+        return targetRow;
+    }
+
+    /**
+     * Marks the chunk of a row as changed.
+     * @param row the row that changed.
+     */
+    void markDirty(int row) {
+        int word = row >>> (CHUNK_SHIFT + 6);
+        if (word >= dirtyChunks.length) {
+            dirtyChunks = Arrays.copyOf(dirtyChunks, Math.max(word + 1, dirtyChunks.length * 2));
+        }
+        dirtyChunks[word] |= 1L << (row >>> CHUNK_SHIFT);
+    }
+
+    /**
+     * Checks if any row of a chunk changed since the dirty chunks were last cleared.
+     * @param chunk the index of the chunk.
+     * @return true if the chunk changed.
+     */
+    boolean isChunkDirty(int chunk) {
+        int word = chunk >>> 6;
+        return word < dirtyChunks.length && (dirtyChunks[word] & (1L << chunk)) != 0;
+    }
+
+    /**
+     * Marks every chunk as unchanged.
+     */
+    void clearDirtyChunks() {
+        Arrays.fill(dirtyChunks, 0);
+    }
+
+    /**
+     * Retrieves a cached transition.
+     * @param typeId the id of the type added.
+     * @return the archetype with the type added, null if not cached.
+     */
+    Archetype getAddTransition(int typeId) {
+        return typeId < addTransitions.length ? addTransitions[typeId] : null;
+    }
+
+    /**
+     * Caches a transition.
+     * @param typeId the id of the type added.
+     * @param target the archetype with the type added.
+     */
+    void setAddTransition(int typeId, Archetype target) {
+        if (typeId >= addTransitions.length) {
+            addTransitions = Arrays.copyOf(addTransitions, typeId + 1);
+        }
+        addTransitions[typeId] = target;
+    }
+
+    /**
+     * Retrieves a cached transition.
+     * @param typeId the id of the type removed.
+     * @return the archetype with the type removed, null if not cached.
+     */
+    Archetype getRemoveTransition(int typeId) {
+        return typeId < removeTransitions.length ? removeTransitions[typeId] : null;
+    }
+
+    /**
+     * Caches a transition.
+     * @param typeId the id of the type removed.
+     * @param target the archetype with the type removed.
+     */
+    void setRemoveTransition(int typeId, Archetype target) {
+        if (typeId >= removeTransitions.length) {
+            removeTransitions = Arrays.copyOf(removeTransitions, typeId + 1);
+        }
+        removeTransitions[typeId] = target;
+    }
+
+    @Override
+    public String toString() {
+        return "Archetype{" +
+                "mask=" + mask +
+                ", size=" + size +
+                '}';
+    }
+}
@@ -0,0 +1,172 @@
+package com.exploringlines.entitysystem;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+
+/**
+ * Reads primitives written by {@link ChannelOutput} from a channel through a reused direct buffer.
+ * Reads block until the bytes arrive, so the channel has to be in blocking mode.
+ */
+final class ChannelInput {
+    /**
+     * Size of the buffer.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Channel the buffer is filled from.
+     */
+    private final ReadableByteChannel channel;
+
+    /**
+     * Bytes read from the channel and not yet consumed.
+     */
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * Initializes the input.
+     * @param channel the channel to read from, not closed by the input.
+     * @throws IllegalArgumentException if the channel is in non-blocking mode.
+     */
+    ChannelInput(ReadableByteChannel channel) {
+        // A non-blocking channel returns no bytes instead of waiting, reading it would spin.
+        if (channel instanceof SelectableChannel && !((SelectableChannel) channel).isBlocking()) {
+            throw new IllegalArgumentException("Channels in non-blocking mode cannot be read, "
+                    + "configure the channel to block.");
+        }
+        this.channel = channel;
+        buffer.limit(0);
+    }
+
+    /**
+     * Reads a byte.
+     * @return the value read.
+     */
+    byte getByte() throws IOException {
+        ensure(1);
+        return buffer.get();
+    }
+
+    /**
+     * Reads a short.
+     * @return the value read.
+     */
+    short getShort() throws IOException {
+        ensure(2);
+        return buffer.getShort();
+    }
+
+    /**
+     * Reads a char.
+     * @return the value read.
+     */
+    char getChar() throws IOException {
+        ensure(2);
+        return buffer.getChar();
+    }
+
+    /**
+     * Reads an int.
+     * @return the value read.
+     */
+    int getInt() throws IOException {
+        ensure(4);
+        return buffer.getInt();
+    }
+
+    /**
+     * Reads a long.
+     * @return the value read.
+     */
+    long getLong() throws IOException {
+        ensure(8);
+        return buffer.getLong();
+    }
+
+    /**
+     * Reads a float.
+     * @return the value read.
+     */
+    float getFloat() throws IOException {
+        ensure(4);
+        return buffer.getFloat();
+    }
+
+    /**
+     * Reads a double.
+     * @return the value read.
+     */
+    double getDouble() throws IOException {
+        ensure(8);
+        return buffer.getDouble();
+    }
+
+    /**
+     * Reads bytes, refilling the buffer as often as needed.
+     * @param bytes the array to fill.
+     */
+    void getBytes(byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!buffer.hasRemaining()) {
+                ensure(1);
+            }
+            int length = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.get(bytes, offset, length);
+            offset += length;
+        }
+    }
+
+    /**
+     * Reads a string that may be null.
+     * @return the string read.
+     */
+    String getString() throws IOException {
+        int length = getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        getBytes(bytes);
+        return new String(bytes, ChannelOutput.UTF_8);
+    }
+
+    /**
+     * Checks if every byte of the channel was read, waiting for more bytes if there are none buffered.
+     * @return true if the channel ended and no bytes are left.
+     */
+    boolean atEnd() throws IOException {
+        if (buffer.hasRemaining()) {
+            return false;
+        }
+        buffer.clear();
+        int read = 0;
+        while (read == 0) {
+            read = channel.read(buffer);
+        }
+        buffer.flip();
+        return read < 0;
+    }
+
+    /**
+     * Reads from the channel until the buffer holds at least the needed bytes.
+     * @param bytes the number of bytes about to be read.
+     * @throws EOFException if the channel ends first.
+     */
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() >= bytes) {
+            return;
+        }
+        buffer.compact();
+        while (buffer.position() < bytes) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Unexpected end of the snapshot.");
+            }
+        }
+        buffer.flip();
+    }
+}
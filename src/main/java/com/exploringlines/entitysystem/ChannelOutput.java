@@ -0,0 +1,155 @@
+package com.exploringlines.entitysystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Writes primitives to a channel through a reused direct buffer, flushing whenever the buffer is full.
+ * Values are little endian, strings are a length followed by UTF-8 bytes or a length of -1 for null.
+ */
+final class ChannelOutput {
+    /**
+     * Size of the buffer.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Encoding of strings.
+     */
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Channel the buffer is flushed to.
+     */
+    private final WritableByteChannel channel;
+
+    /**
+     * Bytes not yet written to the channel.
+     */
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * Initializes the output.
+     * @param channel the channel to write to, not closed by the output.
+     */
+    ChannelOutput(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Writes a byte.
+     * @param value the value to write.
+     */
+    void putByte(byte value) throws IOException {
+        ensure(1);
+        buffer.put(value);
+    }
+
+    /**
+     * Writes a short.
+     * @param value the value to write.
+     */
+    void putShort(short value) throws IOException {
+        ensure(2);
+        buffer.putShort(value);
+    }
+
+    /**
+     * Writes a char.
+     * @param value the value to write.
+     */
+    void putChar(char value) throws IOException {
+        ensure(2);
+        buffer.putChar(value);
+    }
+
+    /**
+     * Writes an int.
+     * @param value the value to write.
+     */
+    void putInt(int value) throws IOException {
+        ensure(4);
+        buffer.putInt(value);
+    }
+
+    /**
+     * Writes a long.
+     * @param value the value to write.
+     */
+    void putLong(long value) throws IOException {
+        ensure(8);
+        buffer.putLong(value);
+    }
+
+    /**
+     * Writes a float.
+     * @param value the value to write.
+     */
+    void putFloat(float value) throws IOException {
+        ensure(4);
+        buffer.putFloat(value);
+    }
+
+    /**
+     * Writes a double.
+     * @param value the value to write.
+     */
+    void putDouble(double value) throws IOException {
+        ensure(8);
+        buffer.putDouble(value);
+    }
+
+    /**
+     * Writes bytes, splitting them over several flushes if they do not fit in the buffer.
+     * @param bytes the bytes to write.
+     */
+    void putBytes(byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            int length = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, length);
+            offset += length;
+        }
+    }
+
+    /**
+     * Writes a string that may be null.
+     * @param value the string to write.
+     */
+    void putString(String value) throws IOException {
+        if (value == null) {
+            putInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        putInt(bytes.length);
+        putBytes(bytes);
+    }
+
+    /**
+     * Writes every buffered byte to the channel.
+     */
+    void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Flushes the buffer if it has less room than needed.
+     * @param bytes the number of bytes about to be written.
+     */
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+}
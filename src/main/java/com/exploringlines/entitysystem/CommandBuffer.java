@@ -0,0 +1,224 @@
+package com.exploringlines.entitysystem;
+
+import java.util.Arrays;
+
+/**
+ * Records structural changes to an entity system so they can be applied later from a single thread.
+ * A buffer is not thread safe, give each worker thread its own buffer. Recording never locks,
+ * created entities get their id right away from the atomic counter of the entity system but are only
+ * registered when the buffer is played back. Buffers played back one after another in a fixed order
+ * apply their changes in a deterministic order.
+ */
+public class CommandBuffer {
+    /**
+     * Command that registers a reserved entity.
+     */
+    private static final byte CREATE_ENTITY = 0;
+
+    /**
+     * Command that sets a component.
+     */
+    private static final byte SET_COMPONENT = 1;
+
+    /**
+     * Command that removes a component.
+     */
+    private static final byte REMOVE_COMPONENT = 2;
+
+    /**
+     * Command that removes an entity.
+     */
+    private static final byte REMOVE_ENTITY = 3;
+
+    /**
+     * Command that marks a component modified in place as changed.
+     */
+    private static final byte MARK_CHANGED = 4;
+
+    /**
+     * Starting capacity of the command arrays.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Entity system the commands are for.
+     */
+    private final EntitySystem entitySystem;
+
+    /**
+     * Type of each command.
+     */
+    private byte[] commands = new byte[INITIAL_CAPACITY];
+
+    /**
+     * Entity of each command.
+     */
+    private Entity[] entities = new Entity[INITIAL_CAPACITY];
+
+    /**
+     * Component or component class of each command, null if the command takes none.
+     */
+    private Object[] arguments = new Object[INITIAL_CAPACITY];
+
+    /**
+     * Number of recorded commands.
+     */
+    private int size = 0;
+
+    /**
+     * Initializes the buffer.
+     * @param entitySystem the entity system the commands are for.
+     */
+    public CommandBuffer(EntitySystem entitySystem) {
+        this.entitySystem = entitySystem;
+    }
+
+    /**
+     * Records the creation of an entity.
+     * @return the entity which can be used in later commands right away.
+     */
+    public Entity createEntity() {
+        return createEntity(null);
+    }
+
+    /**
+     * Records the creation of an entity.
+     * @param name the name of the entity.
+     * @return the entity which can be used in later commands right away.
+     */
+    public Entity createEntity(String name) {
+        Entity entity = entitySystem.reserveEntity(name);
+        record(CREATE_ENTITY, entity, null);
+        return entity;
+    }
+
+    /**
+     * Records setting a component to an entity.
+     * @param entity the entity to attach the component to.
+     * @param component the component to set to the entity.
+     * @param <T> the type of component.
+     * @return the component.
+     */
+    public <T extends Component> T setComponent(Entity entity, T component) {
+        record(SET_COMPONENT, entity, component);
+        return component;
+    }
+
+    /**
+     * Records removing a component from an entity.
+     * @param entity the entity to remove the component from.
+     * @param componentClass the component to remove.
+     * @param <T> the type of component.
+     */
+    public <T extends Component> void removeComponent(Entity entity, Class<T> componentClass) {
+        record(REMOVE_COMPONENT, entity, componentClass);
+    }
+
+    /**
+     * Records marking a component modified in place as changed.
+     * @param entity the entity.
+     * @param componentClass the type of the modified component.
+     */
+    public void markChanged(Entity entity, Class<? extends Component> componentClass) {
+        record(MARK_CHANGED, entity, componentClass);
+    }
+
+    /**
+     * Records removing an entity.
+     * @param entity the entity to remove.
+     */
+    public void removeEntity(Entity entity) {
+        record(REMOVE_ENTITY, entity, null);
+    }
+
+    /**
+     * @return the number of recorded commands.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true if no commands are recorded.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Applies the recorded commands in record order and clears the buffer.
+     * Commands for entities that are no longer in the entity system are skipped.
+     * Must be called from the thread that owns the entity system while no other thread uses it.
+     */
+    @SuppressWarnings("unchecked")
+    public void playback() {
+        for (int i = 0; i < size; i++) {
+            Entity entity = entities[i];
+            switch (commands[i]) {
+                case CREATE_ENTITY:
+                    entitySystem.addReservedEntity(entity);
+                    break;
+                case SET_COMPONENT:
+                    // A command recorded for an entity another command removed before it is dropped.
+                    if (entitySystem.hasEntity(entity)) {
+                        entitySystem.setComponent(entity, (Component) arguments[i]);
+                    }
+                    break;
+                case REMOVE_COMPONENT:
+                    entitySystem.removeComponent(entity, (Class<Component>) arguments[i]);
+                    break;
+                case REMOVE_ENTITY:
+                    entitySystem.removeEntity(entity);
+                    break;
+                case MARK_CHANGED:
+                    entitySystem.markChanged(entity, (Class<Component>) arguments[i]);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown command " + commands[i]);
+            }
+        }
+        reset();
+    }
+
+    /**
+     * Discards the recorded commands.
+     * The ids reserved for the entities created by the discarded commands are given back to the entity system,
+     * in {@link EntityIdMode#RECYCLED} mode their slots are reused and the discarded entities are never found.
+     */
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            if (commands[i] == CREATE_ENTITY) {
+                entitySystem.cancelReservedEntity(entities[i]);
+            }
+        }
+        reset();
+    }
+
+    /**
+     * Empties the buffer.
+     */
+    private void reset() {
+        Arrays.fill(entities, 0, size, null);
+        Arrays.fill(arguments, 0, size, null);
+        size = 0;
+    }
+
+    /**
+     * Appends a command.
+     * @param command the type of command.
+     * @param entity the entity of the command.
+     * @param argument the component or component class of the command.
+     */
+    private void record(byte command, Entity entity, Object argument) {
+        if (size == commands.length) {
+            int capacity = size * 2;
+            commands = Arrays.copyOf(commands, capacity);
+            entities = Arrays.copyOf(entities, capacity);
+            arguments = Arrays.copyOf(arguments, capacity);
+        }
+        commands[size] = command;
+        entities[size] = entity;
+        arguments[size] = argument;
+        size++;
+    }
+}
@@ -0,0 +1,321 @@
+package com.exploringlines.entitysystem;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.List;
+
+/**
+ * Writes and reads the fields of a component type in binary.
+ * Fields may be primitives, strings, enums, or arrays of bytes, ints, longs, floats, or doubles.
+ * Fields are ordered by their declaration, superclass fields first, static and transient fields are skipped.
+ * @param <T> the type of component.
+ */
+final class ComponentCodec<T extends Component> {
+    /**
+     * The component type.
+     */
+    private final Class<T> componentClass;
+
+    /**
+     * Constructor that takes no parameters.
+     */
+    private final Constructor<T> constructor;
+
+    /**
+     * Fields of the component.
+     */
+    private final Field[] fields;
+
+    /**
+     * Type code of each field.
+     */
+    private final char[] codes;
+
+    /**
+     * Initializes the codec.
+     * @param componentClass the component type to read the fields of.
+     */
+    ComponentCodec(Class<T> componentClass) {
+        this.componentClass = componentClass;
+        constructor = ComponentReflection.getConstructor(componentClass);
+        List<Field> fieldList = ComponentReflection.getFields(componentClass);
+        fields = fieldList.toArray(new Field[fieldList.size()]);
+        codes = new char[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            codes[i] = codeOf(fields[i]);
+        }
+    }
+
+    /**
+     * @return the component type.
+     */
+    Class<T> getComponentClass() {
+        return componentClass;
+    }
+
+    /**
+     * Creates a component with default values.
+     * @return the new component.
+     */
+    T newInstance() {
+        return ComponentReflection.newInstance(constructor);
+    }
+
+    /**
+     * Writes the class name and the name and type code of each field.
+     * @param output the output to write to.
+     */
+    void writeLayout(ChannelOutput output) throws IOException {
+        output.putString(componentClass.getName());
+        output.putInt(fields.length);
+        for (int i = 0; i < fields.length; i++) {
+            output.putString(fields[i].getName());
+            output.putChar(codes[i]);
+        }
+    }
+
+    /**
+     * Reads a layout written by {@link #writeLayout(ChannelOutput)} after the class name and checks it matches.
+     * @param input the input to read from, positioned after the class name.
+     * @throws IOException if the fields differ from the fields of the component type.
+     */
+    void checkLayout(ChannelInput input) throws IOException {
+        int count = input.getInt();
+        boolean matches = count == fields.length;
+        for (int i = 0; i < count; i++) {
+            String name = input.getString();
+            char code = input.getChar();
+            matches &= i < fields.length && fields[i].getName().equals(name) && codes[i] == code;
+        }
+        if (!matches) {
+            throw new IOException("The fields of " + componentClass.getName() + " differ from the snapshot.");
+        }
+    }
+
+    /**
+     * Writes the fields of a component.
+     * @param output the output to write to.
+     * @param component the component to write.
+     */
+    void write(ChannelOutput output, Component component) throws IOException {
+        try {
+            for (int i = 0; i < fields.length; i++) {
+                Field field = fields[i];
+                switch (codes[i]) {
+                    case 'Z':
+                        output.putByte(field.getBoolean(component) ? (byte) 1 : (byte) 0);
+                        break;
+                    case 'B':
+                        output.putByte(field.getByte(component));
+                        break;
+                    case 'S':
+                        output.putShort(field.getShort(component));
+                        break;
+                    case 'C':
+                        output.putChar(field.getChar(component));
+                        break;
+                    case 'I':
+                        output.putInt(field.getInt(component));
+                        break;
+                    case 'J':
+                        output.putLong(field.getLong(component));
+                        break;
+                    case 'F':
+                        output.putFloat(field.getFloat(component));
+                        break;
+                    case 'D':
+                        output.putDouble(field.getDouble(component));
+                        break;
+                    case 'T':
+                        output.putString((String) field.get(component));
+                        break;
+                    case 'E': {
+                        Enum value = (Enum) field.get(component);
+                        output.putInt(value == null ? -1 : value.ordinal());
+                        break;
+                    }
+                    case 'b': {
+                        byte[] values = (byte[]) field.get(component);
+                        output.putInt(values == null ? -1 : values.length);
+                        if (values != null) {
+                            output.putBytes(values);
+                        }
+                        break;
+                    }
+                    case 'i': {
+                        int[] values = (int[]) field.get(component);
+                        output.putInt(values == null ? -1 : values.length);
+                        for (int j = 0; values != null && j < values.length; j++) {
+                            output.putInt(values[j]);
+                        }
+                        break;
+                    }
+                    case 'j': {
+                        long[] values = (long[]) field.get(component);
+                        output.putInt(values == null ? -1 : values.length);
+                        for (int j = 0; values != null && j < values.length; j++) {
+                            output.putLong(values[j]);
+                        }
+                        break;
+                    }
+                    case 'f': {
+                        float[] values = (float[]) field.get(component);
+                        output.putInt(values == null ? -1 : values.length);
+                        for (int j = 0; values != null && j < values.length; j++) {
+                            output.putFloat(values[j]);
+                        }
+                        break;
+                    }
+                    default: {
+                        double[] values = (double[]) field.get(component);
+                        output.putInt(values == null ? -1 : values.length);
+                        for (int j = 0; values != null && j < values.length; j++) {
+                            output.putDouble(values[j]);
+                        }
+                        break;
+                    }
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Could not read " + componentClass.getName(), e);
+        }
+    }
+
+    /**
+     * Reads a component written by {@link #write(ChannelOutput, Component)}.
+     * @param input the input to read from.
+     * @return the new component.
+     */
+    T read(ChannelInput input) throws IOException {
+        T component = newInstance();
+        try {
+            for (int i = 0; i < fields.length; i++) {
+                Field field = fields[i];
+                switch (codes[i]) {
+                    case 'Z':
+                        field.setBoolean(component, input.getByte() != 0);
+                        break;
+                    case 'B':
+                        field.setByte(component, input.getByte());
+                        break;
+                    case 'S':
+                        field.setShort(component, input.getShort());
+                        break;
+                    case 'C':
+                        field.setChar(component, input.getChar());
+                        break;
+                    case 'I':
+                        field.setInt(component, input.getInt());
+                        break;
+                    case 'J':
+                        field.setLong(component, input.getLong());
+                        break;
+                    case 'F':
+                        field.setFloat(component, input.getFloat());
+                        break;
+                    case 'D':
+                        field.setDouble(component, input.getDouble());
+                        break;
+                    case 'T':
+                        field.set(component, input.getString());
+                        break;
+                    case 'E': {
+                        int ordinal = input.getInt();
+                        field.set(component, ordinal < 0 ? null : field.getType().getEnumConstants()[ordinal]);
+                        break;
+                    }
+                    case 'b': {
+                        int length = input.getInt();
+                        byte[] values = length < 0 ? null : new byte[length];
+                        if (values != null) {
+                            input.getBytes(values);
+                        }
+                        field.set(component, values);
+                        break;
+                    }
+                    case 'i': {
+                        int length = input.getInt();
+                        int[] values = length < 0 ? null : new int[length];
+                        for (int j = 0; j < length; j++) {
+                            values[j] = input.getInt();
+                        }
+                        field.set(component, values);
+                        break;
+                    }
+                    case 'j': {
+                        int length = input.getInt();
+                        long[] values = length < 0 ? null : new long[length];
+                        for (int j = 0; j < length; j++) {
+                            values[j] = input.getLong();
+                        }
+                        field.set(component, values);
+                        break;
+                    }
+                    case 'f': {
+                        int length = input.getInt();
+                        float[] values = length < 0 ? null : new float[length];
+                        for (int j = 0; j < length; j++) {
+                            values[j] = input.getFloat();
+                        }
+                        field.set(component, values);
+                        break;
+                    }
+                    default: {
+                        int length = input.getInt();
+                        double[] values = length < 0 ? null : new double[length];
+                        for (int j = 0; j < length; j++) {
+                            values[j] = input.getDouble();
+                        }
+                        field.set(component, values);
+                        break;
+                    }
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Could not write " + componentClass.getName(), e);
+        }
+        return component;
+    }
+
+    /**
+     * Finds the type code of a field.
+     * @param field the field.
+     * @return the code of the field type.
+     */
+    private static char codeOf(Field field) {
+        Class type = field.getType();
+        if (type == boolean.class) {
+            return 'Z';
+        } else if (type == byte.class) {
+            return 'B';
+        } else if (type == short.class) {
+            return 'S';
+        } else if (type == char.class) {
+            return 'C';
+        } else if (type == int.class) {
+            return 'I';
+        } else if (type == long.class) {
+            return 'J';
+        } else if (type == float.class) {
+            return 'F';
+        } else if (type == double.class) {
+            return 'D';
+        } else if (type == String.class) {
+            return 'T';
+        } else if (type.isEnum()) {
+            return 'E';
+        } else if (type == byte[].class) {
+            return 'b';
+        } else if (type == int[].class) {
+            return 'i';
+        } else if (type == long[].class) {
+            return 'j';
+        } else if (type == float[].class) {
+            return 'f';
+        } else if (type == double[].class) {
+            return 'd';
+        }
+        throw new IllegalArgumentException("Field " + field + " cannot be written to a snapshot.");
+    }
+}
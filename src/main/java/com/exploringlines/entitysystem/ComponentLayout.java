@@ -0,0 +1,118 @@
+package com.exploringlines.entitysystem;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The primitive fields of a flat component type grouped by field type.
+ * Fields are ordered by their declaration within each group, superclass fields first.
+ * @param <T> the type of component.
+ */
+final class ComponentLayout<T extends Component> {
+    /**
+     * The component type.
+     */
+    private final Class<T> componentClass;
+
+    /**
+     * Constructor that takes no parameters.
+     */
+    private final Constructor<T> constructor;
+
+    /**
+     * Float fields of the component.
+     */
+    private final Field[] floatFields;
+
+    /**
+     * Int fields of the component.
+     */
+    private final Field[] intFields;
+
+    /**
+     * Long fields of the component.
+     */
+    private final Field[] longFields;
+
+    /**
+     * Initializes the layout.
+     * @param componentClass the component type to read the fields of.
+     */
+    ComponentLayout(Class<T> componentClass) {
+        if (!componentClass.isAnnotationPresent(FlatComponent.class)) {
+            throw new IllegalArgumentException(componentClass.getName() + " is not annotated with @FlatComponent.");
+        }
+        this.componentClass = componentClass;
+        constructor = ComponentReflection.getConstructor(componentClass);
+        List<Field> floats = new ArrayList<Field>();
+        List<Field> ints = new ArrayList<Field>();
+        List<Field> longs = new ArrayList<Field>();
+        for (Field field : ComponentReflection.getFields(componentClass)) {
+            if (field.getType() == float.class) {
+                floats.add(field);
+            } else if (field.getType() == int.class) {
+                ints.add(field);
+            } else if (field.getType() == long.class) {
+                longs.add(field);
+            } else {
+                throw new IllegalArgumentException("Field " + field + " of a flat component must be a float, int, or long.");
+            }
+        }
+        floatFields = floats.toArray(new Field[floats.size()]);
+        intFields = ints.toArray(new Field[ints.size()]);
+        longFields = longs.toArray(new Field[longs.size()]);
+    }
+
+    /**
+     * @return the component type.
+     */
+    Class<T> getComponentClass() {
+        return componentClass;
+    }
+
+    /**
+     * @return the float fields of the component.
+     */
+    Field[] getFloatFields() {
+        return floatFields;
+    }
+
+    /**
+     * @return the int fields of the component.
+     */
+    Field[] getIntFields() {
+        return intFields;
+    }
+
+    /**
+     * @return the long fields of the component.
+     */
+    Field[] getLongFields() {
+        return longFields;
+    }
+
+    /**
+     * Creates a component with default values.
+     * @return the new component.
+     */
+    T newInstance() {
+        return ComponentReflection.newInstance(constructor);
+    }
+
+    /**
+     * Finds a field by name.
+     * @param fields the fields to search.
+     * @param name the name of the field.
+     * @return the index of the field.
+     */
+    static int indexOf(Field[] fields, String name) {
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i].getName().equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("No field named " + name);
+    }
+}
@@ -0,0 +1,214 @@
+package com.exploringlines.entitysystem;
+
+import java.util.Arrays;
+
+/**
+ * An immutable set of component type ids stored as a bitmask.
+ * Trailing empty words are never stored so equal masks always have equal word arrays.
+ */
+final class ComponentMask {
+    /**
+     * Mask with no component types.
+     */
+    static final ComponentMask EMPTY = new ComponentMask(new long[0]);
+
+    /**
+     * Bits of the mask, bit n is set when the type with id n is in the mask.
+     */
+    private final long[] words;
+
+    /**
+     * Cached hash of the words.
+     */
+    private final int hash;
+
+    /**
+     * Initializes the mask.
+     * @param words the trimmed words of the mask.
+     */
+    private ComponentMask(long[] words) {
+        this.words = words;
+        this.hash = Arrays.hashCode(words);
+    }
+
+    /**
+     * Checks if the mask contains a type.
+     * @param typeId the id of the type.
+     * @return true if the type is in the mask.
+     */
+    boolean has(int typeId) {
+        int word = typeId >>> 6;
+        return word < words.length && (words[word] & (1L << typeId)) != 0;
+    }
+
+    /**
+     * Creates a mask with the type added.
+     * @param typeId the id of the type to add.
+     * @return the new mask or this mask if the type is already contained.
+     */
+    ComponentMask with(int typeId) {
+        if (has(typeId)) {
+            return this;
+        }
+        int word = typeId >>> 6;
+        long[] bits = Arrays.copyOf(words, Math.max(words.length, word + 1));
+        bits[word] |= 1L << typeId;
+        return new ComponentMask(bits);
+    }
+
+    /**
+     * Creates a mask with the type removed.
+     * @param typeId the id of the type to remove.
+     * @return the new mask or this mask if the type is not contained.
+     */
+    ComponentMask without(int typeId) {
+        if (!has(typeId)) {
+            return this;
+        }
+        long[] bits = words.clone();
+        bits[typeId >>> 6] &= ~(1L << typeId);
+        int length = bits.length;
+        while (length > 0 && bits[length - 1] == 0) {
+            length--;
+        }
+        return new ComponentMask(length == bits.length ? bits : Arrays.copyOf(bits, length));
+    }
+
+    /**
+     * Creates a mask with the types of another mask added.
+     * @param other the types to add.
+     * @return the new mask or this mask if it has every type already.
+     */
+    ComponentMask with(ComponentMask other) {
+        if (containsAll(other)) {
+            return this;
+        }
+        long[] bits = Arrays.copyOf(words, Math.max(words.length, other.words.length));
+        for (int i = 0; i < other.words.length; i++) {
+            bits[i] |= other.words[i];
+        }
+        return new ComponentMask(bits);
+    }
+
+    /**
+     * Creates a mask without the types of another mask.
+     * @param other the types to remove.
+     * @return the new mask or this mask if no types are shared.
+     */
+    ComponentMask without(ComponentMask other) {
+        if (!intersects(other)) {
+            return this;
+        }
+        long[] bits = words.clone();
+        for (int i = 0; i < Math.min(bits.length, other.words.length); i++) {
+            bits[i] &= ~other.words[i];
+        }
+        int length = bits.length;
+        while (length > 0 && bits[length - 1] == 0) {
+            length--;
+        }
+        return new ComponentMask(Arrays.copyOf(bits, length));
+    }
+
+    /**
+     * Finds the next type id in the mask.
+     * @param fromTypeId the type id to start searching from, inclusive.
+     * @return the next type id or -1 if there are none left.
+     */
+    int nextTypeId(int fromTypeId) {
+        int word = fromTypeId >>> 6;
+        if (word >= words.length) {
+            return -1;
+        }
+        long bits = words[word] & (-1L << fromTypeId);
+        while (true) {
+            if (bits != 0) {
+                return (word << 6) + Long.numberOfTrailingZeros(bits);
+            }
+            word++;
+            if (word == words.length) {
+                return -1;
+            }
+            bits = words[word];
+        }
+    }
+
+    /**
+     * Checks if every type of another mask is in this mask.
+     * @param other the mask to check.
+     * @return true if this mask contains all types of the other mask.
+     */
+    boolean containsAll(ComponentMask other) {
+        if (other.words.length > words.length) {
+            return false;
+        }
+        for (int i = 0; i < other.words.length; i++) {
+            if ((words[i] & other.words[i]) != other.words[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if any type is in both masks.
+     * @param other the mask to check.
+     * @return true if the masks share a type.
+     */
+    boolean intersects(ComponentMask other) {
+        int length = Math.min(words.length, other.words.length);
+        for (int i = 0; i < length; i++) {
+            if ((words[i] & other.words[i]) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the mask has no types.
+     */
+    boolean isEmpty() {
+        return words.length == 0;
+    }
+
+    /**
+     * @return the number of types in the mask.
+     */
+    int cardinality() {
+        int count = 0;
+        for (long word : words) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ComponentMask)) {
+            return false;
+        }
+        ComponentMask other = (ComponentMask) o;
+        return hash == other.hash && Arrays.equals(words, other.words);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("ComponentMask{");
+        for (int typeId = nextTypeId(0); typeId >= 0; typeId = nextTypeId(typeId + 1)) {
+            if (builder.length() > "ComponentMask{".length()) {
+                builder.append(", ");
+            }
+            builder.append(typeId);
+        }
+        return builder.append('}').toString();
+    }
+}
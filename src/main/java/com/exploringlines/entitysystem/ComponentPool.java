@@ -0,0 +1,93 @@
+package com.exploringlines.entitysystem;
+
+import java.lang.reflect.Constructor;
+
+/**
+ * Bounded pool of components of one type that an entity system no longer holds.
+ * Pooled components keep the values they had when freed, the caller of {@link #obtain()} sets every field.
+ * @param <T> the type of component.
+ */
+final class ComponentPool<T extends Component> {
+    /**
+     * Type of the pooled components.
+     */
+    private final Class<T> componentClass;
+
+    /**
+     * Constructor without parameters, used when the pool is empty.
+     */
+    private final Constructor<T> constructor;
+
+    /**
+     * Free components waiting to be obtained in the first {@link #size} entries, the rest are empty.
+     */
+    private Component[] components = new Component[0];
+
+    /**
+     * Number of pooled components.
+     */
+    private int size = 0;
+
+    /**
+     * Initializes an empty pool.
+     * @param componentClass the type of the pooled components.
+     * @param capacity the most components the pool holds, zero to only create components.
+     * @throws IllegalArgumentException if the type has no constructor without parameters.
+     */
+    ComponentPool(Class<T> componentClass, int capacity) {
+        this.componentClass = componentClass;
+        constructor = ComponentReflection.getConstructor(componentClass);
+        setCapacity(capacity);
+    }
+
+    /**
+     * Changes the most components the pool holds, dropping the pooled components above it.
+     * @param capacity the most components the pool holds.
+     */
+    void setCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity must not be negative: " + capacity);
+        }
+        Component[] resized = new Component[capacity];
+        size = Math.min(size, capacity);
+        System.arraycopy(components, 0, resized, 0, size);
+        components = resized;
+    }
+
+    /**
+     * @return true if the pool holds freed components, false if it only creates components.
+     */
+    boolean isPooling() {
+        return components.length > 0;
+    }
+
+    /**
+     * @return the number of pooled components.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Takes a component out of the pool, or creates one if the pool is empty.
+     * @return the component.
+     */
+    T obtain() {
+        if (size > 0) {
+            Component component = components[--size];
+            components[size] = null;
+            return componentClass.cast(component);
+        }
+        return ComponentReflection.newInstance(constructor);
+    }
+
+    /**
+     * Returns a component to the pool, dropping it if the pool is full.
+     * @param component the component, no longer referenced by the entity system.
+     */
+    void free(Component component) {
+        if (size < components.length) {
+            components[size++] = component;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.exploringlines.entitysystem;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reflection shared by the classes that create components or read their fields without knowing the type.
+ */
+final class ComponentReflection {
+    /**
+     * Only static methods.
+     */
+    private ComponentReflection() {
+    }
+
+    /**
+     * Finds the constructor without parameters of a component type and makes it accessible.
+     * @param componentClass the component type.
+     * @param <T> the type of component.
+     * @return the constructor.
+     * @throws IllegalArgumentException if the type has no constructor without parameters.
+     */
+    static <T extends Component> Constructor<T> getConstructor(Class<T> componentClass) {
+        try {
+            Constructor<T> constructor = componentClass.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            return constructor;
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException(componentClass.getName() + " has no constructor without parameters.", e);
+        }
+    }
+
+    /**
+     * Creates a component with default values.
+     * @param constructor the constructor without parameters of the component type.
+     * @param <T> the type of component.
+     * @return the new component.
+     * @throws IllegalStateException if the constructor fails.
+     */
+    static <T extends Component> T newInstance(Constructor<T> constructor) {
+        try {
+            return constructor.newInstance();
+        } catch (InstantiationException e) {
+            throw new IllegalStateException("Could not create " + constructor.getDeclaringClass().getName(), e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Could not create " + constructor.getDeclaringClass().getName(), e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("Could not create " + constructor.getDeclaringClass().getName(),
+                    e.getCause());
+        }
+    }
+
+    /**
+     * Collects the instance fields of a component type and makes them accessible.
+     * Fields are ordered by their declaration, superclass fields first, static, transient, and synthetic fields
+     * are skipped.
+     * @param componentClass the component type.
+     * @return the fields.
+     */
+    static List<Field> getFields(Class<?> componentClass) {
+        List<Class<?>> hierarchy = new ArrayList<Class<?>>();
+        for (Class<?> type = componentClass; type != null && type != Object.class; type = type.getSuperclass()) {
+            hierarchy.add(0, type);
+        }
+        List<Field> fields = new ArrayList<Field>();
+        for (Class<?> type : hierarchy) {
+            for (Field field : type.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+                    continue;
+                }
+                field.setAccessible(true);
+                fields.add(field);
+            }
+        }
+        return fields;
+    }
+}
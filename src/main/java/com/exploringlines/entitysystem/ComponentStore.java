@@ -0,0 +1,58 @@
+package com.exploringlines.entitysystem;
+
+/**
+ * Stores the data of one component type outside of the component objects.
+ * A store registered with {@link EntitySystem#registerComponentStore(Class, ComponentStore)} copies the data
+ * of set components in and creates new component objects when they are retrieved, so changing a retrieved
+ * component has no effect until it is set again.
+ * @param <T> the type of component stored.
+ */
+public interface ComponentStore<T extends Component> {
+    /**
+     * Copies the data of a component into the store.
+     * @param entity the entity the component belongs to.
+     * @param component the component to copy.
+     */
+    void set(Entity entity, T component);
+
+    /**
+     * Creates a component from the stored data.
+     * The component is a detached copy, writes to it are lost unless it is set again. Prefer
+     * {@link #readInto(Entity, Component)} with a reused component where the allocation matters.
+     * @param entity the entity to retrieve the component of.
+     * @return a new component or null if the entity has none stored.
+     */
+    T get(Entity entity);
+
+    /**
+     * Copies the stored data into an existing component without allocating.
+     * @param entity the entity to retrieve the component of.
+     * @param target the component to copy into.
+     * @return true if the entity has a component stored.
+     */
+    boolean readInto(Entity entity, T target);
+
+    /**
+     * Checks if the store has a component for an entity.
+     * @param entity the entity to check.
+     * @return true if a component is stored.
+     */
+    boolean contains(Entity entity);
+
+    /**
+     * Removes the component of an entity.
+     * @param entity the entity to remove the component of.
+     * @return true if a component was stored.
+     */
+    boolean remove(Entity entity);
+
+    /**
+     * @return the number of stored components.
+     */
+    int size();
+
+    /**
+     * @return the ids of the entities with a stored component.
+     */
+    long[] getEntityIds();
+}
@@ -0,0 +1,109 @@
+package com.exploringlines.entitysystem;
+
+import java.util.AbstractCollection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Read only view of every component of one type, backed by the archetypes that have the type.
+ * The view stays up to date as components are set and removed and never copies the components,
+ * iterating takes time proportional to the number of components of the type.
+ * @param <T> the type of component.
+ */
+final class ComponentsOfType<T extends Component> extends AbstractCollection<T> {
+    /**
+     * Entity system the components belong to.
+     */
+    private final EntitySystem entitySystem;
+
+    /**
+     * The component type.
+     */
+    private final Class<T> componentClass;
+
+    /**
+     * The id of the component type.
+     */
+    private final int typeId;
+
+    /**
+     * Archetypes that have the type, kept up to date by the entity system.
+     */
+    private final List<Archetype> archetypes;
+
+    /**
+     * Initializes the view.
+     * @param entitySystem the entity system the components belong to.
+     * @param componentClass the component type.
+     * @param typeId the id of the component type.
+     * @param archetypes the archetypes that have the type, kept up to date by the entity system.
+     */
+    ComponentsOfType(EntitySystem entitySystem, Class<T> componentClass, int typeId, List<Archetype> archetypes) {
+        this.entitySystem = entitySystem;
+        this.componentClass = componentClass;
+        this.typeId = typeId;
+        this.archetypes = archetypes;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < archetypes.size(); i++) {
+            size += archetypes.get(i).size();
+        }
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (int i = 0; i < archetypes.size(); i++) {
+            if (archetypes.get(i).size() != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            /**
+             * Index of the current archetype.
+             */
+            private int archetype = 0;
+
+            /**
+             * Next row of the current archetype.
+             */
+            private int row = 0;
+
+            @Override
+            public boolean hasNext() {
+                while (archetype < archetypes.size() && row >= archetypes.get(archetype).size()) {
+                    archetype++;
+                    row = 0;
+                }
+                return archetype < archetypes.size();
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Archetype current = archetypes.get(archetype);
+                ComponentStore store = entitySystem.getComponentStore(typeId);
+                int index = row++;
+                return componentClass.cast(store == null ? current.get(index, typeId)
+                        : store.get(current.getEntity(index)));
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
@@ -0,0 +1,131 @@
+package com.exploringlines.entitysystem;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Replays deltas written by a {@link DeltaEncoder} onto an entity system.
+ * The entity system must hold the same entities the encoded system had before the first applied delta,
+ * for example by restoring a {@link WorldSnapshot} taken right after a flush.
+ * Set and removed components go through the entity system so the sets of the replica see the changes.
+ */
+public class DeltaApplier {
+    /**
+     * Entity system the deltas are applied to.
+     */
+    private final EntitySystem entitySystem;
+
+    /**
+     * Codecs by class name, created when a type is first applied.
+     */
+    private final Map<String, ComponentCodec> codecs = new HashMap<String, ComponentCodec>();
+
+    /**
+     * Channel of the last applied delta.
+     */
+    private ReadableByteChannel channel;
+
+    /**
+     * Input of the last channel, kept so bytes read ahead are not lost between deltas.
+     */
+    private ChannelInput input;
+
+    /**
+     * Initializes the applier.
+     * @param entitySystem the entity system to apply the deltas to.
+     */
+    public DeltaApplier(EntitySystem entitySystem) {
+        this.entitySystem = entitySystem;
+    }
+
+    /**
+     * Applies the next delta of a channel.
+     * Deltas written back to back to one channel, such as a replay log, are applied by calling this
+     * with the same channel until it returns false.
+     * @param channel the channel to read from, left open.
+     * @return true if a delta was applied, false if the channel has ended.
+     * @throws IOException if the channel cannot be read or does not hold a delta of the same components.
+     * @throws IllegalStateException if a created entity already exists.
+     * @throws IllegalArgumentException if the channel is in non-blocking mode.
+     */
+    @SuppressWarnings("unchecked")
+    public boolean apply(ReadableByteChannel channel) throws IOException {
+        if (channel != this.channel) {
+            this.channel = channel;
+            input = new ChannelInput(channel);
+        }
+        if (input.atEnd()) {
+            return false;
+        }
+        if (input.getInt() != DeltaEncoder.MAGIC) {
+            throw new IOException("Not an entity system delta.");
+        }
+        long nextId = input.getLong();
+
+        int created = input.getInt();
+        for (int i = 0; i < created; i++) {
+            long id = input.getLong();
+            entitySystem.createEntity(id, input.getString());
+        }
+        int removed = input.getInt();
+        for (int i = 0; i < removed; i++) {
+            Entity entity = entitySystem.getEntity(input.getLong());
+            if (entity != null) {
+                entitySystem.removeEntity(entity);
+            }
+        }
+
+        int types = input.getInt();
+        for (int i = 0; i < types; i++) {
+            ComponentCodec codec = codec(input.getString());
+            codec.checkLayout(input);
+            int set = input.getInt();
+            for (int j = 0; j < set; j++) {
+                Entity entity = getEntity(input.getLong());
+                entitySystem.setComponent(entity, codec.read(input));
+            }
+            int removedComponents = input.getInt();
+            for (int j = 0; j < removedComponents; j++) {
+                entitySystem.removeComponent(getEntity(input.getLong()), codec.getComponentClass());
+            }
+        }
+        entitySystem.advanceNextId(nextId);
+        return true;
+    }
+
+    /**
+     * Retrieves an entity a delta refers to.
+     * @param id the id of the entity.
+     * @return the entity.
+     * @throws IOException if the entity does not exist.
+     */
+    private Entity getEntity(long id) throws IOException {
+        Entity entity = entitySystem.getEntity(id);
+        if (entity == null) {
+            throw new IOException("The delta refers to entity " + id + " which does not exist.");
+        }
+        return entity;
+    }
+
+    /**
+     * Retrieves the codec of a component type, creating it the first time.
+     * @param className the name of the component class.
+     * @return the codec.
+     * @throws IOException if the class is not available.
+     */
+    @SuppressWarnings("unchecked")
+    private ComponentCodec codec(String className) throws IOException {
+        ComponentCodec codec = codecs.get(className);
+        if (codec == null) {
+            try {
+                codec = new ComponentCodec(Class.forName(className));
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Component type " + className + " of the delta is not available.", e);
+            }
+            codecs.put(className, codec);
+        }
+        return codec;
+    }
+}
@@ -0,0 +1,207 @@
+package com.exploringlines.entitysystem;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+/**
+ * Writes the changes an entity system went through since the last flush as a compact binary delta.
+ * A delta holds the created and removed entities and, for each tracked component type, the components
+ * that were set and the components that were removed. Changes are taken from the change lists of entity
+ * sets, so {@link #encode(WritableByteChannel)} must be called once per tick before the set changes are
+ * flushed, and components modified in place without being set again are not part of a delta.
+ * Deltas are replayed onto another entity system by a {@link DeltaApplier}, which starts from a
+ * {@link WorldSnapshot} of the system or from an empty system when encoding starts with the system.
+ * The sets of an encoder are kept by {@link EntitySystem#releaseIdleSets(int)} until the encoder is closed.
+ */
+public class DeltaEncoder {
+    /**
+     * Marks the start of a delta.
+     */
+    static final int MAGIC = 0x45534454;
+
+    /**
+     * Entity system the changes are taken from.
+     */
+    private final EntitySystem entitySystem;
+
+    /**
+     * Set of every entity, tracks created and removed entities.
+     */
+    private final EntitySet allEntities;
+
+    /**
+     * Component types written to deltas.
+     */
+    private final Class[] types;
+
+    /**
+     * Set of each tracked type, tracks the components set and removed.
+     */
+    private final EntitySet[] typeSets;
+
+    /**
+     * Codec of each tracked type.
+     */
+    private final ComponentCodec[] codecs;
+
+    /**
+     * Initializes the encoder.
+     * @param entitySystem the entity system to encode the changes of.
+     * @param types the component types to include in deltas.
+     * @throws IllegalArgumentException if a type has a field that cannot be written.
+     */
+    @SafeVarargs
+    @SuppressWarnings("unchecked")
+    public DeltaEncoder(EntitySystem entitySystem, Class<? extends Component>... types) {
+        this.entitySystem = entitySystem;
+        this.types = new Class[types.length];
+        allEntities = entitySystem.getEntities();
+        allEntities.pin();
+        typeSets = new EntitySet[types.length];
+        codecs = new ComponentCodec[types.length];
+        for (int i = 0; i < types.length; i++) {
+            this.types[i] = types[i];
+            typeSets[i] = entitySystem.getEntities(types[i]);
+            typeSets[i].pin();
+            codecs[i] = new ComponentCodec(types[i]);
+        }
+    }
+
+    /**
+     * Lets the sets of the encoder be released as idle again, the encoder must not be used afterwards.
+     */
+    public void close() {
+        allEntities.unpin();
+        for (EntitySet set : typeSets) {
+            set.unpin();
+        }
+    }
+
+    /**
+     * Writes the changes since the last flush of the set changes.
+     * @param channel the channel to write to, left open.
+     * @throws IOException if the channel cannot be written.
+     */
+    public void encode(WritableByteChannel channel) throws IOException {
+        ChannelOutput output = new ChannelOutput(channel);
+        output.putInt(MAGIC);
+        output.putLong(entitySystem.getNextId());
+
+        List<Entity> added = allEntities.getAddedEntities();
+        int count = 0;
+        for (int i = 0; i < added.size(); i++) {
+            if (allEntities.contains(added.get(i))) {
+                count++;
+            }
+        }
+        output.putInt(count);
+        for (int i = 0; i < added.size(); i++) {
+            Entity entity = added.get(i);
+            if (allEntities.contains(entity)) {
+                output.putLong(entity.getId());
+                output.putString(entity.getName());
+            }
+        }
+        // An entity both added and removed since the flush was created and removed within the tick.
+        List<Entity> removed = allEntities.getRemovedEntities();
+        count = 0;
+        for (int i = 0; i < removed.size(); i++) {
+            if (!allEntities.isAdded(removed.get(i))) {
+                count++;
+            }
+        }
+        output.putInt(count);
+        for (int i = 0; i < removed.size(); i++) {
+            Entity entity = removed.get(i);
+            if (!allEntities.isAdded(entity)) {
+                output.putLong(entity.getId());
+            }
+        }
+
+        // Write only the types with changes, each with its layout so the delta can be read on its own.
+        count = 0;
+        for (EntitySet set : typeSets) {
+            if (hasChanges(set)) {
+                count++;
+            }
+        }
+        output.putInt(count);
+        for (int i = 0; i < typeSets.length; i++) {
+            EntitySet set = typeSets[i];
+            if (!hasChanges(set)) {
+                continue;
+            }
+            codecs[i].writeLayout(output);
+            writeSetComponents(output, set.getAddedEntities(), set.getChangedEntities(), set, i);
+            writeRemovedComponents(output, set);
+        }
+        output.flush();
+    }
+
+    /**
+     * Writes every component of a type that was added or replaced and is still on its entity.
+     * @param output the output to write to.
+     * @param added the entities the type was added to.
+     * @param changed the entities whose component of the type was replaced.
+     * @param set the set of the type.
+     * @param index the index of the type.
+     */
+    @SuppressWarnings("unchecked")
+    private void writeSetComponents(ChannelOutput output, List<Entity> added, List<Entity> changed, EntitySet set,
+                                    int index) throws IOException {
+        int count = 0;
+        for (int i = 0; i < added.size(); i++) {
+            if (set.contains(added.get(i))) {
+                count++;
+            }
+        }
+        for (int i = 0; i < changed.size(); i++) {
+            if (set.contains(changed.get(i))) {
+                count++;
+            }
+        }
+        output.putInt(count);
+        for (List<Entity> entities : new List[]{added, changed}) {
+            for (int i = 0; i < entities.size(); i++) {
+                Entity entity = entities.get(i);
+                if (set.contains(entity)) {
+                    output.putLong(entity.getId());
+                    codecs[index].write(output, entitySystem.getComponent(entity, types[index]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the entities that lost a component of a type and still exist.
+     * @param output the output to write to.
+     * @param set the set of the type.
+     */
+    private void writeRemovedComponents(ChannelOutput output, EntitySet set) throws IOException {
+        List<Entity> removed = set.getRemovedEntities();
+        int count = 0;
+        for (int i = 0; i < removed.size(); i++) {
+            if (!set.contains(removed.get(i)) && entitySystem.hasEntity(removed.get(i))) {
+                count++;
+            }
+        }
+        output.putInt(count);
+        for (int i = 0; i < removed.size(); i++) {
+            Entity entity = removed.get(i);
+            if (!set.contains(entity) && entitySystem.hasEntity(entity)) {
+                output.putLong(entity.getId());
+            }
+        }
+    }
+
+    /**
+     * Checks if a set has changes since the last flush.
+     * @param set the set to check.
+     * @return true if any entity was added, changed, or removed.
+     */
+    private static boolean hasChanges(EntitySet set) {
+        return !set.getAddedEntities().isEmpty() || !set.getChangedEntities().isEmpty()
+                || !set.getRemovedEntities().isEmpty();
+    }
+}
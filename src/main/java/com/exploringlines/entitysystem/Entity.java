@@ -20,12 +20,27 @@ public class Entity {
      */
     private String name;
 
+    /**
+     * Index of the entity in sparse arrays, the id or the slot of a recycled handle.
+     */
+    final long index;
+
+    /**
+     * Archetype storing the components of the entity, null if the entity is not stored.
+     */
+    Archetype archetype;
+
+    /**
+     * Row of the entity within the archetype.
+     */
+    int row = -1;
+
     /**
      * Initializes the entity.
      * @param id the id of the entity.
      */
     public Entity(long id) {
-        this.id = id;
+        this(id, null, id);
     }
 
     /**
@@ -34,8 +49,19 @@ public class Entity {
      * @param name the name of the entity.
      */
     public Entity(long id, String name) {
-        this(id);
+        this(id, name, id);
+    }
+
+    /**
+     * Initializes the entity.
+     * @param id the id of the entity.
+     * @param name the name of the entity.
+     * @param index the index of the entity in sparse arrays.
+     */
+    Entity(long id, String name, long index) {
+        this.id = id;
         this.name = name;
+        this.index = index;
     }
 
     /**
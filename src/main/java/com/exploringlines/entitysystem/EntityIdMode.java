@@ -0,0 +1,64 @@
+package com.exploringlines.entitysystem;
+
+/**
+ * How an entity system gives out entity ids.
+ */
+public enum EntityIdMode {
+    /**
+     * Every entity gets the next id of an ever increasing counter, ids are never reused.
+     */
+    SEQUENTIAL {
+        @Override
+        long indexOf(long id) {
+            return id;
+        }
+    },
+
+    /**
+     * Ids are handles packing a generation in the upper 32 bits and a slot in the lower 32 bits.
+     * Slots of removed entities are reused after the next flush of the set changes with the generation
+     * increased, so the index arrays stay as large as the most entities alive at once and a handle of a
+     * removed entity never finds the entity that reused its slot.
+     */
+    RECYCLED {
+        @Override
+        long indexOf(long id) {
+            return id & 0xffffffffL;
+        }
+    };
+
+    /**
+     * Finds the index of an id in the sparse arrays of the system.
+     * @param id the id of an entity.
+     * @return the id itself or the slot of a handle.
+     */
+    abstract long indexOf(long id);
+
+    /**
+     * Finds the slot of a handle made in {@link #RECYCLED} mode.
+     * @param id the handle.
+     * @return the slot.
+     */
+    public static int getSlot(long id) {
+        return (int) id;
+    }
+
+    /**
+     * Finds the generation of a handle made in {@link #RECYCLED} mode.
+     * @param id the handle.
+     * @return the number of times the slot was reused before the handle was made.
+     */
+    public static int getGeneration(long id) {
+        return (int) (id >>> 32);
+    }
+
+    /**
+     * Packs a slot and a generation into a handle.
+     * @param slot the slot.
+     * @param generation the generation, less than 2^31.
+     * @return the handle.
+     */
+    static long toHandle(int slot, int generation) {
+        return ((long) generation << 32) | (slot & 0xffffffffL);
+    }
+}
@@ -1,7 +1,15 @@
 package com.exploringlines.entitysystem;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /**
  * Created with IntelliJ IDEA.
@@ -14,27 +22,73 @@ public class EntitySet {
     /**
      * Entities in the set.
      */
-    private List<Entity> entities = new LinkedList<Entity>();
+    private SparseEntityList entities = new SparseEntityList();
 
     /**
-     * Holds the entities that were just added.
+     * Holds the entities that were just added, each entity is held once per flush.
      */
-    private List<Entity> addedEntities = new LinkedList<Entity>();
+    private SparseEntityList addedEntities = new SparseEntityList();
 
     /**
-     * Holds entities that were changed (newly added entities will not be in here).
+     * Holds entities that were changed (newly added entities will not be in here), each entity is held once per flush.
      */
-    private List<Entity> changedEntities = new LinkedList<Entity>();
+    private SparseEntityList changedEntities = new SparseEntityList();
 
     /**
-     * Holds the entities that were removed.
+     * Holds the entities that were removed, each entity is held once per flush.
      */
-    private List<Entity> removedEntities = new LinkedList<Entity>();
+    private SparseEntityList removedEntities = new SparseEntityList();
+
+    /**
+     * Holds the entities that joined the set since the last flush without being in it at the last flush.
+     * Only kept while the set has listeners, nothing else reads it.
+     */
+    private SparseEntityList joinedEntities = new SparseEntityList();
+
+    /**
+     * Default number of entities each parallel task visits.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1024;
+
+    /**
+     * Number of parallel iterations running over sets sharing the counter.
+     * Shared with the entity system that owns the set so it can reject structural changes.
+     */
+    private final AtomicInteger parallelIterations;
+
+    /**
+     * Incremented whenever an entity is added to or removed from the set.
+     */
+    private int modCount = 0;
+
+    /**
+     * Number of holders inside the library keeping the set, a pinned set is never released as idle.
+     */
+    private int pins = 0;
+
+    /**
+     * True once the set was released by its entity system, it is no longer updated and cannot be used.
+     */
+    private boolean released = false;
+
+    /**
+     * Listeners notified of the changes at each flush, null while the set has none.
+     */
+    private List<EntitySetListener> listeners = null;
 
     /**
      * Initializes the set.
      */
     public EntitySet() {
+        this(new AtomicInteger());
+    }
+
+    /**
+     * Initializes the set.
+     * @param parallelIterations counter of running parallel iterations shared with the owning entity system.
+     */
+    EntitySet(AtomicInteger parallelIterations) {
+        this.parallelIterations = parallelIterations;
     }
 
     /**
@@ -42,17 +96,47 @@ public class EntitySet {
      * @param entity the entity to add.
      */
     protected void addEntity(Entity entity) {
-        if (!entities.contains(entity) && entities.add(entity)) {
+        checkNotIterating();
+        if (entities.add(entity)) {
+            modCount++;
+            // The first change of an entity that was in the set at the last flush is a removal.
+            if (listeners != null && !removedEntities.contains(entity)) {
+                joinedEntities.add(entity);
+            }
             addedEntities.add(entity);
         }
     }
 
+    /**
+     * Grows the set so the given number of entities can be added without growing again.
+     * @param capacity the number of entities needed.
+     */
+    void ensureCapacity(int capacity) {
+        entities.ensureCapacity(capacity);
+        addedEntities.ensureCapacity(capacity);
+        if (listeners != null) {
+            joinedEntities.ensureCapacity(capacity);
+        }
+    }
+
     /**
      * Adds a changed entity to the set.
      * @param entity the changed entity.
      */
     protected void addChangedEntity(Entity entity) {
-        changedEntities.add(entity);
+        checkNotIterating();
+        if (!addedEntities.contains(entity)) {
+            changedEntities.add(entity);
+        }
+    }
+
+    /**
+     * Checks if an entity was added since the last flush in constant time.
+     * @param entity the entity to check.
+     * @return true if the entity is in the added entities.
+     */
+    boolean isAdded(Entity entity) {
+        return addedEntities.contains(entity);
     }
 
     /**
@@ -60,40 +144,142 @@ public class EntitySet {
      * @param entity the entity to remove.
      */
     protected void removeEntity(Entity entity) {
+        checkNotIterating();
         if (entities.remove(entity)) {
+            modCount++;
             removedEntities.add(entity);
         }
     }
 
     /**
      * Retrieves the entities within the set.
+     * The list is a read only view that stays up to date with the set, the order is not kept on removal.
      * @return the entities in the set.
      */
     public List<Entity> getEntities() {
-        return entities;
+        checkNotReleased();
+        return entities.asList();
+    }
+
+    /**
+     * @return the number of entities in the set.
+     */
+    public int size() {
+        checkNotReleased();
+        return entities.size();
+    }
+
+    /**
+     * Retrieves an entity by position for iterating without an iterator.
+     * Removing an entity moves the last entity into its position so
+     * iterate from the end when entities may be removed during iteration.
+     * @param index the position of the entity, less than {@link #size()}.
+     * @return the entity at the position.
+     */
+    public Entity get(int index) {
+        checkNotReleased();
+        return entities.get(index);
     }
 
     /**
+     * Visits every entity in the set without allocating.
+     * Entities are visited from the last position so the visited entity may be removed by the visitor.
+     * @param visitor the visitor to call with each entity.
+     */
+    public void forEach(EntityVisitor visitor) {
+        checkNotReleased();
+        for (int i = entities.size() - 1; i >= 0; i--) {
+            visitor.visit(entities.get(i));
+        }
+    }
+
+    /**
+     * Visits every entity in the set in parallel on the common fork join pool.
+     * @param visitor the visitor to call with each entity, called from multiple threads.
+     * @see #parallelForEach(EntityVisitor, int, ForkJoinPool)
+     */
+    public void parallelForEach(EntityVisitor visitor) {
+        parallelForEach(visitor, DEFAULT_CHUNK_SIZE, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Visits every entity in the set in parallel.
+     * The visitor may read and modify the components of the visited entity in place. Structural changes to
+     * the owning entity system are rejected with a {@link ConcurrentModificationException} until the
+     * iteration finishes, record them into a {@link CommandBuffer} per thread instead.
+     * @param visitor the visitor to call with each entity, called from multiple threads.
+     * @param chunkSize the number of entities each task visits, the set is split until chunks are this size.
+     * @param pool the pool to run the tasks on.
+     */
+    public void parallelForEach(EntityVisitor visitor, int chunkSize, ForkJoinPool pool) {
+        checkNotReleased();
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+        }
+        parallelIterations.incrementAndGet();
+        try {
+            int expectedModCount = modCount;
+            pool.invoke(new ChunkTask(entities, visitor, 0, entities.size(), chunkSize));
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException("Entity set changed during parallel iteration.");
+            }
+        } finally {
+            parallelIterations.decrementAndGet();
+        }
+    }
+
+    /**
+     * Creates a spliterator over the entities using the default chunk size.
+     * @return the spliterator.
+     * @see #spliterator(int)
+     */
+    public Spliterator<Entity> spliterator() {
+        return spliterator(DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Creates a spliterator over the entities which splits evenly down to the chunk size.
+     * The spliterator is sized at every split so it works well with parallel streams.
+     * It fails with a {@link ConcurrentModificationException} if entities are added or removed while it is used.
+     * @param chunkSize the size below which the spliterator no longer splits.
+     * @return the spliterator.
+     */
+    public Spliterator<Entity> spliterator(int chunkSize) {
+        checkNotReleased();
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+        }
+        return new EntitySpliterator(0, entities.size(), chunkSize, modCount);
+    }
+
+    /**
+     * The list is a read only view that stays up to date with the set.
      * @return the added entities since the last flush.
      */
     public List<Entity> getAddedEntities() {
-        return addedEntities;
+        checkNotReleased();
+        return addedEntities.asList();
     }
 
     /**
      * Retrieves the entities that have changed since the last flush.
-     * Recently added entities will not be in the changed entities list.
+     * Recently added entities will not be in the changed entities list and
+     * an entity changed multiple times is only in the list once.
+     * The list is a read only view that stays up to date with the set.
      * @return the entities that changed since the last flush.
      */
     public List<Entity> getChangedEntities() {
-        return changedEntities;
+        checkNotReleased();
+        return changedEntities.asList();
     }
 
     /**
+     * The list is a read only view that stays up to date with the set.
      * @return the removed entities since the last flush.
      */
     public List<Entity> getRemovedEntities() {
-        return removedEntities;
+        checkNotReleased();
+        return removedEntities.asList();
     }
 
     /**
@@ -102,25 +288,413 @@ public class EntitySet {
      * @return true if the set contains the entity.
      */
     public boolean contains(Entity entity) {
+        checkNotReleased();
         return entities.contains(entity);
     }
 
+    /**
+     * Adds a listener notified of the changes of the set each time the set changes are flushed.
+     * The first listener starts the tracking of joined entities, an entity that joined, left and joined again
+     * before it was added is reported as changed at the next flush.
+     * @param listener the listener, called on the thread flushing the set changes.
+     */
+    public void addListener(EntitySetListener listener) {
+        checkNotReleased();
+        if (listeners == null) {
+            listeners = new ArrayList<EntitySetListener>();
+            // Entities added since the last flush without being removed first joined the set.
+            for (int i = 0; i < addedEntities.size(); i++) {
+                Entity entity = addedEntities.get(i);
+                if (!removedEntities.contains(entity)) {
+                    joinedEntities.add(entity);
+                }
+            }
+        }
+        listeners.add(listener);
+    }
+
+    /**
+     * Adds a listener notified of the changes of the set on an executor.
+     * The listener gets copies of the change lists and runs while the entity system keeps changing, so it
+     * must not read components or otherwise touch the entity system without synchronization.
+     * @param listener the listener.
+     * @param executor the executor to call the listener on.
+     * @return the listener added to the set, used to remove it.
+     */
+    public EntitySetListener addListener(EntitySetListener listener, Executor executor) {
+        EntitySetListener asyncListener = new AsyncListener(listener, executor);
+        addListener(asyncListener);
+        return asyncListener;
+    }
+
+    /**
+     * Removes a listener.
+     * @param listener the listener, as returned when added on an executor.
+     * @return true if the listener was added to the set.
+     */
+    public boolean removeListener(EntitySetListener listener) {
+        if (listeners == null || !listeners.remove(listener)) {
+            return false;
+        }
+        if (listeners.isEmpty()) {
+            // Stop tracking joined entities until a listener is added again.
+            listeners = null;
+            joinedEntities.clear();
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the set was released by its entity system and can no longer be used.
+     */
+    public boolean isReleased() {
+        return released;
+    }
+
+    /**
+     * Keeps the set from being released as idle while a holder inside the library uses it.
+     */
+    void pin() {
+        pins++;
+    }
+
+    /**
+     * Undoes one {@link #pin()}.
+     */
+    void unpin() {
+        pins--;
+    }
+
+    /**
+     * @return true if a holder inside the library keeps the set.
+     */
+    boolean isPinned() {
+        return pins > 0;
+    }
+
+    /**
+     * @return true if any listener is added to the set.
+     */
+    boolean hasListeners() {
+        return listeners != null;
+    }
+
+    /**
+     * Notifies the listeners of the coalesced changes since the last flush.
+     * Entities are classified by whether they were in the set at the last flush and are in it now.
+     * Structural changes to the owning entity system are rejected while the listeners run.
+     */
+    void dispatchChanges() {
+        List<Entity> added = new ArrayList<Entity>();
+        for (int i = 0; i < joinedEntities.size(); i++) {
+            Entity entity = joinedEntities.get(i);
+            if (entities.contains(entity)) {
+                added.add(entity);
+            }
+        }
+        List<Entity> changed = new ArrayList<Entity>();
+        for (int i = 0; i < changedEntities.size(); i++) {
+            Entity entity = changedEntities.get(i);
+            if (entities.contains(entity) && !joinedEntities.contains(entity)) {
+                changed.add(entity);
+            }
+        }
+        List<Entity> removed = new ArrayList<Entity>();
+        for (int i = 0; i < removedEntities.size(); i++) {
+            Entity entity = removedEntities.get(i);
+            if (joinedEntities.contains(entity)) {
+                // Joined after the last flush, reported as added if it is still in the set.
+                continue;
+            }
+            if (entities.contains(entity)) {
+                // Left and joined again within the flush.
+                if (!changedEntities.contains(entity)) {
+                    changed.add(entity);
+                }
+            } else {
+                removed.add(entity);
+            }
+        }
+        added = Collections.unmodifiableList(added);
+        changed = Collections.unmodifiableList(changed);
+        removed = Collections.unmodifiableList(removed);
+
+        parallelIterations.incrementAndGet();
+        try {
+            for (int i = 0; i < listeners.size(); i++) {
+                EntitySetListener listener = listeners.get(i);
+                if (!added.isEmpty()) {
+                    listener.entitiesAdded(this, added);
+                }
+                if (!changed.isEmpty()) {
+                    listener.entitiesChanged(this, changed);
+                }
+                if (!removed.isEmpty()) {
+                    listener.entitiesRemoved(this, removed);
+                }
+            }
+        } finally {
+            parallelIterations.decrementAndGet();
+        }
+    }
+
     /**
      * Flush changes for the set.
+     * Takes time proportional to the number of entities in the change lists, not the size of the set.
      */
     public void flushChanges() {
         addedEntities.clear();
         changedEntities.clear();
         removedEntities.clear();
+        joinedEntities.clear();
+    }
+
+    /**
+     * Rejects changes to the set while a parallel iteration runs.
+     */
+    private void checkNotIterating() {
+        if (parallelIterations.get() != 0) {
+            throw new ConcurrentModificationException("Entity sets cannot change during a parallel iteration, "
+                    + "record structural changes into a CommandBuffer.");
+        }
+    }
+
+    /**
+     * Clears the set and marks it released, every later use fails instead of seeing a set that is never updated.
+     */
+    void release() {
+        clear();
+        released = true;
+    }
+
+    /**
+     * Rejects the use of a released set.
+     */
+    private void checkNotReleased() {
+        if (released) {
+            throw new IllegalStateException("Entity set was released by its entity system, "
+                    + "retrieve the set again with getEntities.");
+        }
     }
 
     /**
      * Clears the set.
      */
     protected void clear() {
+        checkNotIterating();
+        modCount++;
         entities.clear();
         addedEntities.clear();
         changedEntities.clear();
         removedEntities.clear();
+        joinedEntities.clear();
+    }
+
+    /**
+     * Passes the changes of a set to a listener on an executor.
+     */
+    private static final class AsyncListener implements EntitySetListener {
+        /**
+         * The listener to call.
+         */
+        private final EntitySetListener listener;
+
+        /**
+         * The executor to call the listener on.
+         */
+        private final Executor executor;
+
+        /**
+         * Initializes the listener.
+         * @param listener the listener to call.
+         * @param executor the executor to call the listener on.
+         */
+        AsyncListener(EntitySetListener listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+
+        @Override
+        public void entitiesAdded(final EntitySet set, final List<Entity> entities) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.entitiesAdded(set, entities);
+                }
+            });
+        }
+
+        @Override
+        public void entitiesChanged(final EntitySet set, final List<Entity> entities) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.entitiesChanged(set, entities);
+                }
+            });
+        }
+
+        @Override
+        public void entitiesRemoved(final EntitySet set, final List<Entity> entities) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.entitiesRemoved(set, entities);
+                }
+            });
+        }
+    }
+
+    /**
+     * Visits a range of the dense entity array, splitting it in half until it reaches the chunk size.
+     */
+    private static final class ChunkTask extends RecursiveAction {
+        /**
+         * Version of the serialized form.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Entities of the set.
+         */
+        private final SparseEntityList entities;
+
+        /**
+         * Visitor to call with each entity.
+         */
+        private final EntityVisitor visitor;
+
+        /**
+         * First index of the range.
+         */
+        private final int from;
+
+        /**
+         * Index after the last index of the range.
+         */
+        private final int to;
+
+        /**
+         * Size at which the range is visited instead of split.
+         */
+        private final int chunkSize;
+
+        /**
+         * Initializes the task.
+         * @param entities entities of the set.
+         * @param visitor visitor to call with each entity.
+         * @param from first index of the range.
+         * @param to index after the last index of the range.
+         * @param chunkSize size at which the range is visited instead of split.
+         */
+        ChunkTask(SparseEntityList entities, EntityVisitor visitor, int from, int to, int chunkSize) {
+            this.entities = entities;
+            this.visitor = visitor;
+            this.from = from;
+            this.to = to;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= chunkSize) {
+                for (int i = from; i < to; i++) {
+                    visitor.visit(entities.get(i));
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ChunkTask(entities, visitor, from, middle, chunkSize),
+                        new ChunkTask(entities, visitor, middle, to, chunkSize));
+            }
+        }
+    }
+
+    /**
+     * Spliterator over a range of the dense entity array.
+     */
+    private final class EntitySpliterator implements Spliterator<Entity> {
+        /**
+         * Next index to visit.
+         */
+        private int index;
+
+        /**
+         * Index after the last index of the range.
+         */
+        private final int fence;
+
+        /**
+         * Size below which the range is no longer split.
+         */
+        private final int chunkSize;
+
+        /**
+         * Modification count of the set when the spliterator was created.
+         */
+        private final int expectedModCount;
+
+        /**
+         * Initializes the spliterator.
+         * @param index first index of the range.
+         * @param fence index after the last index of the range.
+         * @param chunkSize size below which the range is no longer split.
+         * @param expectedModCount modification count of the set when the iteration started.
+         */
+        EntitySpliterator(int index, int fence, int chunkSize, int expectedModCount) {
+            this.index = index;
+            this.fence = fence;
+            this.chunkSize = chunkSize;
+            this.expectedModCount = expectedModCount;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Entity> action) {
+            checkModCount();
+            if (index < fence) {
+                action.accept(entities.get(index++));
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super Entity> action) {
+            checkModCount();
+            for (; index < fence; index++) {
+                action.accept(entities.get(index));
+            }
+            checkModCount();
+        }
+
+        @Override
+        public Spliterator<Entity> trySplit() {
+            int remaining = fence - index;
+            if (remaining < chunkSize * 2) {
+                return null;
+            }
+            int middle = index + (remaining >>> 1);
+            Spliterator<Entity> prefix = new EntitySpliterator(index, middle, chunkSize, expectedModCount);
+            index = middle;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return fence - index;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SIZED | SUBSIZED | DISTINCT | NONNULL;
+        }
+
+        /**
+         * Fails if entities were added or removed since the spliterator was created.
+         */
+        private void checkModCount() {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException("Entity set changed during iteration.");
+            }
+        }
     }
 }
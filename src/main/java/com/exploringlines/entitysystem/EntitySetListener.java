@@ -0,0 +1,37 @@
+package com.exploringlines.entitysystem;
+
+import java.util.List;
+
+/**
+ * Reacts to the changes of an entity set, instead of polling its change lists.
+ * The changes since the last flush are coalesced and dispatched in one batch per set when the set changes
+ * are flushed, each method is only called with a non empty list. Entities are reported by whether they were in
+ * the set at the previous flush and are in it now: an entity that was not in the set is reported as added, even
+ * if it left and joined again in between, and is not reported at all if it is not in the set anymore. An entity
+ * that was in the set and left and joined again is reported as changed.
+ * Listeners run before the change lists are cleared and may read components, including the components of
+ * removed entities, but structural changes are rejected until the dispatch finishes, record them into a
+ * {@link CommandBuffer} instead.
+ */
+public interface EntitySetListener {
+    /**
+     * Called with the entities that joined the set.
+     * @param set the set.
+     * @param entities the added entities, not to be kept after the call.
+     */
+    void entitiesAdded(EntitySet set, List<Entity> entities);
+
+    /**
+     * Called with the entities of the set whose components were replaced.
+     * @param set the set.
+     * @param entities the changed entities, not to be kept after the call.
+     */
+    void entitiesChanged(EntitySet set, List<Entity> entities);
+
+    /**
+     * Called with the entities that left the set.
+     * @param set the set.
+     * @param entities the removed entities, not to be kept after the call.
+     */
+    void entitiesRemoved(EntitySet set, List<Entity> entities);
+}
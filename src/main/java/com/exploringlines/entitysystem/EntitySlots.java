@@ -0,0 +1,258 @@
+package com.exploringlines.entitysystem;
+
+import java.util.Arrays;
+
+/**
+ * Dense table of the entities of an entity system in {@link EntityIdMode#RECYCLED} mode, indexed by slot.
+ * Each slot has a generation that is increased when its entity is removed, a handle only finds the entity
+ * when its generation matches. Removed slots are held back until {@link #releaseRemoved()} so handles in the
+ * change lists of the current tick cannot collide with new entities.
+ * Handles can be allocated and released from any thread, every other method that changes the table must be
+ * called from the thread that changes the entity system. Lookups may run on any thread while another thread
+ * allocates: the slot arrays are swapped as one table behind a volatile field and published before the bound
+ * that makes their new slots visible.
+ */
+final class EntitySlots {
+    /**
+     * Starting number of slots.
+     */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * Slot arrays, replaced by a larger table when the slots run out.
+     */
+    private volatile Table table = new Table(new Entity[INITIAL_CAPACITY], new int[INITIAL_CAPACITY]);
+
+    /**
+     * Number of slots ever handed out, slots at and past this have never been used.
+     * Always written after the table holding its slots so a reader that sees the bound sees the table.
+     */
+    private volatile int bound = 0;
+
+    /**
+     * Free slots, reused last in first out.
+     */
+    private int[] free = new int[16];
+
+    /**
+     * Number of free slots.
+     */
+    private int freeCount = 0;
+
+    /**
+     * Slots removed since the last release.
+     */
+    private int[] removed = new int[16];
+
+    /**
+     * Number of slots removed since the last release.
+     */
+    private int removedCount = 0;
+
+    /**
+     * Number of entities in the table.
+     */
+    private int size = 0;
+
+    /**
+     * Takes a free slot or a new one and makes a handle for it.
+     * @return the handle.
+     */
+    synchronized long allocate() {
+        int slot;
+        if (freeCount > 0) {
+            slot = free[--freeCount];
+        } else {
+            slot = bound;
+            grow(slot + 1);
+            bound = slot + 1;
+        }
+        return EntityIdMode.toHandle(slot, table.generations[slot]);
+    }
+
+    /**
+     * Returns the slot of an allocated handle that was never stored, for a discarded reservation.
+     * The generation of the slot is increased so the handle never finds the entity that reuses it.
+     * @param id the handle.
+     */
+    synchronized void cancel(long id) {
+        int slot = EntityIdMode.getSlot(id);
+        Table table = this.table;
+        if (slot < 0 || slot >= bound || table.entities[slot] != null
+                || table.generations[slot] != EntityIdMode.getGeneration(id)) {
+            return;
+        }
+        table.generations[slot] = (table.generations[slot] + 1) & Integer.MAX_VALUE;
+        pushFree(slot);
+    }
+
+    /**
+     * Takes the slot of a handle made by another system, freeing the unused slots below it.
+     * @param id the handle.
+     * @throws IllegalStateException if the slot is in use.
+     */
+    synchronized void claim(long id) {
+        int slot = EntityIdMode.getSlot(id);
+        if (slot < 0) {
+            throw new IllegalArgumentException("Entity id out of range: " + id);
+        }
+        advanceBound(slot + 1);
+        Table table = this.table;
+        if (table.entities[slot] != null) {
+            throw new IllegalStateException("An entity with id " + table.entities[slot].getId() + " holds slot "
+                    + slot);
+        }
+        for (int i = 0; i < freeCount; i++) {
+            if (free[i] == slot) {
+                free[i] = free[--freeCount];
+                break;
+            }
+        }
+        table.generations[slot] = EntityIdMode.getGeneration(id);
+    }
+
+    /**
+     * Makes sure slots below a bound are handed out, the slots never used are made free.
+     * @param newBound the number of slots to hand out at least.
+     */
+    synchronized void advanceBound(int newBound) {
+        if (newBound <= bound) {
+            return;
+        }
+        grow(newBound);
+        for (int slot = newBound - 1; slot >= bound; slot--) {
+            pushFree(slot);
+        }
+        bound = newBound;
+    }
+
+    /**
+     * Stores an entity in the slot of its handle.
+     * @param entity the entity, its handle must be allocated or claimed.
+     */
+    synchronized void put(Entity entity) {
+        int slot = EntityIdMode.getSlot(entity.getId());
+        table.entities[slot] = entity;
+        size++;
+    }
+
+    /**
+     * Retrieves the entity of a handle.
+     * @param id the handle.
+     * @return the entity or null if the slot is free or reused by a later generation.
+     */
+    Entity get(long id) {
+        int slot = EntityIdMode.getSlot(id);
+        if (slot < 0 || slot >= bound) {
+            return null;
+        }
+        Table table = this.table;
+        return table.generations[slot] == EntityIdMode.getGeneration(id) ? table.entities[slot] : null;
+    }
+
+    /**
+     * Retrieves the entity in a slot.
+     * @param slot the slot.
+     * @return the entity or null if the slot is free.
+     */
+    Entity getAtSlot(long slot) {
+        return slot >= 0 && slot < bound ? table.entities[(int) slot] : null;
+    }
+
+    /**
+     * Frees the slot of an entity, the slot is reused after the next release.
+     * @param entity the entity to remove.
+     * @return true if the entity held its slot.
+     */
+    synchronized boolean remove(Entity entity) {
+        if (get(entity.getId()) != entity) {
+            return false;
+        }
+        int slot = EntityIdMode.getSlot(entity.getId());
+        Table table = this.table;
+        table.entities[slot] = null;
+        // Keep generations positive so handles stay positive.
+        table.generations[slot] = (table.generations[slot] + 1) & Integer.MAX_VALUE;
+        size--;
+        if (removedCount == removed.length) {
+            removed = Arrays.copyOf(removed, removedCount * 2);
+        }
+        removed[removedCount++] = slot;
+        return true;
+    }
+
+    /**
+     * Makes the slots removed since the last release available for new entities.
+     */
+    synchronized void releaseRemoved() {
+        for (int i = 0; i < removedCount; i++) {
+            if (table.entities[removed[i]] == null) {
+                pushFree(removed[i]);
+            }
+        }
+        removedCount = 0;
+    }
+
+    /**
+     * @return the number of entities.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of slots ever handed out.
+     */
+    int getBound() {
+        return bound;
+    }
+
+    /**
+     * Adds a slot to the free slots.
+     * @param slot the slot.
+     */
+    private void pushFree(int slot) {
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, freeCount * 2);
+        }
+        free[freeCount++] = slot;
+    }
+
+    /**
+     * Grows the slot arrays to hold at least the given number of slots.
+     * @param capacity the number of slots needed.
+     */
+    private void grow(int capacity) {
+        Table table = this.table;
+        if (capacity > table.entities.length) {
+            int newCapacity = Math.max(capacity, table.entities.length * 2);
+            this.table = new Table(Arrays.copyOf(table.entities, newCapacity),
+                    Arrays.copyOf(table.generations, newCapacity));
+        }
+    }
+
+    /**
+     * Entity and generation arrays of the slots, always of the same length.
+     */
+    private static final class Table {
+        /**
+         * Entity of each slot, null if the slot is free.
+         */
+        final Entity[] entities;
+
+        /**
+         * Current generation of each slot.
+         */
+        final int[] generations;
+
+        /**
+         * Initializes the table.
+         * @param entities the entity of each slot.
+         * @param generations the generation of each slot.
+         */
+        Table(Entity[] entities, int[] generations) {
+            this.entities = entities;
+            this.generations = generations;
+        }
+    }
+}
@@ -1,11 +1,19 @@
 package com.exploringlines.entitysystem;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created with IntelliJ IDEA.
@@ -16,19 +24,74 @@ import java.util.Map;
  */
 public class EntitySystem {
     /**
-     * Counter for the entity id.
+     * Counter for the entity id, atomic so ids can be reserved from any thread.
      */
-    private long counter = 0;
+    private final AtomicLong counter = new AtomicLong();
 
     /**
-     * Entities registered with the system.
+     * How ids are given out.
      */
-    private List<Entity> entities = new LinkedList<Entity>();
+    private final EntityIdMode idMode;
 
     /**
-     * Maps the component to entity relationship.
+     * Entities registered with the system indexed by id, used for sequential ids.
      */
-    private Map<Entity, Map<Class, Component>> entityComponentMap = new HashMap<Entity, Map<Class, Component>>();
+    private LongObjectMap<Entity> entitiesById;
+
+    /**
+     * Entities registered with the system indexed by slot, used for recycled ids.
+     */
+    private EntitySlots entitySlots;
+
+    /**
+     * Entities indexed by name, holds the earliest created entity of each name.
+     */
+    private Map<String, Entity> entitiesByName = new HashMap<String, Entity>();
+
+    /**
+     * Later created entities that share a name with an entity in the name index, in creation order.
+     */
+    private Map<String, List<Entity>> duplicateNames = new HashMap<String, List<Entity>>();
+
+    /**
+     * Maps a component class to the id used in component masks.
+     */
+    private Map<Class, Integer> componentTypeIds = new HashMap<Class, Integer>();
+
+    /**
+     * Stores archetypes by the component types they contain.
+     */
+    private Map<ComponentMask, Archetype> archetypes = new HashMap<ComponentMask, Archetype>();
+
+    /**
+     * Archetypes in creation order for iteration.
+     */
+    private List<Archetype> archetypeList = new ArrayList<Archetype>();
+
+    /**
+     * Archetypes that have each type, indexed by type id.
+     */
+    private List<List<Archetype>> archetypesByType = new ArrayList<List<Archetype>>();
+
+    /**
+     * Views of the components of each type, indexed by type id and created on request.
+     */
+    private List<ComponentsOfType> componentsOfType = new ArrayList<ComponentsOfType>();
+
+    /**
+     * Archetype of entities without components.
+     */
+    private Archetype emptyArchetype;
+
+    /**
+     * Stores registered for component types indexed by type id, null for types kept in archetype columns.
+     */
+    private ComponentStore[] componentStores = new ComponentStore[0];
+
+    /**
+     * Types kept in a component store.
+     */
+    private ComponentMask storedTypes = ComponentMask.EMPTY;
 
     /**
      * Maps the component to entity relationship for removed entities.
@@ -36,15 +99,114 @@ public class EntitySystem {
     private Map<Entity, Map<Class, Component>> removedEntityComponentMap = new HashMap<Entity, Map<Class, Component>>();
 
     /**
-     * Stores entity sets.
+     * Stores the matchers of entity sets by the query they were created with.
      * The sets are created on query and cached.
      */
-    private Map<Class, EntitySet> entitySets = new HashMap<Class, EntitySet>();
+    private Map<Query, QueryMatcher> entitySets = new HashMap<Query, QueryMatcher>();
 
     /**
-     * Initializes the system.
+     * Matchers of the cached sets.
+     */
+    private List<QueryMatcher> queryMatchers = new ArrayList<QueryMatcher>();
+
+    /**
+     * Matchers indexed by the type ids their query refers to.
+     */
+    private List<List<QueryMatcher>> queryMatchersByType = new ArrayList<List<QueryMatcher>>();
+
+    /**
+     * Matchers whose query matches entities without components.
+     */
+    private List<QueryMatcher> emptyQueryMatchers = new ArrayList<QueryMatcher>();
+
+    /**
+     * Number of parallel iterations running over sets of the system, structural changes are rejected while non zero.
+     */
+    private final AtomicInteger parallelIterations = new AtomicInteger();
+
+    /**
+     * Builds the published views, null until the first view is published.
+     */
+    private ViewPublisher viewPublisher = null;
+
+    /**
+     * The last published view, read from any thread.
+     */
+    private volatile WorldView publishedView = null;
+
+    /**
+     * Receives the measurements of the system, nothing is measured while it is {@link MetricsSink#NONE}.
+     */
+    private MetricsSink metrics = MetricsSink.NONE;
+
+    /**
+     * Number of times the set changes were flushed, used to find idle sets.
+     */
+    private long flushes = 0;
+
+    /**
+     * Tick stamped on the components set or marked changed now, advanced by every flush and before every
+     * subsystem update of the loops.
+     */
+    private long changeTick = 1;
+
+    /**
+     * Spatial grids by the position type they index.
+     */
+    private Map<Class, SpatialGrid> spatialGrids = new HashMap<Class, SpatialGrid>();
+
+    /**
+     * Component pools indexed by type id, null for types never pooled or obtained.
+     */
+    private ComponentPool[] pools = new ComponentPool[0];
+
+    /**
+     * Components the system let go of since the last flush and the pool each is freed into at the flush.
+     * Components set again before the flush are taken out so they are not freed while attached.
+     */
+    private Map<Component, ComponentPool> pendingFree = new IdentityHashMap<Component, ComponentPool>();
+
+    /**
+     * Initializes the system with sequential ids.
      */
     public EntitySystem() {
+        this(EntityIdMode.SEQUENTIAL);
+    }
+
+    /**
+     * Initializes the system.
+     * @param idMode how ids are given out.
+     */
+    public EntitySystem(EntityIdMode idMode) {
+        this.idMode = idMode;
+        if (idMode == EntityIdMode.RECYCLED) {
+            entitySlots = new EntitySlots();
+        } else {
+            entitiesById = new LongObjectMap<Entity>();
+        }
+        emptyArchetype = getArchetype(ComponentMask.EMPTY);
+    }
+
+    /**
+     * Sets the sink receiving the runtime measurements of the system and of the subsystems scheduled on it.
+     * @param metrics the sink, {@link MetricsSink#NONE} to stop measuring.
+     */
+    public void setMetricsSink(MetricsSink metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the sink receiving the runtime measurements, {@link MetricsSink#NONE} when not measuring.
+     */
+    public MetricsSink getMetricsSink() {
+        return metrics;
+    }
+
+    /**
+     * @return how ids are given out.
+     */
+    public EntityIdMode getIdMode() {
+        return idMode;
     }
 
     /**
@@ -52,9 +214,8 @@ public class EntitySystem {
      * @return the created entity.
      */
     public Entity createEntity() {
-        Entity entity = new Entity(counter);
-        counter++;
-        entities.add(entity);
+        Entity entity = reserveEntity(null);
+        addEntity(entity);
         return entity;
     }
 
@@ -64,9 +225,116 @@ public class EntitySystem {
      * @return the created entity.
      */
     public Entity createEntity(String name) {
-        Entity entity = new Entity(counter, name);
-        counter++;
-        entities.add(entity);
+        Entity entity = reserveEntity(name);
+        addEntity(entity);
+        return entity;
+    }
+
+    /**
+     * Creates many entities with the components of a template.
+     * Ids are taken as one range, the archetype of the entities grows once, and every set the entities
+     * match is updated once for the whole batch.
+     * @param count the number of entities to create.
+     * @param template the components to copy onto each entity.
+     * @return the created entities.
+     * @throws IllegalArgumentException if a component kept in archetype columns copies to null or to another
+     *         type, checked before any entity is created.
+     */
+    @SuppressWarnings("unchecked")
+    public Entity[] createEntities(int count, EntityTemplate template) {
+        checkNotIterating();
+        List<Component> prototypes = template.getComponents();
+        int[] typeIds = new int[prototypes.size()];
+        // The copies given to the first entity, made up front so a bad copy fails before anything changes.
+        Component[] firstCopies = new Component[typeIds.length];
+        ComponentMask mask = ComponentMask.EMPTY;
+        for (int i = 0; i < typeIds.length; i++) {
+            typeIds[i] = getComponentTypeId(prototypes.get(i).getClass());
+            mask = mask.with(typeIds[i]);
+            if (count > 0 && getComponentStore(typeIds[i]) == null) {
+                firstCopies[i] = copyComponent(prototypes.get(i));
+            }
+        }
+        Archetype archetype = getArchetype(mask);
+        int firstRow = archetype.size();
+        archetype.ensureCapacity(firstRow + count);
+        long firstId = entitySlots == null ? counter.getAndAdd(count) : -1;
+        Entity[] entities = new Entity[count];
+        for (int i = 0; i < count; i++) {
+            long id = entitySlots != null ? entitySlots.allocate() : firstId + i;
+            Entity entity = new Entity(id, null, idMode.indexOf(id));
+            indexEntity(entity);
+            int row = archetype.add(entity);
+            for (int j = 0; j < typeIds.length; j++) {
+                ComponentStore store = getComponentStore(typeIds[j]);
+                if (store == null) {
+                    archetype.set(row, typeIds[j], i == 0 ? firstCopies[j] : copyComponent(prototypes.get(j)));
+                } else {
+                    // Stores copy the data of the component themselves.
+                    store.set(entity, prototypes.get(j));
+                }
+                archetype.setTick(row, typeIds[j], changeTick);
+            }
+            entities[i] = entity;
+        }
+        addToSets(archetype, firstRow);
+        metrics.entitiesCreated(count);
+        for (Component prototype : prototypes) {
+            metrics.componentsSet(prototype.getClass(), count);
+        }
+        return entities;
+    }
+
+    /**
+     * Reserves an entity id without registering the entity, safe to call from any thread.
+     * The entity has to be added with {@link #addReservedEntity(Entity)} before it is used.
+     * @param name the name of the entity, null for none.
+     * @return the reserved entity.
+     */
+    Entity reserveEntity(String name) {
+        long id = entitySlots != null ? entitySlots.allocate() : counter.getAndIncrement();
+        return new Entity(id, name, idMode.indexOf(id));
+    }
+
+    /**
+     * Registers an entity created by {@link #reserveEntity(String)}.
+     * @param entity the reserved entity.
+     */
+    void addReservedEntity(Entity entity) {
+        addEntity(entity);
+    }
+
+    /**
+     * Gives back the id of an entity created by {@link #reserveEntity(String)} that is never going to be added,
+     * safe to call from any thread. In {@link EntityIdMode#RECYCLED} mode the slot is reused by later entities,
+     * sequential ids are skipped.
+     * @param entity the reserved entity.
+     */
+    void cancelReservedEntity(Entity entity) {
+        if (entitySlots != null) {
+            entitySlots.cancel(entity.getId());
+        }
+    }
+
+    /**
+     * Creates an entity with a given id, used to recreate the entities of another system.
+     * Entities created afterwards get ids above the given id.
+     * @param id the id of the entity.
+     * @param name the name of the entity, null for none.
+     * @return the created entity.
+     * @throws IllegalStateException if an entity with the id exists.
+     */
+    Entity createEntity(long id, String name) {
+        if (getEntity(id) != null) {
+            throw new IllegalStateException("An entity with id " + id + " already exists.");
+        }
+        if (entitySlots != null) {
+            entitySlots.claim(id);
+        } else {
+            advanceNextId(id + 1);
+        }
+        Entity entity = new Entity(id, name, idMode.indexOf(id));
+        addEntity(entity);
         return entity;
     }
 
@@ -76,57 +344,78 @@ public class EntitySystem {
      * @return true if the entity is in the entity system.
      */
     public boolean hasEntity(Entity entity) {
-        return entities.contains(entity);
+        return getEntity(entity.getId()) == entity;
     }
 
     /**
      * Retrieves an entity by the id.
+     * A recycled id of a removed entity does not find the entity that reused its slot.
      * @param id the id of the entity.
      * @return the entity retrieved, null if none found.
      */
     public Entity getEntity(long id) {
-        for (Entity entity : entities) {
-            if (entity.getId() == id) {
-                return entity;
-            }
-        }
-        return null;
+        return entitySlots != null ? entitySlots.get(id) : entitiesById.get(id);
     }
 
     /**
      * Retrieves an entity by name.
+     * If multiple entities share the name the earliest created one is returned.
      * @param name the name of the entity.
      * @return the entity retrieved, null if none found.
      */
     public Entity getEntity(String name) {
-        for (Entity entity : entities) {
-            String entityName = entity.getName();
-            if (entityName != null && entityName.equals(name)) {
-                return entity;
-            }
-        }
-        return null;
+        return entitiesByName.get(name);
     }
 
     /**
      * Removes an entity.
+     * An entity this system does not hold, such as one already removed, is ignored.
      * @param entity the entity to remove.
      */
     public void removeEntity(Entity entity) {
-        entities.remove(entity);
-
-        // Move the component map to the removed map.
-        Map<Class, Component> componentMap = entityComponentMap.get(entity);
-        if (componentMap != null) {
-            removedEntityComponentMap.put(entity, componentMap);
+        checkNotIterating();
+        if (!hasEntity(entity)) {
+            return;
+        }
+        if (entitySlots != null) {
+            entitySlots.remove(entity);
+        } else {
+            entitiesById.remove(entity.getId());
+        }
+        removeName(entity);
+        if (viewPublisher != null) {
+            viewPublisher.entityRemoved(entity);
         }
+        metrics.entityRemoved();
 
-        // Notify all sets with the removed entity.
-        entityComponentMap.remove(entity);
-        for (EntitySet entitySet : entitySets.values()) {
-            entitySet.removeEntity(entity);
+        // Move the components to the removed map.
+        Archetype archetype = entity.archetype;
+        if (archetype != null) {
+            ComponentMask mask = archetype.getMask();
+            if (mask != ComponentMask.EMPTY) {
+                Map<Class, Component> componentMap = new HashMap<Class, Component>();
+                for (int typeId = mask.nextTypeId(0); typeId >= 0; typeId = mask.nextTypeId(typeId + 1)) {
+                    ComponentStore store = getComponentStore(typeId);
+                    Component component = store == null ? archetype.get(entity.row, typeId) : store.get(entity);
+                    componentMap.put(component.getClass(), component);
+                    if (store != null) {
+                        store.remove(entity);
+                    } else {
+                        release(typeId, component, null);
+                    }
+                }
+                removedEntityComponentMap.put(entity, componentMap);
+            }
+            archetype.remove(entity.row);
+
+            // Notify the sets the entity was part of.
+            for (int i = 0; i < queryMatchers.size(); i++) {
+                QueryMatcher matcher = queryMatchers.get(i);
+                if (matcher.matches(mask)) {
+                    matcher.getEntitySet().removeEntity(entity);
+                }
+            }
         }
-        entityComponentMap.remove(entity);
     }
 
     /**
@@ -137,9 +426,16 @@ public class EntitySystem {
      * @return the first found component or null if none given.
      */
     public <T extends Component> T getComponent(Entity entity, Class<T> componentClass) {
-        if (entityComponentMap.containsKey(entity)) {
-            Map<Class, Component> componentList = entityComponentMap.get(entity);
-            return componentClass.cast(componentList.get(componentClass));
+        if (entity.archetype != null) {
+            Integer typeId = componentTypeIds.get(componentClass);
+            if (typeId == null) {
+                return null;
+            }
+            ComponentStore store = getComponentStore(typeId);
+            if (store != null) {
+                return entity.archetype.getMask().has(typeId) ? componentClass.cast(store.get(entity)) : null;
+            }
+            return componentClass.cast(entity.archetype.get(entity.row, typeId));
         } else if (removedEntityComponentMap.containsKey(entity)) {
             Map<Class, Component> componentList = removedEntityComponentMap.get(entity);
             return componentClass.cast(componentList.get(componentClass));
@@ -147,32 +443,122 @@ public class EntitySystem {
         return null;
     }
 
+    /**
+     * Retrieves every component of an entity.
+     * @param entity the entity.
+     * @return the components of the entity, components of a type with a registered store are created.
+     */
+    List<Component> getComponents(Entity entity) {
+        List<Component> components = new ArrayList<Component>();
+        Archetype archetype = entity.archetype;
+        if (archetype == null || !hasEntity(entity)) {
+            return components;
+        }
+        ComponentMask mask = archetype.getMask();
+        for (int typeId = mask.nextTypeId(0); typeId >= 0; typeId = mask.nextTypeId(typeId + 1)) {
+            ComponentStore store = getComponentStore(typeId);
+            components.add(store == null ? archetype.get(entity.row, typeId) : store.get(entity));
+        }
+        return components;
+    }
+
     /**
      * Sets a component to an entity.
+     * Components of a type with a registered store are copied into the store and not kept.
      * @param entity the entity to attach the component to.
      * @param component the component to set to the entity.
+     * @throws IllegalArgumentException if the entity is not in this entity system.
      * @param <T> the type of component.
      */
+    @SuppressWarnings("unchecked")
     public <T extends Component> T setComponent(Entity entity, T component) {
-        if (!entityComponentMap.containsKey(entity)) {
-            entityComponentMap.put(entity, new HashMap<Class, Component>());
-        }
-        Map<Class, Component> components = entityComponentMap.get(entity);
-        // Add an entity reference to the entry set which contains the added component.
-        if (entitySets.containsKey(component.getClass())) {
-            EntitySet set = entitySets.get(component.getClass());
-            // Add the entity to the changed list if the component exists and is referenced to the entity but is changed.
-            if (components.containsKey(component.getClass())) {
-                set.addChangedEntity(entity);
-            } else {
-                set.addEntity(entity);
+        checkNotIterating();
+        checkOwned(entity);
+        int typeId = getComponentTypeId(component.getClass());
+        Archetype archetype = entity.archetype;
+        ComponentMask oldMask = archetype.getMask();
+        if (!oldMask.has(typeId)) {
+            Archetype target = archetype.getAddTransition(typeId);
+            if (target == null) {
+                target = getArchetype(archetype.getMask().with(typeId));
+                archetype.setAddTransition(typeId, target);
             }
+            archetype.moveTo(entity.row, target);
         }
-        components.put(component.getClass(), component);
+        ComponentStore store = getComponentStore(typeId);
+        if (store == null) {
+            if (oldMask.has(typeId)) {
+                release(typeId, entity.archetype.get(entity.row, typeId), component);
+            }
+            reattach(component);
+            entity.archetype.set(entity.row, typeId, component);
+        } else {
+            store.set(entity, component);
+            entity.archetype.markDirty(entity.row);
+        }
+        entity.archetype.setTick(entity.row, typeId, changeTick);
+
+        // Update the sets whose query refers to the type, a replaced component marks the entity as changed.
+        updateSets(entity, oldMask, entity.archetype.getMask(), typeId);
+        metrics.componentsSet(component.getClass(), 1);
 
         return component;
     }
 
+    /**
+     * Sets a component of one type to many entities.
+     * The type is resolved and the sets referring to it are looked up once for the whole batch.
+     * @param entities the entities to attach the components to.
+     * @param componentClass the type of the components.
+     * @param components the component of each entity, in the order of the entities.
+     * @param <T> the type of component.
+     * @throws IllegalArgumentException if any of the entities is not in this entity system, nothing is set then.
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Component> void setComponents(Entity[] entities, Class<T> componentClass, T[] components) {
+        checkNotIterating();
+        if (entities.length != components.length) {
+            throw new IllegalArgumentException("Got " + entities.length + " entities but " + components.length
+                    + " components.");
+        }
+        for (Entity entity : entities) {
+            checkOwned(entity);
+        }
+        int typeId = getComponentTypeId(componentClass);
+        ComponentStore store = getComponentStore(typeId);
+        List<QueryMatcher> matchers = typeId < queryMatchersByType.size()
+                ? queryMatchersByType.get(typeId) : Collections.<QueryMatcher>emptyList();
+        for (int i = 0; i < entities.length; i++) {
+            Entity entity = entities[i];
+            Archetype archetype = entity.archetype;
+            ComponentMask oldMask = archetype.getMask();
+            if (!oldMask.has(typeId)) {
+                Archetype target = archetype.getAddTransition(typeId);
+                if (target == null) {
+                    target = getArchetype(oldMask.with(typeId));
+                    archetype.setAddTransition(typeId, target);
+                }
+                archetype.moveTo(entity.row, target);
+            }
+            if (store == null) {
+                if (oldMask.has(typeId)) {
+                    release(typeId, entity.archetype.get(entity.row, typeId), components[i]);
+                }
+                reattach(components[i]);
+                entity.archetype.set(entity.row, typeId, components[i]);
+            } else {
+                store.set(entity, components[i]);
+                entity.archetype.markDirty(entity.row);
+            }
+            entity.archetype.setTick(entity.row, typeId, changeTick);
+            ComponentMask newMask = entity.archetype.getMask();
+            for (int j = 0; j < matchers.size(); j++) {
+                matchers.get(j).update(entity, oldMask, newMask, typeId);
+            }
+        }
+        metrics.componentsSet(componentClass, entities.length);
+    }
+
     /**
      * Checks if an entity has the specified component.
      * @param entity the entity to check.
@@ -186,25 +572,148 @@ public class EntitySystem {
 
     /**
      * Removes a component from an entity.
+     * An entity this system does not hold is ignored.
      * @param entity the entity to remove the component from.
      * @param componentClass the component to remove.
      * @param <T> the type of component.
      */
     public <T extends Component> void removeComponent(Entity entity, Class<T> componentClass) {
-        if (entityComponentMap.containsKey(entity)) {
-            entityComponentMap.get(entity).remove(componentClass);
-
-            // Move the component map to the removed map.
-            Map<Class, Component> componentMap = entityComponentMap.get(entity);
-            if (componentMap != null) {
-                removedEntityComponentMap.put(entity, componentMap);
+        checkNotIterating();
+        if (!hasEntity(entity)) {
+            return;
+        }
+        Archetype archetype = entity.archetype;
+        Integer typeId = componentTypeIds.get(componentClass);
+        if (typeId != null && archetype.getMask().has(typeId)) {
+            ComponentStore store = getComponentStore(typeId);
+            if (store == null) {
+                release(typeId, archetype.get(entity.row, typeId), null);
+            }
+            Archetype target = archetype.getRemoveTransition(typeId);
+            if (target == null) {
+                target = getArchetype(archetype.getMask().without(typeId));
+                archetype.setRemoveTransition(typeId, target);
+            }
+            archetype.moveTo(entity.row, target);
+            if (store != null) {
+                store.remove(entity);
             }
 
-            // Remove the entity reference in the entry set which contain the removed component.
-            if (entitySets.containsKey(componentClass)) {
-                entitySets.get(componentClass).removeEntity(entity);
+            // Update the sets whose query refers to the removed type.
+            updateSets(entity, archetype.getMask(), target.getMask(), typeId);
+            metrics.componentRemoved(componentClass);
+        }
+    }
+
+    /**
+     * Marks a component modified in place as changed, so the sets that track its type report the entity as
+     * changed without the component being replaced. Reported to the metrics as a set component.
+     * During a parallel iteration record the change into a {@link CommandBuffer} instead.
+     * @param entity the entity.
+     * @param componentClass the type of the modified component.
+     * @return true if the entity has a component of the type.
+     */
+    public boolean markChanged(Entity entity, Class<? extends Component> componentClass) {
+        checkNotIterating();
+        Integer typeId = componentTypeIds.get(componentClass);
+        Archetype archetype = entity.archetype;
+        if (typeId == null || archetype == null || !archetype.getMask().has(typeId) || !hasEntity(entity)) {
+            return false;
+        }
+        archetype.markDirty(entity.row);
+        archetype.setTick(entity.row, typeId, changeTick);
+        updateSets(entity, archetype.getMask(), archetype.getMask(), typeId);
+        metrics.componentsSet(componentClass, 1);
+        return true;
+    }
+
+    /**
+     * @return the tick stamped on the components set or marked changed now.
+     */
+    public long getChangeTick() {
+        return changeTick;
+    }
+
+    /**
+     * Starts a new tick so the changes made from now on are told apart from the earlier ones.
+     * The loops advance the tick before every subsystem update and every flush advances it.
+     * @return the new tick.
+     */
+    public long advanceChangeTick() {
+        return ++changeTick;
+    }
+
+    /**
+     * Retrieves the tick a component was last set or marked changed at.
+     * @param entity the entity.
+     * @param componentClass the component type.
+     * @return the tick of the last change or -1 if the entity has no component of the type.
+     */
+    public long getChangeTick(Entity entity, Class<? extends Component> componentClass) {
+        Integer typeId = componentTypeIds.get(componentClass);
+        Archetype archetype = entity.archetype;
+        if (typeId == null || archetype == null || !archetype.getMask().has(typeId)) {
+            return -1;
+        }
+        return archetype.getTicks(typeId)[entity.row];
+    }
+
+    /**
+     * Visits the entities whose component of a type was set or marked changed after a tick.
+     * Unlike the change lists of the sets the ticks are kept across flushes, so each reader remembers the
+     * {@link #getChangeTick()} it last read at and reads the changes since at its own pace.
+     * Components set again with the same value count as changed, entities that lost the type are not visited.
+     * @param componentClass the component type.
+     * @param tick the tick of the previous read, changes made at that tick are not visited.
+     * @param visitor receives the entities, must not add or remove entities or components.
+     * @return the number of entities visited.
+     */
+    public int forEachChangedSince(Class<? extends Component> componentClass, long tick, EntityVisitor visitor) {
+        Integer typeId = componentTypeIds.get(componentClass);
+        if (typeId == null) {
+            return 0;
+        }
+        int visited = 0;
+        List<Archetype> withType = getArchetypesWithType(typeId);
+        for (int i = 0; i < withType.size(); i++) {
+            Archetype archetype = withType.get(i);
+            long[] ticks = archetype.getTicks(typeId);
+            for (int row = 0; row < archetype.size(); row++) {
+                if (ticks[row] > tick) {
+                    visitor.visit(archetype.getEntity(row));
+                    visited++;
+                }
             }
         }
+        return visited;
+    }
+
+    /**
+     * Pools the components of a type the system lets go of, so {@link #obtain(Class)} reuses them.
+     * Components replaced by a set, removed from an entity, or of a removed entity are pooled at the next
+     * flush of the set changes, unless they were set to an entity again before the flush. Pool a type only when
+     * no code keeps its components after letting go of them and no component of the type is set to more than
+     * one entity at a time.
+     * @param componentClass the component type, must have a constructor without parameters.
+     * @param capacity the most components kept in the pool, zero to stop pooling.
+     */
+    public void setPoolCapacity(Class<? extends Component> componentClass, int capacity) {
+        getPool(componentClass).setCapacity(capacity);
+    }
+
+    /**
+     * Retrieves a component to set, taken from the pool of the type if it has any.
+     * A pooled component keeps the values it had, the caller sets every field.
+     * Pools are not thread safe, obtain components before a parallel iteration or create them during it.
+     * @param componentClass the component type, must have a constructor without parameters.
+     * @param <T> the type of component.
+     * @return a pooled or new component.
+     * @throws ConcurrentModificationException if called during a parallel iteration.
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Component> T obtain(Class<T> componentClass) {
+        checkNotIterating();
+        return (T) getPool(componentClass).obtain();
     }
 
     /**
@@ -214,45 +723,700 @@ public class EntitySystem {
      * @return the entities that have the given components.
      */
     public <T extends Component> EntitySet getEntities(Class<T> componentClass) {
-        if (!entitySets.containsKey(componentClass)) {
-            EntitySet entitySet = new EntitySet();
-            // Add existing entities that match the component.
-            for (Entity entity : entities) {
-                if (hasComponent(entity, componentClass)) {
-                    entitySet.addEntity(entity);
+        return getEntities(Query.all(componentClass));
+    }
+
+    /**
+     * Retrieves entities that match every given query.
+     * The set is cached and kept up to date as components are set and removed until it is released.
+     * Creating the set only visits the archetypes that have the rarest type the query requires.
+     * @param queries the queries an entity must match, no queries match every entity.
+     * @return the entities that match the queries.
+     * @see #releaseEntities(Query)
+     */
+    public EntitySet getEntities(Query... queries) {
+        Query query = queries.length == 1 ? queries[0] : Query.of(queries);
+        QueryMatcher matcher = entitySets.get(query);
+        if (matcher == null) {
+            checkNotIterating();
+            EntitySet entitySet = new EntitySet(parallelIterations);
+            matcher = createMatcher(query, entitySet);
+
+            // Add existing entities that match the query, sizing the set once.
+            List<Archetype> candidates = getCandidateArchetypes(matcher.getAll());
+            List<Archetype> matching = new ArrayList<Archetype>();
+            int count = 0;
+            for (int i = 0; i < candidates.size(); i++) {
+                Archetype archetype = candidates.get(i);
+                if (archetype.size() > 0 && matcher.matches(archetype.getMask())) {
+                    matching.add(archetype);
+                    count += archetype.size();
+                }
+            }
+            entitySet.ensureCapacity(count);
+            for (Archetype archetype : matching) {
+                for (int row = 0; row < archetype.size(); row++) {
+                    entitySet.addEntity(archetype.getEntity(row));
                 }
             }
-            entitySets.put(componentClass, entitySet);
+            entitySets.put(query, matcher);
+        }
+        matcher.lastUsed = flushes;
+        return matcher.getEntitySet();
+    }
+
+    /**
+     * Stops keeping the set of a query up to date and drops it from the cache.
+     * The released set is cleared and fails with an {@link IllegalStateException} on any later use, a later
+     * query creates a new set. A spatial grid built on the set is released with it.
+     * @param query the query of the set.
+     * @return true if the set was cached.
+     */
+    public boolean releaseEntities(Query query) {
+        checkNotIterating();
+        QueryMatcher matcher = entitySets.remove(query);
+        if (matcher == null) {
+            return false;
+        }
+        Iterator<SpatialGrid> grids = spatialGrids.values().iterator();
+        while (grids.hasNext()) {
+            SpatialGrid<?> grid = grids.next();
+            if (Query.all(grid.getPositionClass()).equals(query)) {
+                grids.remove();
+            }
+        }
+        queryMatchers.remove(matcher);
+        emptyQueryMatchers.remove(matcher);
+        for (Class type : query.getReferencedTypes()) {
+            queryMatchersByType.get(getComponentTypeId(type)).remove(matcher);
+        }
+        matcher.getEntitySet().release();
+        metrics.setReleased(query);
+        return true;
+    }
+
+    /**
+     * Releases the cached sets that were not retrieved with {@link #getEntities(Query...)} during the given
+     * number of flushes, have no listener, and are not held by a {@link DeltaEncoder}, so they stop costing
+     * work on every change. Only call this when sets held across ticks are retrieved again at least once per
+     * the given number of flushes, a released set fails with an {@link IllegalStateException} on any later use.
+     * @param idleFlushes the number of flushes a set may go without being retrieved.
+     * @return the number of released sets.
+     */
+    public int releaseIdleSets(int idleFlushes) {
+        List<Query> idle = new ArrayList<Query>();
+        for (Map.Entry<Query, QueryMatcher> entry : entitySets.entrySet()) {
+            QueryMatcher matcher = entry.getValue();
+            EntitySet set = matcher.getEntitySet();
+            if (flushes - matcher.lastUsed >= idleFlushes && !set.hasListeners() && !set.isPinned()) {
+                idle.add(entry.getKey());
+            }
+        }
+        for (Query query : idle) {
+            releaseEntities(query);
+        }
+        return idle.size();
+    }
+
+    /**
+     * Retrieves the spatial grid of a position type, creating it with every entity that has the type.
+     * The grid is cached and kept up to date at each flush until it is released.
+     * @param positionClass the type of the position component.
+     * @param accessor reads the coordinates out of a position, only used when the grid is created.
+     * @param cellSize width and height of a cell, only used when the grid is created.
+     * @param <T> the type of the position component.
+     * @return the grid of the type.
+     * @see SpatialGrid
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Component> SpatialGrid<T> getSpatialGrid(Class<T> positionClass, PositionAccessor<T> accessor,
+                                                               float cellSize) {
+        SpatialGrid<T> grid = spatialGrids.get(positionClass);
+        if (grid == null) {
+            EntitySet positions = getEntities(positionClass);
+            grid = new SpatialGrid<T>(this, positionClass, accessor, cellSize, positions);
+            positions.addListener(grid.getListener());
+            spatialGrids.put(positionClass, grid);
         }
-        return entitySets.get(componentClass);
+        return grid;
+    }
+
+    /**
+     * Stops keeping the spatial grid of a position type up to date and drops it from the cache.
+     * @param positionClass the type of the position component.
+     * @return true if the grid was cached.
+     */
+    public boolean releaseSpatialGrid(Class<? extends Component> positionClass) {
+        SpatialGrid grid = spatialGrids.remove(positionClass);
+        return grid != null && removeListener(Query.all(positionClass), grid.getListener());
+    }
+
+    /**
+     * Adds a listener notified at each flush of the entities that gained, replaced, or lost a component type.
+     * @param componentClass the component type.
+     * @param listener the listener, called on the thread flushing the set changes.
+     * @see EntitySetListener
+     */
+    public void addListener(Class<? extends Component> componentClass, EntitySetListener listener) {
+        getEntities(Query.all(componentClass)).addListener(listener);
+    }
+
+    /**
+     * Adds a listener notified at each flush of the entities that joined, changed in, or left the set of a query.
+     * The set of the query is created and cached if needed.
+     * @param query the query.
+     * @param listener the listener, called on the thread flushing the set changes.
+     * @see EntitySetListener
+     */
+    public void addListener(Query query, EntitySetListener listener) {
+        getEntities(query).addListener(listener);
+    }
+
+    /**
+     * Removes a listener from the set of a query.
+     * @param query the query the listener was added with.
+     * @param listener the listener.
+     * @return true if the listener was added to the set of the query.
+     */
+    public boolean removeListener(Query query, EntitySetListener listener) {
+        QueryMatcher matcher = entitySets.get(query);
+        return matcher != null && matcher.getEntitySet().removeListener(listener);
     }
 
     /**
      * Retrieves all components of the given type.
+     * The collection is a read only view that stays up to date as components are set and removed.
+     * Components of a type with a registered store are created when iterated.
      * @param componentClass the component type to retrieve.
      * @param <T> the type of component.
      * @return the components of type T.
      */
     @SuppressWarnings("unchecked")
     public <T extends Component> Collection<T> getComponentsOfType(Class<T> componentClass) {
-        Collection<T> list = new ArrayList<T>();
-        for (Map<Class, Component> type : entityComponentMap.values()) {
-            for (Map.Entry<Class, Component> entry : type.entrySet()) {
-                if (entry.getKey().equals(componentClass)) {
-                    list.addAll((Collection<T>) type.values());
-                }
+        int typeId = getComponentTypeId(componentClass);
+        while (componentsOfType.size() <= typeId) {
+            componentsOfType.add(null);
+        }
+        ComponentsOfType<T> components = componentsOfType.get(typeId);
+        if (components == null) {
+            components = new ComponentsOfType<T>(this, componentClass, typeId, getArchetypesWithType(typeId));
+            componentsOfType.set(typeId, components);
+        }
+        return components;
+    }
+
+    /**
+     * Keeps a component type in a store instead of as component objects.
+     * The type must be registered before any entity has a component of the type.
+     * Components already in the store are given to the entities with their ids, entities that do not exist
+     * are created without a name.
+     * @param componentClass the component type.
+     * @param store the store for the type.
+     * @param <T> the type of component.
+     * @param <S> the type of store.
+     * @return the store.
+     */
+    public <T extends Component, S extends ComponentStore<T>> S registerComponentStore(Class<T> componentClass, S store) {
+        checkNotIterating();
+        int typeId = getComponentTypeId(componentClass);
+        if (getComponentStore(typeId) != null) {
+            throw new IllegalStateException("A store is already registered for " + componentClass.getName());
+        }
+        for (Archetype archetype : archetypeList) {
+            if (archetype.getMask().has(typeId)) {
+                throw new IllegalStateException("Stores must be registered before entities have a "
+                        + componentClass.getName());
+            }
+        }
+        if (typeId >= componentStores.length) {
+            componentStores = Arrays.copyOf(componentStores, typeId + 1);
+        }
+        componentStores[typeId] = store;
+        storedTypes = storedTypes.with(typeId);
+
+        // Adopt the components already in the store, such as those of a reopened file.
+        for (long id : store.getEntityIds()) {
+            Entity entity = getEntity(id);
+            if (entity == null) {
+                entity = createEntity(id, null);
             }
+            Archetype archetype = entity.archetype;
+            Archetype target = getArchetype(archetype.getMask().with(typeId));
+            archetype.moveTo(entity.row, target);
+            target.setTick(entity.row, typeId, changeTick);
+            updateSets(entity, archetype.getMask(), target.getMask(), typeId);
+        }
+        return store;
+    }
+
+    /**
+     * Keeps a {@link FlatComponent} type as arrays of primitives instead of as component objects.
+     * The type must be registered before any entity has a component of the type.
+     * @param componentClass the component type annotated with {@link FlatComponent}.
+     * @param <T> the type of component.
+     * @return the store holding the components, used to read and write fields in place.
+     */
+    public <T extends Component> FlatComponentStore<T> registerFlatComponent(Class<T> componentClass) {
+        return registerComponentStore(componentClass, new FlatComponentStore<T>(componentClass));
+    }
+
+    /**
+     * Publishes an immutable view of every entity and component for readers on other threads.
+     * Call once per tick from the thread that changes the system, usually after the set changes are flushed.
+     * Only components set since the previous view are copied, components changed in place without being set
+     * again keep the copy of an earlier view.
+     * @return the published view.
+     */
+    public WorldView publishView() {
+        checkNotIterating();
+        if (viewPublisher == null) {
+            viewPublisher = new ViewPublisher(this);
         }
-        return list;
+        WorldView view = viewPublisher.publish();
+        publishedView = view;
+        return view;
+    }
+
+    /**
+     * Retrieves the last published view, safe to call from any thread.
+     * @return the last view published by {@link #publishView()} or null if none was published.
+     */
+    public WorldView getPublishedView() {
+        return publishedView;
     }
 
     /**
      * Flushes set changes.
      */
     public void flushSetChanges() {
-        for (EntitySet set : entitySets.values()) {
+        checkNotIterating();
+        boolean measured = metrics != MetricsSink.NONE;
+        long start = measured ? System.nanoTime() : 0;
+
+        // Listeners see every change list and the removed components before anything is cleared.
+        for (QueryMatcher matcher : entitySets.values()) {
+            if (matcher.getEntitySet().hasListeners()) {
+                matcher.getEntitySet().dispatchChanges();
+            }
+        }
+        for (Map.Entry<Query, QueryMatcher> entry : entitySets.entrySet()) {
+            EntitySet set = entry.getValue().getEntitySet();
+            if (measured) {
+                metrics.setFlushed(entry.getKey(), set.size(), set.getAddedEntities().size(),
+                        set.getChangedEntities().size(), set.getRemovedEntities().size());
+            }
             set.flushChanges();
         }
+        freePendingComponents();
         removedEntityComponentMap.clear();
+        if (entitySlots != null) {
+            // No change list refers to the removed entities anymore so their slots can be reused.
+            entitySlots.releaseRemoved();
+        }
+        flushes++;
+        changeTick++;
+        if (measured) {
+            metrics.changesFlushed(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return the number of entities in the system.
+     */
+    int getEntityCount() {
+        return entitySlots != null ? entitySlots.size() : entitiesById.size();
+    }
+
+    /**
+     * @return the id the next created entity will get, or the number of slots handed out for recycled ids.
+     */
+    long getNextId() {
+        return entitySlots != null ? entitySlots.getBound() : counter.get();
+    }
+
+    /**
+     * Moves the id counter forward so no created entity gets an id below the given id.
+     * For recycled ids the slots below the given number are handed out, the unused ones as free slots.
+     * @param nextId the lowest id of the next created entity.
+     */
+    void advanceNextId(long nextId) {
+        if (entitySlots != null) {
+            entitySlots.advanceBound((int) nextId);
+            return;
+        }
+        long current = counter.get();
+        while (current < nextId && !counter.compareAndSet(current, nextId)) {
+            current = counter.get();
+        }
+    }
+
+    /**
+     * Retrieves an entity by its index in sparse arrays.
+     * @param index the id or the slot of a recycled id.
+     * @return the entity or null if none has the index.
+     */
+    Entity getEntityAtIndex(long index) {
+        return entitySlots != null ? entitySlots.getAtSlot(index) : entitiesById.get(index);
+    }
+
+    /**
+     * @return the archetypes in creation order, for reading only.
+     */
+    List<Archetype> getArchetypes() {
+        return archetypeList;
+    }
+
+    /**
+     * Finds the component classes by type id.
+     * @return the class of each type id.
+     */
+    Class[] getComponentClasses() {
+        Class[] classes = new Class[componentTypeIds.size()];
+        for (Map.Entry<Class, Integer> entry : componentTypeIds.entrySet()) {
+            classes[entry.getValue()] = entry.getKey();
+        }
+        return classes;
+    }
+
+    /**
+     * Adds an entity straight into an archetype without notifying the sets, used to restore entities in bulk.
+     * The components must be stored before {@link #addToSets(Archetype, int)} is called for the archetype,
+     * they are stamped with the current change tick.
+     * @param id the id of the entity, must not be in use.
+     * @param name the name of the entity, null for none.
+     * @param archetype the archetype of the entity.
+     * @return the restored entity.
+     */
+    Entity restoreEntity(long id, String name, Archetype archetype) {
+        checkNotIterating();
+        if (entitySlots != null) {
+            entitySlots.claim(id);
+        }
+        Entity entity = new Entity(id, name, idMode.indexOf(id));
+        indexEntity(entity);
+        int row = archetype.add(entity);
+        archetype.setTicks(row, changeTick);
+        return entity;
+    }
+
+    /**
+     * Adds the entities added to an archetype in bulk to every set whose query matches the archetype.
+     * @param archetype the archetype the entities were added to.
+     * @param firstRow the row of the first added entity.
+     */
+    void addToSets(Archetype archetype, int firstRow) {
+        for (int i = 0; i < queryMatchers.size(); i++) {
+            QueryMatcher matcher = queryMatchers.get(i);
+            if (matcher.matches(archetype.getMask())) {
+                EntitySet set = matcher.getEntitySet();
+                for (int row = firstRow; row < archetype.size(); row++) {
+                    set.addEntity(archetype.getEntity(row));
+                }
+            }
+        }
+    }
+
+    /**
+     * Retrieves the id of a component type, registering the type if needed.
+     * @param componentClass the class of the component.
+     * @return the id of the component type.
+     */
+    int getComponentTypeId(Class componentClass) {
+        Integer typeId = componentTypeIds.get(componentClass);
+        if (typeId == null) {
+            typeId = componentTypeIds.size();
+            componentTypeIds.put(componentClass, typeId);
+        }
+        return typeId;
+    }
+
+    /**
+     * Retrieves the store of a component type.
+     * @param typeId the id of the type.
+     * @return the store or null if the type is kept in archetype columns.
+     */
+    ComponentStore getComponentStore(int typeId) {
+        return typeId < componentStores.length ? componentStores[typeId] : null;
+    }
+
+    /**
+     * Retrieves the archetype for a set of component types, creating it if needed.
+     * @param mask the component types of the archetype.
+     * @return the archetype.
+     */
+    Archetype getArchetype(ComponentMask mask) {
+        Archetype archetype = archetypes.get(mask);
+        if (archetype == null) {
+            archetype = new Archetype(mask, mask.without(storedTypes));
+            archetypes.put(mask, archetype);
+            archetypeList.add(archetype);
+            for (int typeId = mask.nextTypeId(0); typeId >= 0; typeId = mask.nextTypeId(typeId + 1)) {
+                getArchetypesWithType(typeId).add(archetype);
+            }
+        }
+        return archetype;
+    }
+
+    /**
+     * Retrieves the pool of a type, creating a pool that only creates components if needed.
+     * @param componentClass the component type.
+     * @return the pool of the type.
+     */
+    @SuppressWarnings("unchecked")
+    private ComponentPool getPool(Class<? extends Component> componentClass) {
+        int typeId = getComponentTypeId(componentClass);
+        if (typeId >= pools.length) {
+            pools = Arrays.copyOf(pools, typeId + 1);
+        }
+        if (pools[typeId] == null) {
+            pools[typeId] = new ComponentPool(componentClass, 0);
+        }
+        return pools[typeId];
+    }
+
+    /**
+     * Copies a component for a template or another entity system.
+     * @param component the component to copy.
+     * @return the copy.
+     * @throws IllegalArgumentException if the copy is null or of another type.
+     */
+    static Component copyComponent(Component component) {
+        Component copy = component.copy();
+        if (copy == null || copy.getClass() != component.getClass()) {
+            throw new IllegalArgumentException(component.getClass().getName() + ".copy() returned "
+                    + (copy == null ? "null" : "a " + copy.getClass().getName()) + ", a real copy is needed.");
+        }
+        return copy;
+    }
+
+    /**
+     * Queues a component the system let go of to be freed at the next flush if its type is pooled.
+     * @param typeId the id of the component type.
+     * @param component the component let go of.
+     * @param replacement the component taking its place, a component set again is not freed.
+     */
+    private void release(int typeId, Component component, Component replacement) {
+        if (typeId < pools.length && pools[typeId] != null && pools[typeId].isPooling() && component != replacement) {
+            pendingFree.put(component, pools[typeId]);
+        }
+    }
+
+    /**
+     * Keeps a released component that is set to an entity again from being freed at the next flush.
+     * @param component the component being set.
+     */
+    private void reattach(Component component) {
+        if (!pendingFree.isEmpty()) {
+            pendingFree.remove(component);
+        }
+    }
+
+    /**
+     * Frees the released components, including the components of removed entities, into their pools.
+     */
+    private void freePendingComponents() {
+        for (Map.Entry<Component, ComponentPool> entry : pendingFree.entrySet()) {
+            entry.getValue().free(entry.getKey());
+        }
+        pendingFree.clear();
+    }
+
+    /**
+     * Finds the archetypes that may hold entities with every required type.
+     * @param all the required types.
+     * @return the archetypes with the required type held by the fewest archetypes, or every archetype if no
+     *         type is required.
+     */
+    private List<Archetype> getCandidateArchetypes(ComponentMask all) {
+        List<Archetype> candidates = archetypeList;
+        for (int typeId = all.nextTypeId(0); typeId >= 0; typeId = all.nextTypeId(typeId + 1)) {
+            List<Archetype> withType = getArchetypesWithType(typeId);
+            if (withType.size() < candidates.size()) {
+                candidates = withType;
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Retrieves the archetypes that have a type.
+     * @param typeId the id of the type.
+     * @return the archetypes with the type, kept up to date as archetypes are created.
+     */
+    private List<Archetype> getArchetypesWithType(int typeId) {
+        while (archetypesByType.size() <= typeId) {
+            archetypesByType.add(new ArrayList<Archetype>(4));
+        }
+        return archetypesByType.get(typeId);
+    }
+
+    /**
+     * Registers an entity with the indexes and the empty archetype.
+     * @param entity the entity to add.
+     */
+    private void addEntity(Entity entity) {
+        checkNotIterating();
+        indexEntity(entity);
+        emptyArchetype.add(entity);
+        for (int i = 0; i < emptyQueryMatchers.size(); i++) {
+            emptyQueryMatchers.get(i).getEntitySet().addEntity(entity);
+        }
+        metrics.entitiesCreated(1);
+    }
+
+    /**
+     * Adds an entity to the id and name indexes.
+     * An entity sharing a name with an entity of a higher sequential id takes its place in the name index so
+     * the earliest created entity wins however the entities are added. Recycled ids do not follow creation
+     * order so those entities are kept in the order they are added.
+     * @param entity the entity to index.
+     */
+    private void indexEntity(Entity entity) {
+        if (entitySlots != null) {
+            entitySlots.put(entity);
+        } else {
+            entitiesById.put(entity.getId(), entity);
+        }
+        String name = entity.getName();
+        if (name == null) {
+            return;
+        }
+        Entity indexed = entitiesByName.get(name);
+        if (indexed == null) {
+            entitiesByName.put(name, entity);
+            return;
+        }
+        List<Entity> duplicates = duplicateNames.get(name);
+        if (duplicates == null) {
+            duplicates = new ArrayList<Entity>(2);
+            duplicateNames.put(name, duplicates);
+        }
+        boolean byId = entitySlots == null;
+        if (byId && indexed.getId() > entity.getId()) {
+            entitiesByName.put(name, entity);
+            duplicates.add(0, indexed);
+        } else {
+            int index = duplicates.size();
+            while (byId && index > 0 && duplicates.get(index - 1).getId() > entity.getId()) {
+                index--;
+            }
+            duplicates.add(index, entity);
+        }
+    }
+
+    /**
+     * Removes an entity from the name index.
+     * @param entity the entity to remove.
+     */
+    private void removeName(Entity entity) {
+        String name = entity.getName();
+        if (name == null) {
+            return;
+        }
+        List<Entity> duplicates = duplicateNames.get(name);
+        if (entitiesByName.get(name) == entity) {
+            if (duplicates == null) {
+                entitiesByName.remove(name);
+            } else {
+                // Promote the next earliest entity with the same name.
+                entitiesByName.put(name, duplicates.remove(0));
+            }
+        } else if (duplicates != null) {
+            duplicates.remove(entity);
+        }
+        if (duplicates != null && duplicates.isEmpty()) {
+            duplicateNames.remove(name);
+        }
+    }
+
+    /**
+     * Updates the sets that refer to a type after it was set or removed on an entity.
+     * @param entity the entity that changed.
+     * @param oldMask the types of the entity before the change.
+     * @param newMask the types of the entity after the change.
+     * @param typeId the id of the type that was set or removed.
+     */
+    private void updateSets(Entity entity, ComponentMask oldMask, ComponentMask newMask, int typeId) {
+        if (typeId < queryMatchersByType.size()) {
+            List<QueryMatcher> matchers = queryMatchersByType.get(typeId);
+            for (int i = 0; i < matchers.size(); i++) {
+                matchers.get(i).update(entity, oldMask, newMask, typeId);
+            }
+        }
+    }
+
+    /**
+     * Resolves a query against the component types and registers the matcher for updates.
+     * @param query the query to resolve.
+     * @param entitySet the set the matcher keeps up to date.
+     * @return the matcher.
+     */
+    private QueryMatcher createMatcher(Query query, EntitySet entitySet) {
+        ComponentMask[] any = new ComponentMask[query.getAny().size()];
+        int i = 0;
+        for (Set<Class> group : query.getAny()) {
+            any[i++] = toMask(group);
+        }
+        QueryMatcher matcher = new QueryMatcher(toMask(query.getAll()), any, toMask(query.getExclude()), entitySet);
+        queryMatchers.add(matcher);
+        for (Class type : new HashSet<Class>(query.getReferencedTypes())) {
+            int typeId = getComponentTypeId(type);
+            while (queryMatchersByType.size() <= typeId) {
+                queryMatchersByType.add(new ArrayList<QueryMatcher>(2));
+            }
+            queryMatchersByType.get(typeId).add(matcher);
+        }
+        if (matcher.matches(ComponentMask.EMPTY)) {
+            emptyQueryMatchers.add(matcher);
+        }
+        return matcher;
+    }
+
+    /**
+     * Resolves component classes to a mask.
+     * @param types the classes to resolve.
+     * @return the mask of the classes.
+     */
+    private ComponentMask toMask(Set<Class> types) {
+        ComponentMask mask = ComponentMask.EMPTY;
+        for (Class type : types) {
+            mask = mask.with(getComponentTypeId(type));
+        }
+        return mask;
+    }
+
+    /**
+     * Starts a parallel iteration outside of the sets, such as a parallel phase of subsystems.
+     * Structural changes are rejected until every started iteration ended.
+     */
+    void enterParallelIteration() {
+        parallelIterations.incrementAndGet();
+    }
+
+    /**
+     * Ends a parallel iteration started with {@link #enterParallelIteration()}.
+     */
+    void exitParallelIteration() {
+        parallelIterations.decrementAndGet();
+    }
+
+    /**
+     * Rejects entities that were never added to this system, were removed from it or belong to another one.
+     * @param entity the entity to check.
+     */
+    private void checkOwned(Entity entity) {
+        if (!hasEntity(entity)) {
+            throw new IllegalArgumentException("Entity " + entity.getId() + " is not in this entity system.");
+        }
+    }
+
+    /**
+     * Rejects structural changes while a parallel iteration over a set of the system runs.
+     */
+    private void checkNotIterating() {
+        if (parallelIterations.get() != 0) {
+            throw new ConcurrentModificationException("Entity system cannot change during a parallel iteration, "
+                    + "record structural changes into a CommandBuffer.");
+        }
     }
 }
@@ -0,0 +1,54 @@
+package com.exploringlines.entitysystem;
+
+import java.util.Map;
+
+/**
+ * Attributes of an entity system exposed over JMX by {@link JmxMetricsSink}.
+ */
+public interface EntitySystemMXBean {
+    /**
+     * @return the number of created entities.
+     */
+    long getEntitiesCreated();
+
+    /**
+     * @return the number of removed entities.
+     */
+    long getEntitiesRemoved();
+
+    /**
+     * @return the number of components set by component type.
+     */
+    Map<String, Long> getComponentsSet();
+
+    /**
+     * @return the number of components removed by component type.
+     */
+    Map<String, Long> getComponentsRemoved();
+
+    /**
+     * @return the size of each cached set at the last flush by query.
+     */
+    Map<String, Integer> getSetSizes();
+
+    /**
+     * @return the number of entities added, changed, and removed in each cached set before the last
+     *         flush by query.
+     */
+    Map<String, Integer> getSetChurn();
+
+    /**
+     * @return the number of times the set changes were flushed.
+     */
+    long getFlushCount();
+
+    /**
+     * @return the total time spent flushing set changes.
+     */
+    long getFlushTotalNanos();
+
+    /**
+     * @return the highest time a flush of the set changes took.
+     */
+    long getFlushMaxNanos();
+}
@@ -0,0 +1,59 @@
+package com.exploringlines.entitysystem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A prefab of components to create entities from.
+ * Every created entity gets its own copy of each component made with {@link Component#copy()},
+ * so the components of the template are never shared with an entity.
+ */
+public class EntityTemplate {
+    /**
+     * Components given to each created entity, at most one per type.
+     */
+    private final List<Component> components = new ArrayList<Component>();
+
+    /**
+     * Initializes the template.
+     * @param components the components to give each created entity.
+     */
+    public EntityTemplate(Component... components) {
+        for (Component component : components) {
+            add(component);
+        }
+    }
+
+    /**
+     * Adds a component to the template, replacing a component of the same type.
+     * @param component the component to give each created entity.
+     * @return this template.
+     */
+    public EntityTemplate add(Component component) {
+        for (int i = 0; i < components.size(); i++) {
+            if (components.get(i).getClass() == component.getClass()) {
+                components.set(i, component);
+                return this;
+            }
+        }
+        components.add(component);
+        return this;
+    }
+
+    /**
+     * @return the components of the template as a read only list.
+     */
+    public List<Component> getComponents() {
+        return Collections.unmodifiableList(components);
+    }
+
+    /**
+     * Creates one entity from the template.
+     * @param entitySystem the entity system to create the entity in.
+     * @return the created entity.
+     */
+    public Entity instantiate(EntitySystem entitySystem) {
+        return entitySystem.createEntities(1, this)[0];
+    }
+}
@@ -0,0 +1,12 @@
+package com.exploringlines.entitysystem;
+
+/**
+ * Receives entities while iterating without allocating an iterator.
+ */
+public interface EntityVisitor {
+    /**
+     * Visits an entity.
+     * @param entity the entity visited.
+     */
+    void visit(Entity entity);
+}
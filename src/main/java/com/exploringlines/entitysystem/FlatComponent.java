@@ -0,0 +1,18 @@
+package com.exploringlines.entitysystem;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a component whose fields are only floats, ints, and longs so it can be kept in a
+ * {@link FlatComponentStore} registered with {@link EntitySystem#registerFlatComponent(Class)}.
+ * The component needs a constructor that takes no parameters.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface FlatComponent {
+}
@@ -0,0 +1,286 @@
+package com.exploringlines.entitysystem;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+
+/**
+ * Keeps the fields of a {@link FlatComponent} type as arrays of primitives, one array per field.
+ * Stored entities are packed so the data of every entity is contiguous and no component objects are kept.
+ * Fields can be read and written in place through field handles from {@link #floatField(String)},
+ * {@link #intField(String)}, and {@link #longField(String)}, which neither allocates nor marks the entity
+ * as changed in entity sets.
+ * @param <T> the type of component stored.
+ */
+public class FlatComponentStore<T extends Component> implements ComponentStore<T> {
+    /**
+     * Starting capacity of the field arrays.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Fields of the component type.
+     */
+    private final ComponentLayout<T> layout;
+
+    /**
+     * Entities with a stored component, the index of an entity is the index of its data in the field arrays.
+     */
+    private final SparseEntityList entities = new SparseEntityList();
+
+    /**
+     * Values of each float field indexed by field then entity index.
+     */
+    private float[][] floats;
+
+    /**
+     * Values of each int field indexed by field then entity index.
+     */
+    private int[][] ints;
+
+    /**
+     * Values of each long field indexed by field then entity index.
+     */
+    private long[][] longs;
+
+    /**
+     * Number of entities the field arrays can hold.
+     */
+    private int capacity = INITIAL_CAPACITY;
+
+    /**
+     * Initializes the store.
+     * @param componentClass the component type to store, must be annotated with {@link FlatComponent}.
+     */
+    public FlatComponentStore(Class<T> componentClass) {
+        layout = new ComponentLayout<T>(componentClass);
+        floats = new float[layout.getFloatFields().length][capacity];
+        ints = new int[layout.getIntFields().length][capacity];
+        longs = new long[layout.getLongFields().length][capacity];
+    }
+
+    @Override
+    public void set(Entity entity, T component) {
+        int index = entities.indexOf(entity);
+        if (index < 0) {
+            if (entities.size() == capacity) {
+                grow();
+            }
+            entities.add(entity);
+            index = entities.size() - 1;
+        }
+        try {
+            Field[] fields = layout.getFloatFields();
+            for (int i = 0; i < fields.length; i++) {
+                floats[i][index] = fields[i].getFloat(component);
+            }
+            fields = layout.getIntFields();
+            for (int i = 0; i < fields.length; i++) {
+                ints[i][index] = fields[i].getInt(component);
+            }
+            fields = layout.getLongFields();
+            for (int i = 0; i < fields.length; i++) {
+                longs[i][index] = fields[i].getLong(component);
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Could not read " + layout.getComponentClass().getName(), e);
+        }
+    }
+
+    /**
+     * Creates a detached copy of the stored data, a new object on every call.
+     * Writes to the copy are lost unless it is set again with {@link EntitySystem#setComponent(Entity, Component)}.
+     * Hot paths read into a reused component with {@link #readInto(Entity, Component)} or use the field handles.
+     * @param entity the entity to retrieve the component of.
+     * @return a new component or null if the entity has none stored.
+     */
+    @Override
+    public T get(Entity entity) {
+        if (!entities.contains(entity)) {
+            return null;
+        }
+        T component = layout.newInstance();
+        readInto(entity, component);
+        return component;
+    }
+
+    @Override
+    public boolean readInto(Entity entity, T target) {
+        int index = entities.indexOf(entity);
+        if (index < 0) {
+            return false;
+        }
+        try {
+            Field[] fields = layout.getFloatFields();
+            for (int i = 0; i < fields.length; i++) {
+                fields[i].setFloat(target, floats[i][index]);
+            }
+            fields = layout.getIntFields();
+            for (int i = 0; i < fields.length; i++) {
+                fields[i].setInt(target, ints[i][index]);
+            }
+            fields = layout.getLongFields();
+            for (int i = 0; i < fields.length; i++) {
+                fields[i].setLong(target, longs[i][index]);
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Could not write " + layout.getComponentClass().getName(), e);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean contains(Entity entity) {
+        return entities.contains(entity);
+    }
+
+    @Override
+    public boolean remove(Entity entity) {
+        int index = entities.indexOf(entity);
+        if (index < 0) {
+            return false;
+        }
+        // Mirror the move of the last entity into the removed index.
+        int last = entities.size() - 1;
+        for (float[] values : floats) {
+            values[index] = values[last];
+        }
+        for (int[] values : ints) {
+            values[index] = values[last];
+        }
+        for (long[] values : longs) {
+            values[index] = values[last];
+        }
+        entities.remove(entity);
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return entities.size();
+    }
+
+    @Override
+    public long[] getEntityIds() {
+        long[] ids = new long[entities.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = entities.get(i).getId();
+        }
+        return ids;
+    }
+
+    /**
+     * Finds the handle of a float field.
+     * @param name the name of the field.
+     * @return the handle to pass to {@link #getFloat(Entity, int)} and {@link #setFloat(Entity, int, float)}.
+     */
+    public int floatField(String name) {
+        return ComponentLayout.indexOf(layout.getFloatFields(), name);
+    }
+
+    /**
+     * Finds the handle of an int field.
+     * @param name the name of the field.
+     * @return the handle to pass to {@link #getInt(Entity, int)} and {@link #setInt(Entity, int, int)}.
+     */
+    public int intField(String name) {
+        return ComponentLayout.indexOf(layout.getIntFields(), name);
+    }
+
+    /**
+     * Finds the handle of a long field.
+     * @param name the name of the field.
+     * @return the handle to pass to {@link #getLong(Entity, int)} and {@link #setLong(Entity, int, long)}.
+     */
+    public int longField(String name) {
+        return ComponentLayout.indexOf(layout.getLongFields(), name);
+    }
+
+    /**
+     * Reads a float field.
+     * @param entity the entity with the component.
+     * @param field the handle of the field.
+     * @return the value of the field.
+     */
+    public float getFloat(Entity entity, int field) {
+        return floats[field][indexOf(entity)];
+    }
+
+    /**
+     * Writes a float field in place.
+     * @param entity the entity with the component.
+     * @param field the handle of the field.
+     * @param value the new value.
+     */
+    public void setFloat(Entity entity, int field, float value) {
+        floats[field][indexOf(entity)] = value;
+    }
+
+    /**
+     * Reads an int field.
+     * @param entity the entity with the component.
+     * @param field the handle of the field.
+     * @return the value of the field.
+     */
+    public int getInt(Entity entity, int field) {
+        return ints[field][indexOf(entity)];
+    }
+
+    /**
+     * Writes an int field in place.
+     * @param entity the entity with the component.
+     * @param field the handle of the field.
+     * @param value the new value.
+     */
+    public void setInt(Entity entity, int field, int value) {
+        ints[field][indexOf(entity)] = value;
+    }
+
+    /**
+     * Reads a long field.
+     * @param entity the entity with the component.
+     * @param field the handle of the field.
+     * @return the value of the field.
+     */
+    public long getLong(Entity entity, int field) {
+        return longs[field][indexOf(entity)];
+    }
+
+    /**
+     * Writes a long field in place.
+     * @param entity the entity with the component.
+     * @param field the handle of the field.
+     * @param value the new value.
+     */
+    public void setLong(Entity entity, int field, long value) {
+        longs[field][indexOf(entity)] = value;
+    }
+
+    /**
+     * Finds the data index of an entity.
+     * @param entity the entity to find.
+     * @return the index of the entity.
+     */
+    private int indexOf(Entity entity) {
+        int index = entities.indexOf(entity);
+        if (index < 0) {
+            throw new IllegalArgumentException("No component stored for " + entity);
+        }
+        return index;
+    }
+
+    /**
+     * Doubles the capacity of the field arrays.
+     */
+    private void grow() {
+        capacity *= 2;
+        for (int i = 0; i < floats.length; i++) {
+            floats[i] = Arrays.copyOf(floats[i], capacity);
+        }
+        for (int i = 0; i < ints.length; i++) {
+            ints[i] = Arrays.copyOf(ints[i], capacity);
+        }
+        for (int i = 0; i < longs.length; i++) {
+            longs[i] = Arrays.copyOf(longs[i], capacity);
+        }
+    }
+}
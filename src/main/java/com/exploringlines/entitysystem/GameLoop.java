@@ -0,0 +1,327 @@
+package com.exploringlines.entitysystem;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs subsystems on a fixed simulation step.
+ * Elapsed time is accumulated and consumed one step at a time, at most a capped number of steps per call so
+ * a long stall does not make the loop fall further behind. Each subsystem runs at its own frequency and gets
+ * the simulated time since it last ran. Subsystems run in order of descending priority, ties in the order
+ * they were added. When a step goes over its time budget, the remaining subsystems with a priority below
+ * {@link #PRIORITY_NORMAL} are deferred to the next step, but never twice in a row.
+ * Each step ends by cleaning up the subsystems that ran and flushing the set changes.
+ */
+public class GameLoop {
+    /**
+     * Priority of subsystems that are never deferred, subsystems below it are deferred when over budget.
+     */
+    public static final int PRIORITY_NORMAL = 0;
+
+    /**
+     * Entity system flushed at the end of each step.
+     */
+    private final EntitySystem entitySystem;
+
+    /**
+     * Length of a step in seconds.
+     */
+    private final float step;
+
+    /**
+     * Length of a step in nanoseconds.
+     */
+    private final long stepNanos;
+
+    /**
+     * Subsystems in run order.
+     */
+    private final List<LoopSubsystem> subsystems = new ArrayList<LoopSubsystem>();
+
+    /**
+     * Most steps run by one call to {@link #advance(long)}.
+     */
+    private int maxCatchUpSteps = 5;
+
+    /**
+     * Time budget of a step in nanoseconds, zero for none.
+     */
+    private long stepBudgetNanos = 0;
+
+    /**
+     * Elapsed time not yet simulated in nanoseconds.
+     */
+    private long accumulator = 0;
+
+    /**
+     * Duration of each step.
+     */
+    private final Histogram stepTimes = new Histogram();
+
+    /**
+     * Number of steps that went over the budget.
+     */
+    private long overruns = 0;
+
+    /**
+     * Number of times a subsystem was deferred.
+     */
+    private long deferrals = 0;
+
+    /**
+     * Number of steps dropped because the loop was too far behind.
+     */
+    private long droppedSteps = 0;
+
+    /**
+     * True while {@link #run()} should keep running.
+     */
+    private volatile boolean running = false;
+
+    /**
+     * Initializes the loop.
+     * @param entitySystem the entity system to flush at the end of each step.
+     * @param stepsPerSecond the number of simulation steps per second.
+     */
+    public GameLoop(EntitySystem entitySystem, float stepsPerSecond) {
+        if (!(stepsPerSecond > 0)) {
+            throw new IllegalArgumentException("Steps per second must be positive: " + stepsPerSecond);
+        }
+        this.entitySystem = entitySystem;
+        this.step = 1 / stepsPerSecond;
+        this.stepNanos = (long) (TimeUnit.SECONDS.toNanos(1) / (double) stepsPerSecond);
+    }
+
+    /**
+     * Adds a subsystem run every step with the normal priority.
+     * @param subsystem the subsystem.
+     */
+    public void addSubsystem(Subsystem subsystem) {
+        addSubsystem(subsystem, 0, PRIORITY_NORMAL);
+    }
+
+    /**
+     * Adds a subsystem.
+     * @param subsystem the subsystem.
+     * @param hertz the number of times per second to run the subsystem, rounded to a whole number of steps,
+     *              zero or more than the step rate to run every step.
+     * @param priority the priority, subsystems below {@link #PRIORITY_NORMAL} may be deferred.
+     */
+    public void addSubsystem(Subsystem subsystem, float hertz, int priority) {
+        int interval = hertz > 0 ? Math.max(1, Math.round(1 / (hertz * step))) : 1;
+        LoopSubsystem added = new LoopSubsystem(subsystem, interval, priority);
+        int index = subsystems.size();
+        while (index > 0 && subsystems.get(index - 1).priority < priority) {
+            index--;
+        }
+        subsystems.add(index, added);
+    }
+
+    /**
+     * Removes a subsystem without destroying it.
+     * @param subsystem the subsystem.
+     * @return true if the subsystem was added.
+     */
+    public boolean removeSubsystem(Subsystem subsystem) {
+        for (int i = 0; i < subsystems.size(); i++) {
+            if (subsystems.get(i).subsystem == subsystem) {
+                subsystems.remove(i);
+                entitySystem.getMetricsSink().subsystemRemoved(subsystem);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sets the most steps run by one call to {@link #advance(long)}, the rest of the elapsed time is dropped.
+     * @param maxCatchUpSteps the number of steps, at least one.
+     */
+    public void setMaxCatchUpSteps(int maxCatchUpSteps) {
+        if (maxCatchUpSteps < 1) {
+            throw new IllegalArgumentException("At least one step must be allowed: " + maxCatchUpSteps);
+        }
+        this.maxCatchUpSteps = maxCatchUpSteps;
+    }
+
+    /**
+     * Sets the time a step may take before low priority subsystems are deferred.
+     * @param budget the budget, zero for none.
+     * @param unit the unit of the budget.
+     */
+    public void setStepBudget(long budget, TimeUnit unit) {
+        this.stepBudgetNanos = unit.toNanos(budget);
+    }
+
+    /**
+     * Runs the steps that fit in the elapsed time.
+     * @param elapsedNanos the real time elapsed since the last call.
+     * @return the number of steps run.
+     */
+    public int advance(long elapsedNanos) {
+        accumulator += elapsedNanos;
+        int steps = 0;
+        while (accumulator >= stepNanos && steps < maxCatchUpSteps) {
+            step();
+            accumulator -= stepNanos;
+            steps++;
+        }
+        if (accumulator >= stepNanos) {
+            droppedSteps += accumulator / stepNanos;
+            accumulator %= stepNanos;
+        }
+        return steps;
+    }
+
+    /**
+     * Runs one simulation step.
+     */
+    public void step() {
+        MetricsSink metrics = entitySystem.getMetricsSink();
+        long start = System.nanoTime();
+        boolean overBudget = false;
+        for (int i = 0; i < subsystems.size(); i++) {
+            LoopSubsystem scheduled = subsystems.get(i);
+            scheduled.stepsSinceRun++;
+            scheduled.ran = false;
+            if (scheduled.stepsSinceRun < scheduled.interval) {
+                continue;
+            }
+            if (!overBudget && stepBudgetNanos > 0) {
+                overBudget = System.nanoTime() - start > stepBudgetNanos;
+            }
+            if (overBudget && scheduled.priority < PRIORITY_NORMAL && !scheduled.deferred) {
+                scheduled.deferred = true;
+                deferrals++;
+                continue;
+            }
+            entitySystem.advanceChangeTick();
+            SubsystemScheduler.updateSubsystem(scheduled.subsystem, scheduled.stepsSinceRun * step, metrics);
+            scheduled.stepsSinceRun = 0;
+            scheduled.deferred = false;
+            scheduled.ran = true;
+        }
+        for (int i = 0; i < subsystems.size(); i++) {
+            LoopSubsystem scheduled = subsystems.get(i);
+            if (!scheduled.ran) {
+                continue;
+            }
+            if (metrics == MetricsSink.NONE) {
+                scheduled.subsystem.cleanupSubsystem();
+            } else {
+                long cleanupStart = System.nanoTime();
+                scheduled.subsystem.cleanupSubsystem();
+                metrics.subsystemCleanedUp(scheduled.subsystem, System.nanoTime() - cleanupStart);
+            }
+        }
+        entitySystem.flushSetChanges();
+        long duration = System.nanoTime() - start;
+        stepTimes.record(duration);
+        if (stepBudgetNanos > 0 && duration > stepBudgetNanos) {
+            overruns++;
+        }
+    }
+
+    /**
+     * Runs steps in real time on the calling thread until {@link #stop()} is called, sleeping between steps.
+     */
+    public void run() {
+        running = true;
+        long last = System.nanoTime();
+        while (running) {
+            long now = System.nanoTime();
+            advance(now - last);
+            last = now;
+            long wait = stepNanos - accumulator - (System.nanoTime() - now);
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+    }
+
+    /**
+     * Makes {@link #run()} return after its current step, safe to call from any thread.
+     */
+    public void stop() {
+        running = false;
+    }
+
+    /**
+     * @return the durations of the steps run so far.
+     */
+    public Histogram getStepTimes() {
+        return stepTimes;
+    }
+
+    /**
+     * @return the number of steps that went over the budget.
+     */
+    public long getOverrunCount() {
+        return overruns;
+    }
+
+    /**
+     * @return the number of times a subsystem was deferred to the next step.
+     */
+    public long getDeferralCount() {
+        return deferrals;
+    }
+
+    /**
+     * @return the number of steps dropped because more steps were due than the catch up limit.
+     */
+    public long getDroppedStepCount() {
+        return droppedSteps;
+    }
+
+    /**
+     * A subsystem with its frequency and priority.
+     */
+    private static final class LoopSubsystem {
+        /**
+         * The subsystem.
+         */
+        final Subsystem subsystem;
+
+        /**
+         * Number of steps between runs.
+         */
+        final int interval;
+
+        /**
+         * The priority.
+         */
+        final int priority;
+
+        /**
+         * Number of steps since the subsystem last ran.
+         */
+        int stepsSinceRun;
+
+        /**
+         * True if the subsystem was deferred in the previous step.
+         */
+        boolean deferred = false;
+
+        /**
+         * True if the subsystem ran in the current step.
+         */
+        boolean ran = false;
+
+        /**
+         * Initializes the subsystem.
+         * @param subsystem the subsystem.
+         * @param interval number of steps between runs.
+         * @param priority the priority.
+         */
+        LoopSubsystem(Subsystem subsystem, int interval, int priority) {
+            this.subsystem = subsystem;
+            this.interval = interval;
+            this.priority = priority;
+            // Run in the first step.
+            this.stepsSinceRun = interval - 1;
+        }
+    }
+}
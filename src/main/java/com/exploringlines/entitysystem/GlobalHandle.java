@@ -0,0 +1,31 @@
+package com.exploringlines.entitysystem;
+
+/**
+ * Handle of an entity in a {@link ShardedWorld} that stays the same when the entity moves between shards.
+ * Every entity created through the world has one, it is copied along with the other components.
+ */
+public class GlobalHandle implements Component {
+    /**
+     * The handle.
+     */
+    public long handle;
+
+    /**
+     * Initializes the component.
+     */
+    public GlobalHandle() {
+    }
+
+    /**
+     * Initializes the component.
+     * @param handle the handle.
+     */
+    public GlobalHandle(long handle) {
+        this.handle = handle;
+    }
+
+    @Override
+    public Component copy() {
+        return new GlobalHandle(handle);
+    }
+}
@@ -0,0 +1,141 @@
+package com.exploringlines.entitysystem;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of durations in nanoseconds.
+ * Values are counted in buckets of eight steps per power of two, so percentiles are accurate to within
+ * one eighth of the value. Recording is safe from any number of threads.
+ */
+public final class Histogram implements HistogramMXBean {
+    /**
+     * Number of bits of a value below its highest bit that select the step within a power of two.
+     */
+    private static final int STEP_BITS = 3;
+
+    /**
+     * Number of steps per power of two.
+     */
+    private static final int STEPS = 1 << STEP_BITS;
+
+    /**
+     * Count of values in each bucket.
+     */
+    private final AtomicLongArray buckets = new AtomicLongArray((64 - STEP_BITS) * STEPS);
+
+    /**
+     * Number of recorded values.
+     */
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * Sum of the recorded values.
+     */
+    private final AtomicLong total = new AtomicLong();
+
+    /**
+     * Highest recorded value.
+     */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value.
+     * @param nanos the value, negative values are recorded as zero.
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        buckets.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        total.addAndGet(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    @Override
+    public long getCount() {
+        return count.get();
+    }
+
+    @Override
+    public long getTotalNanos() {
+        return total.get();
+    }
+
+    @Override
+    public double getMeanNanos() {
+        long n = count.get();
+        return n == 0 ? 0 : total.get() / (double) n;
+    }
+
+    @Override
+    public long getMaxNanos() {
+        return max.get();
+    }
+
+    @Override
+    public long getMedianNanos() {
+        return getPercentile(0.5);
+    }
+
+    @Override
+    public long get90thPercentileNanos() {
+        return getPercentile(0.9);
+    }
+
+    @Override
+    public long get99thPercentileNanos() {
+        return getPercentile(0.99);
+    }
+
+    /**
+     * Finds the value below which a fraction of the recorded values fall.
+     * @param fraction the fraction between 0 and 1.
+     * @return the highest value of the bucket holding the percentile, at most the highest value recorded.
+     */
+    public long getPercentile(double fraction) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * n));
+        long seen = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Finds the bucket of a value.
+     * @param value the value, not negative.
+     * @return the index of the bucket.
+     */
+    static int bucketOf(long value) {
+        if (value < STEPS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int step = (int) (value >>> (exponent - STEP_BITS)) & (STEPS - 1);
+        return (exponent - STEP_BITS + 1) * STEPS + step;
+    }
+
+    /**
+     * Finds the highest value of a bucket.
+     * @param bucket the index of the bucket.
+     * @return the highest value counted in the bucket.
+     */
+    static long upperBound(int bucket) {
+        if (bucket < STEPS) {
+            return bucket;
+        }
+        int exponent = bucket / STEPS + STEP_BITS - 1;
+        long lower = (long) (STEPS | (bucket & (STEPS - 1))) << (exponent - STEP_BITS);
+        return lower + (1L << (exponent - STEP_BITS)) - 1;
+    }
+}
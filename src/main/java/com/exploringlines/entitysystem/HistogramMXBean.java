@@ -0,0 +1,41 @@
+package com.exploringlines.entitysystem;
+
+/**
+ * Attributes of a {@link Histogram} exposed over JMX.
+ */
+public interface HistogramMXBean {
+    /**
+     * @return the number of recorded values.
+     */
+    long getCount();
+
+    /**
+     * @return the sum of the recorded values.
+     */
+    long getTotalNanos();
+
+    /**
+     * @return the mean of the recorded values.
+     */
+    double getMeanNanos();
+
+    /**
+     * @return the highest recorded value.
+     */
+    long getMaxNanos();
+
+    /**
+     * @return the median of the recorded values.
+     */
+    long getMedianNanos();
+
+    /**
+     * @return the 90th percentile of the recorded values.
+     */
+    long get90thPercentileNanos();
+
+    /**
+     * @return the 99th percentile of the recorded values.
+     */
+    long get99thPercentileNanos();
+}
@@ -0,0 +1,333 @@
+package com.exploringlines.entitysystem;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics sink that exposes the measurements of an entity system as MXBeans on the platform MBean server.
+ * The entity system is registered as {@code com.exploringlines.entitysystem:type=EntitySystem,name=<name>}
+ * and the update and cleanup timings of each subsystem as histograms under
+ * {@code type=Subsystem,world=<name>,name=<subsystem>,phase=<update|cleanup>}, registered when the
+ * subsystem first reports and unregistered when it is removed from its loop or scheduler.
+ */
+public class JmxMetricsSink implements MetricsSink, EntitySystemMXBean {
+    /**
+     * JMX domain of the registered beans.
+     */
+    public static final String DOMAIN = "com.exploringlines.entitysystem";
+
+    /**
+     * Name of the entity system in the object names.
+     */
+    private final String name;
+
+    /**
+     * Server the beans are registered with.
+     */
+    private final MBeanServer server;
+
+    /**
+     * Names of the registered beans.
+     */
+    private final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+    /**
+     * Number of created entities.
+     */
+    private final LongAdder entitiesCreated = new LongAdder();
+
+    /**
+     * Number of removed entities.
+     */
+    private final LongAdder entitiesRemoved = new LongAdder();
+
+    /**
+     * Number of components set by component type.
+     */
+    private final ConcurrentMap<Class, LongAdder> componentsSet = new ConcurrentHashMap<Class, LongAdder>();
+
+    /**
+     * Number of components removed by component type.
+     */
+    private final ConcurrentMap<Class, LongAdder> componentsRemoved = new ConcurrentHashMap<Class, LongAdder>();
+
+    /**
+     * Size of each cached set at the last flush.
+     */
+    private final ConcurrentMap<Query, Integer> setSizes = new ConcurrentHashMap<Query, Integer>();
+
+    /**
+     * Churn of each cached set before the last flush.
+     */
+    private final ConcurrentMap<Query, Integer> setChurn = new ConcurrentHashMap<Query, Integer>();
+
+    /**
+     * Durations of the flushes of set changes.
+     */
+    private final Histogram flushes = new Histogram();
+
+    /**
+     * Update timings of each subsystem.
+     */
+    private final ConcurrentMap<Subsystem, Histogram> updates = new ConcurrentHashMap<Subsystem, Histogram>();
+
+    /**
+     * Cleanup timings of each subsystem.
+     */
+    private final ConcurrentMap<Subsystem, Histogram> cleanups = new ConcurrentHashMap<Subsystem, Histogram>();
+
+    /**
+     * Initializes the sink and registers the bean of the entity system on the platform MBean server.
+     * @param name the name of the entity system, unique among the registered systems.
+     * @throws IllegalStateException if the bean cannot be registered.
+     */
+    public JmxMetricsSink(String name) {
+        this(name, ManagementFactory.getPlatformMBeanServer());
+    }
+
+    /**
+     * Initializes the sink and registers the bean of the entity system.
+     * @param name the name of the entity system, unique among the registered systems.
+     * @param server the server to register the beans with.
+     * @throws IllegalStateException if the bean cannot be registered.
+     */
+    public JmxMetricsSink(String name, MBeanServer server) {
+        this.name = name;
+        this.server = server;
+        register("type=EntitySystem,name=" + ObjectName.quote(name), this);
+        register("type=Flush,world=" + ObjectName.quote(name), flushes);
+    }
+
+    /**
+     * Unregisters every bean registered by the sink.
+     */
+    public synchronized void unregister() {
+        for (ObjectName objectName : registered) {
+            try {
+                server.unregisterMBean(objectName);
+            } catch (JMException e) {
+                // Already unregistered by someone else.
+            }
+        }
+        registered.clear();
+    }
+
+    @Override
+    public void subsystemUpdated(Subsystem subsystem, long nanos) {
+        histogram(updates, subsystem, "update").record(nanos);
+    }
+
+    @Override
+    public void subsystemCleanedUp(Subsystem subsystem, long nanos) {
+        histogram(cleanups, subsystem, "cleanup").record(nanos);
+    }
+
+    @Override
+    public void subsystemRemoved(Subsystem subsystem) {
+        if (updates.remove(subsystem) != null) {
+            unregister(subsystemProperties(subsystem, "update"));
+        }
+        if (cleanups.remove(subsystem) != null) {
+            unregister(subsystemProperties(subsystem, "cleanup"));
+        }
+    }
+
+    @Override
+    public void entitiesCreated(int count) {
+        entitiesCreated.add(count);
+    }
+
+    @Override
+    public void entityRemoved() {
+        entitiesRemoved.increment();
+    }
+
+    @Override
+    public void componentsSet(Class<? extends Component> componentClass, int count) {
+        counter(componentsSet, componentClass).add(count);
+    }
+
+    @Override
+    public void componentRemoved(Class<? extends Component> componentClass) {
+        counter(componentsRemoved, componentClass).increment();
+    }
+
+    @Override
+    public void setFlushed(Query query, int size, int added, int changed, int removed) {
+        setSizes.put(query, size);
+        setChurn.put(query, added + changed + removed);
+    }
+
+    @Override
+    public void setReleased(Query query) {
+        setSizes.remove(query);
+        setChurn.remove(query);
+    }
+
+    @Override
+    public void changesFlushed(long nanos) {
+        flushes.record(nanos);
+    }
+
+    @Override
+    public long getEntitiesCreated() {
+        return entitiesCreated.sum();
+    }
+
+    @Override
+    public long getEntitiesRemoved() {
+        return entitiesRemoved.sum();
+    }
+
+    @Override
+    public Map<String, Long> getComponentsSet() {
+        return sums(componentsSet);
+    }
+
+    @Override
+    public Map<String, Long> getComponentsRemoved() {
+        return sums(componentsRemoved);
+    }
+
+    @Override
+    public Map<String, Integer> getSetSizes() {
+        return byQuery(setSizes);
+    }
+
+    @Override
+    public Map<String, Integer> getSetChurn() {
+        return byQuery(setChurn);
+    }
+
+    @Override
+    public long getFlushCount() {
+        return flushes.getCount();
+    }
+
+    @Override
+    public long getFlushTotalNanos() {
+        return flushes.getTotalNanos();
+    }
+
+    @Override
+    public long getFlushMaxNanos() {
+        return flushes.getMaxNanos();
+    }
+
+    /**
+     * Retrieves the histogram of a subsystem, registering it on first use.
+     * @param histograms the histograms of the phase by subsystem.
+     * @param subsystem the subsystem.
+     * @param phase the name of the phase in the object name.
+     * @return the histogram.
+     */
+    private Histogram histogram(ConcurrentMap<Subsystem, Histogram> histograms, Subsystem subsystem, String phase) {
+        Histogram histogram = histograms.get(subsystem);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = histograms.putIfAbsent(subsystem, created);
+            if (histogram == null) {
+                histogram = created;
+                register(subsystemProperties(subsystem, phase), histogram);
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Builds the key properties of the histogram of a subsystem.
+     * @param subsystem the subsystem.
+     * @param phase the name of the phase in the object name.
+     * @return the key properties.
+     */
+    private String subsystemProperties(Subsystem subsystem, String phase) {
+        String subsystemName = subsystem.getClass().getName() + "@"
+                + Integer.toHexString(System.identityHashCode(subsystem));
+        return "type=Subsystem,world=" + ObjectName.quote(name) + ",name=" + ObjectName.quote(subsystemName)
+                + ",phase=" + phase;
+    }
+
+    /**
+     * Registers a bean.
+     * @param properties the key properties of the object name.
+     * @param bean the bean.
+     * @throws IllegalStateException if the bean cannot be registered.
+     */
+    private synchronized void register(String properties, Object bean) {
+        try {
+            ObjectName objectName = new ObjectName(DOMAIN + ":" + properties);
+            server.registerMBean(bean, objectName);
+            registered.add(objectName);
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register " + properties, e);
+        }
+    }
+
+    /**
+     * Unregisters a bean registered by the sink.
+     * @param properties the key properties of the object name.
+     */
+    private synchronized void unregister(String properties) {
+        try {
+            ObjectName objectName = new ObjectName(DOMAIN + ":" + properties);
+            if (registered.remove(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            // Already unregistered by someone else.
+        }
+    }
+
+    /**
+     * Retrieves the counter of a component type, creating it on first use.
+     * @param counters the counters by type.
+     * @param componentClass the type.
+     * @return the counter.
+     */
+    private static LongAdder counter(ConcurrentMap<Class, LongAdder> counters, Class componentClass) {
+        LongAdder counter = counters.get(componentClass);
+        if (counter == null) {
+            LongAdder created = new LongAdder();
+            counter = counters.putIfAbsent(componentClass, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Sums counters by type name.
+     * @param counters the counters by type.
+     * @return the sum of each counter by type name, sorted by name.
+     */
+    private static Map<String, Long> sums(ConcurrentMap<Class, LongAdder> counters) {
+        Map<String, Long> sums = new TreeMap<String, Long>();
+        for (Map.Entry<Class, LongAdder> entry : counters.entrySet()) {
+            sums.put(entry.getKey().getName(), entry.getValue().sum());
+        }
+        return sums;
+    }
+
+    /**
+     * Keys values by the text of their query.
+     * @param values the values by query.
+     * @return the values by query text, sorted by text.
+     */
+    private static Map<String, Integer> byQuery(ConcurrentMap<Query, Integer> values) {
+        Map<String, Integer> byQuery = new TreeMap<String, Integer>();
+        for (Map.Entry<Query, Integer> entry : values.entrySet()) {
+            byQuery.put(entry.getKey().toString(), entry.getValue());
+        }
+        return byQuery;
+    }
+}
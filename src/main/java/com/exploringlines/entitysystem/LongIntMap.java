@@ -0,0 +1,151 @@
+package com.exploringlines.entitysystem;
+
+/**
+ * Open addressing hash map from primitive longs to non negative ints so neither side is boxed.
+ */
+final class LongIntMap {
+    /**
+     * Starting number of buckets, must be a power of two.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Keys of each bucket.
+     */
+    private long[] keys = new long[INITIAL_CAPACITY];
+
+    /**
+     * Values plus one of each bucket, zero when the bucket is empty.
+     */
+    private int[] values = new int[INITIAL_CAPACITY];
+
+    /**
+     * Number of entries in the map.
+     */
+    private int size = 0;
+
+    /**
+     * Retrieves a value.
+     * @param key the key of the value.
+     * @return the value or -1 if none is mapped.
+     */
+    int get(long key) {
+        int mask = values.length - 1;
+        for (int i = bucket(key, mask); values[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return values[i] - 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Maps a value to a key.
+     * @param key the key of the value.
+     * @param value the value, must not be negative.
+     * @return the previous value or -1 if there was none.
+     */
+    int put(long key, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative values are not supported.");
+        }
+        int mask = values.length - 1;
+        int i = bucket(key, mask);
+        for (; values[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                int previous = values[i] - 1;
+                values[i] = value + 1;
+                return previous;
+            }
+        }
+        keys[i] = key;
+        values[i] = value + 1;
+        size++;
+        // Keep the load factor at or below one half.
+        if (size * 2 > values.length) {
+            resize(values.length * 2);
+        }
+        return -1;
+    }
+
+    /**
+     * Removes the value of a key.
+     * @param key the key to remove.
+     * @return the removed value or -1 if none was mapped.
+     */
+    int remove(long key) {
+        int mask = values.length - 1;
+        for (int i = bucket(key, mask); values[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                int previous = values[i] - 1;
+                shiftBack(i, mask);
+                size--;
+                return previous;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of entries.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Fills the gap left by a removed entry so later entries stay reachable from their bucket.
+     * @param gap the bucket that was emptied.
+     * @param mask the bucket mask.
+     */
+    private void shiftBack(int gap, int mask) {
+        int i = gap;
+        while (true) {
+            i = (i + 1) & mask;
+            if (values[i] == 0) {
+                break;
+            }
+            int home = bucket(keys[i], mask);
+            // Move the entry if its home bucket is not between the gap and its position.
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                keys[gap] = keys[i];
+                values[gap] = values[i];
+                gap = i;
+            }
+        }
+        values[gap] = 0;
+    }
+
+    /**
+     * Rehashes every entry into a new table.
+     * @param capacity the new number of buckets, a power of two.
+     */
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[capacity];
+        values = new int[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldValues.length; j++) {
+            if (oldValues[j] != 0) {
+                int i = bucket(oldKeys[j], mask);
+                while (values[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    /**
+     * Finds the home bucket of a key.
+     * @param key the key.
+     * @param mask the bucket mask.
+     * @return the home bucket.
+     */
+    private static int bucket(long key, int mask) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+}
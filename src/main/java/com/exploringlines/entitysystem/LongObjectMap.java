@@ -0,0 +1,176 @@
+package com.exploringlines.entitysystem;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map keyed by primitive longs so lookups do not box the key.
+ * Null values are not allowed, a null slot marks an empty bucket.
+ * @param <V> the type of the values.
+ */
+final class LongObjectMap<V> {
+    /**
+     * Starting number of buckets, must be a power of two.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Keys of each bucket.
+     */
+    private long[] keys = new long[INITIAL_CAPACITY];
+
+    /**
+     * Values of each bucket, null when the bucket is empty.
+     */
+    private Object[] values = new Object[INITIAL_CAPACITY];
+
+    /**
+     * Number of entries in the map.
+     */
+    private int size = 0;
+
+    /**
+     * Retrieves a value.
+     * @param key the key of the value.
+     * @return the value or null if none is mapped.
+     */
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        int mask = values.length - 1;
+        for (int i = bucket(key, mask); values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return (V) values[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks if a key is mapped.
+     * @param key the key to check.
+     * @return true if the key has a value.
+     */
+    boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Maps a value to a key.
+     * @param key the key of the value.
+     * @param value the value, must not be null.
+     * @return the previous value or null if there was none.
+     */
+    @SuppressWarnings("unchecked")
+    V put(long key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Null values are not supported.");
+        }
+        int mask = values.length - 1;
+        int i = bucket(key, mask);
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                V previous = (V) values[i];
+                values[i] = value;
+                return previous;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+        // Keep the load factor at or below one half.
+        if (size * 2 > values.length) {
+            resize(values.length * 2);
+        }
+        return null;
+    }
+
+    /**
+     * Removes the value of a key.
+     * @param key the key to remove.
+     * @return the removed value or null if none was mapped.
+     */
+    @SuppressWarnings("unchecked")
+    V remove(long key) {
+        int mask = values.length - 1;
+        int i = bucket(key, mask);
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                V previous = (V) values[i];
+                shiftBack(i, mask);
+                size--;
+                return previous;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of entries.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Removes every entry.
+     */
+    void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * Fills the gap left by a removed entry so later entries stay reachable from their bucket.
+     * @param gap the bucket that was emptied.
+     * @param mask the bucket mask.
+     */
+    private void shiftBack(int gap, int mask) {
+        int i = gap;
+        while (true) {
+            i = (i + 1) & mask;
+            if (values[i] == null) {
+                break;
+            }
+            int home = bucket(keys[i], mask);
+            // Move the entry if its home bucket is not between the gap and its position.
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                keys[gap] = keys[i];
+                values[gap] = values[i];
+                gap = i;
+            }
+        }
+        values[gap] = null;
+    }
+
+    /**
+     * Rehashes every entry into a new table.
+     * @param capacity the new number of buckets, a power of two.
+     */
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldValues.length; j++) {
+            if (oldValues[j] != null) {
+                int i = bucket(oldKeys[j], mask);
+                while (values[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    /**
+     * Finds the home bucket of a key.
+     * @param key the key.
+     * @param mask the bucket mask.
+     * @return the home bucket.
+     */
+    private static int bucket(long key, int mask) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,122 @@
+package com.exploringlines.entitysystem;
+
+/**
+ * Receives runtime measurements of an entity system and its subsystems.
+ * Set a sink with {@link EntitySystem#setMetricsSink(MetricsSink)}, {@link JmxMetricsSink} exposes the
+ * measurements over JMX. While the sink is {@link #NONE} nothing is timed or counted.
+ * Subsystem timings may be reported from several threads at once when a {@link SubsystemScheduler} runs
+ * subsystems in parallel, every other call comes from the thread changing the entity system.
+ */
+public interface MetricsSink {
+    /**
+     * Sink that ignores every measurement, the default of an entity system.
+     */
+    MetricsSink NONE = new MetricsSink() {
+        @Override
+        public void subsystemUpdated(Subsystem subsystem, long nanos) {
+        }
+
+        @Override
+        public void subsystemCleanedUp(Subsystem subsystem, long nanos) {
+        }
+
+        @Override
+        public void subsystemRemoved(Subsystem subsystem) {
+        }
+
+        @Override
+        public void entitiesCreated(int count) {
+        }
+
+        @Override
+        public void entityRemoved() {
+        }
+
+        @Override
+        public void componentsSet(Class<? extends Component> componentClass, int count) {
+        }
+
+        @Override
+        public void componentRemoved(Class<? extends Component> componentClass) {
+        }
+
+        @Override
+        public void setFlushed(Query query, int size, int added, int changed, int removed) {
+        }
+
+        @Override
+        public void setReleased(Query query) {
+        }
+
+        @Override
+        public void changesFlushed(long nanos) {
+        }
+    };
+
+    /**
+     * Called after a subsystem was updated.
+     * @param subsystem the subsystem.
+     * @param nanos the time the update took in nanoseconds.
+     */
+    void subsystemUpdated(Subsystem subsystem, long nanos);
+
+    /**
+     * Called after a subsystem was cleaned up.
+     * @param subsystem the subsystem.
+     * @param nanos the time the cleanup took in nanoseconds.
+     */
+    void subsystemCleanedUp(Subsystem subsystem, long nanos);
+
+    /**
+     * Called when a subsystem is removed from its loop or scheduler, it is not reported anymore unless it is
+     * added again.
+     * @param subsystem the subsystem.
+     */
+    void subsystemRemoved(Subsystem subsystem);
+
+    /**
+     * Called after entities were created.
+     * @param count the number of created entities.
+     */
+    void entitiesCreated(int count);
+
+    /**
+     * Called after an entity was removed.
+     */
+    void entityRemoved();
+
+    /**
+     * Called after components of a type were set, added or replaced.
+     * @param componentClass the type of the components.
+     * @param count the number of components set.
+     */
+    void componentsSet(Class<? extends Component> componentClass, int count);
+
+    /**
+     * Called after a component was removed from an entity.
+     * @param componentClass the type of the component.
+     */
+    void componentRemoved(Class<? extends Component> componentClass);
+
+    /**
+     * Called for each cached set right before its changes are flushed.
+     * @param query the query of the set.
+     * @param size the number of entities in the set.
+     * @param added the number of entities added since the last flush.
+     * @param changed the number of entities changed since the last flush.
+     * @param removed the number of entities removed since the last flush.
+     */
+    void setFlushed(Query query, int size, int added, int changed, int removed);
+
+    /**
+     * Called when a cached set is released, its query is not reported anymore unless the set is created again.
+     * @param query the query of the set.
+     */
+    void setReleased(Query query);
+
+    /**
+     * Called after the set changes were flushed.
+     * @param nanos the time the flush took in nanoseconds.
+     */
+    void changesFlushed(long nanos);
+}
@@ -0,0 +1,515 @@
+package com.exploringlines.entitysystem;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Keeps a {@link FlatComponent} type outside of the Java heap in a direct or memory mapped buffer.
+ * Every entity with a component owns a fixed size slot holding its id and the component fields.
+ * Slots released by removal are put on a free list and reused before the buffer grows.
+ * A store opened on a file keeps its data in the file so a world can be reopened after a restart,
+ * registering a reopened store with an entity system recreates the stored entities by id.
+ * @param <T> the type of component stored.
+ */
+public class OffHeapComponentStore<T extends Component> implements ComponentStore<T>, Closeable {
+    /**
+     * Marks the start of a store file.
+     */
+    private static final int MAGIC = 0x45534f48;
+
+    /**
+     * Version of the file layout.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Bytes before the first slot: magic, version, layout hash, slot size, and slots in use.
+     */
+    private static final int HEADER_SIZE = 32;
+
+    /**
+     * Offset of the number of slots ever used in the header.
+     */
+    private static final int USED_SLOTS_OFFSET = 16;
+
+    /**
+     * Entity id written to slots that are free.
+     */
+    private static final long FREE_SLOT = -1;
+
+    /**
+     * Starting number of slots.
+     */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * Fields of the component type.
+     */
+    private final ComponentLayout<T> layout;
+
+    /**
+     * Byte offset of each float field within a slot.
+     */
+    private final int[] floatOffsets;
+
+    /**
+     * Byte offset of each int field within a slot.
+     */
+    private final int[] intOffsets;
+
+    /**
+     * Byte offset of each long field within a slot.
+     */
+    private final int[] longOffsets;
+
+    /**
+     * Bytes per slot.
+     */
+    private final int slotSize;
+
+    /**
+     * Channel of the mapped file, null for a direct buffer.
+     */
+    private final FileChannel channel;
+
+    /**
+     * Buffer holding the header and the slots.
+     */
+    private ByteBuffer buffer;
+
+    /**
+     * Number of slots the buffer can hold.
+     */
+    private int capacity;
+
+    /**
+     * Number of slots ever used, slots past this have never been written.
+     */
+    private int usedSlots = 0;
+
+    /**
+     * Released slots that can be reused.
+     */
+    private int[] freeSlots = new int[16];
+
+    /**
+     * Number of released slots.
+     */
+    private int freeSlotCount = 0;
+
+    /**
+     * Maps an entity id to its slot.
+     */
+    private final LongIntMap slots = new LongIntMap();
+
+    /**
+     * Initializes a store in a direct buffer.
+     * @param componentClass the component type to store, must be annotated with {@link FlatComponent}.
+     */
+    public OffHeapComponentStore(Class<T> componentClass) {
+        this(componentClass, null);
+    }
+
+    /**
+     * Initializes a store.
+     * @param componentClass the component type to store.
+     * @param channel the channel of the mapped file, null for a direct buffer.
+     */
+    private OffHeapComponentStore(Class<T> componentClass, FileChannel channel) {
+        layout = new ComponentLayout<T>(componentClass);
+        // Longs first so every field is naturally aligned after the 8 byte entity id.
+        int offset = 8;
+        longOffsets = new int[layout.getLongFields().length];
+        for (int i = 0; i < longOffsets.length; i++, offset += 8) {
+            longOffsets[i] = offset;
+        }
+        floatOffsets = new int[layout.getFloatFields().length];
+        for (int i = 0; i < floatOffsets.length; i++, offset += 4) {
+            floatOffsets[i] = offset;
+        }
+        intOffsets = new int[layout.getIntFields().length];
+        for (int i = 0; i < intOffsets.length; i++, offset += 4) {
+            intOffsets[i] = offset;
+        }
+        slotSize = (offset + 7) & ~7;
+        this.channel = channel;
+        if (channel == null) {
+            capacity = INITIAL_CAPACITY;
+            buffer = ByteBuffer.allocateDirect(HEADER_SIZE + capacity * slotSize).order(ByteOrder.LITTLE_ENDIAN);
+            writeHeader();
+        }
+    }
+
+    /**
+     * Opens a store backed by a memory mapped file, loading the slots already in the file.
+     * @param componentClass the component type to store, must be annotated with {@link FlatComponent}.
+     * @param file the file to map, created if it does not exist.
+     * @param <T> the type of component.
+     * @return the store.
+     * @throws IOException if the file cannot be mapped or holds a different component layout.
+     */
+    public static <T extends Component> OffHeapComponentStore<T> open(Class<T> componentClass, File file)
+            throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        OffHeapComponentStore<T> store = new OffHeapComponentStore<T>(componentClass, channel);
+        try {
+            store.load();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return store;
+    }
+
+    @Override
+    public void set(Entity entity, T component) {
+        int slot = slots.get(entity.getId());
+        if (slot < 0) {
+            slot = allocateSlot();
+            slots.put(entity.getId(), slot);
+            buffer.putLong(position(slot), entity.getId());
+        }
+        int base = position(slot);
+        try {
+            Field[] fields = layout.getLongFields();
+            for (int i = 0; i < fields.length; i++) {
+                buffer.putLong(base + longOffsets[i], fields[i].getLong(component));
+            }
+            fields = layout.getFloatFields();
+            for (int i = 0; i < fields.length; i++) {
+                buffer.putFloat(base + floatOffsets[i], fields[i].getFloat(component));
+            }
+            fields = layout.getIntFields();
+            for (int i = 0; i < fields.length; i++) {
+                buffer.putInt(base + intOffsets[i], fields[i].getInt(component));
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Could not read " + layout.getComponentClass().getName(), e);
+        }
+    }
+
+    /**
+     * Creates a detached copy of the data in the slot of an entity, a new object on every call.
+     * Writes to the copy do not reach the buffer unless it is set again with
+     * {@link EntitySystem#setComponent(Entity, Component)}, hot paths use {@link #readInto(Entity, Component)}
+     * or the field handles instead.
+     * @param entity the entity to retrieve the component of.
+     * @return a new component or null if the entity has none stored.
+     */
+    @Override
+    public T get(Entity entity) {
+        if (slots.get(entity.getId()) < 0) {
+            return null;
+        }
+        T component = layout.newInstance();
+        readInto(entity, component);
+        return component;
+    }
+
+    @Override
+    public boolean readInto(Entity entity, T target) {
+        int slot = slots.get(entity.getId());
+        if (slot < 0) {
+            return false;
+        }
+        int base = position(slot);
+        try {
+            Field[] fields = layout.getLongFields();
+            for (int i = 0; i < fields.length; i++) {
+                fields[i].setLong(target, buffer.getLong(base + longOffsets[i]));
+            }
+            fields = layout.getFloatFields();
+            for (int i = 0; i < fields.length; i++) {
+                fields[i].setFloat(target, buffer.getFloat(base + floatOffsets[i]));
+            }
+            fields = layout.getIntFields();
+            for (int i = 0; i < fields.length; i++) {
+                fields[i].setInt(target, buffer.getInt(base + intOffsets[i]));
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Could not write " + layout.getComponentClass().getName(), e);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean contains(Entity entity) {
+        return slots.get(entity.getId()) >= 0;
+    }
+
+    @Override
+    public boolean remove(Entity entity) {
+        int slot = slots.remove(entity.getId());
+        if (slot < 0) {
+            return false;
+        }
+        buffer.putLong(position(slot), FREE_SLOT);
+        if (freeSlotCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeSlotCount * 2);
+        }
+        freeSlots[freeSlotCount++] = slot;
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return slots.size();
+    }
+
+    @Override
+    public long[] getEntityIds() {
+        long[] ids = new long[slots.size()];
+        int count = 0;
+        for (int slot = 0; slot < usedSlots; slot++) {
+            long id = buffer.getLong(position(slot));
+            if (id != FREE_SLOT) {
+                ids[count++] = id;
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Finds the handle of a float field.
+     * @param name the name of the field.
+     * @return the handle to pass to {@link #getFloat(Entity, int)} and {@link #setFloat(Entity, int, float)}.
+     */
+    public int floatField(String name) {
+        return ComponentLayout.indexOf(layout.getFloatFields(), name);
+    }
+
+    /**
+     * Finds the handle of an int field.
+     * @param name the name of the field.
+     * @return the handle to pass to {@link #getInt(Entity, int)} and {@link #setInt(Entity, int, int)}.
+     */
+    public int intField(String name) {
+        return ComponentLayout.indexOf(layout.getIntFields(), name);
+    }
+
+    /**
+     * Finds the handle of a long field.
+     * @param name the name of the field.
+     * @return the handle to pass to {@link #getLong(Entity, int)} and {@link #setLong(Entity, int, long)}.
+     */
+    public int longField(String name) {
+        return ComponentLayout.indexOf(layout.getLongFields(), name);
+    }
+
+    /**
+     * Reads a float field.
+     * @param entity the entity with the component.
+     * @param field the handle of the field.
+     * @return the value of the field.
+     */
+    public float getFloat(Entity entity, int field) {
+        return buffer.getFloat(positionOf(entity) + floatOffsets[field]);
+    }
+
+    /**
+     * Writes a float field in place.
+     * @param entity the entity with the component.
+     * @param field the handle of the field.
+     * @param value the new value.
+     */
+    public void setFloat(Entity entity, int field, float value) {
+        buffer.putFloat(positionOf(entity) + floatOffsets[field], value);
+    }
+
+    /**
+     * Reads an int field.
+     * @param entity the entity with the component.
+     * @param field the handle of the field.
+     * @return the value of the field.
+     */
+    public int getInt(Entity entity, int field) {
+        return buffer.getInt(positionOf(entity) + intOffsets[field]);
+    }
+
+    /**
+     * Writes an int field in place.
+     * @param entity the entity with the component.
+     * @param field the handle of the field.
+     * @param value the new value.
+     */
+    public void setInt(Entity entity, int field, int value) {
+        buffer.putInt(positionOf(entity) + intOffsets[field], value);
+    }
+
+    /**
+     * Reads a long field.
+     * @param entity the entity with the component.
+     * @param field the handle of the field.
+     * @return the value of the field.
+     */
+    public long getLong(Entity entity, int field) {
+        return buffer.getLong(positionOf(entity) + longOffsets[field]);
+    }
+
+    /**
+     * Writes a long field in place.
+     * @param entity the entity with the component.
+     * @param field the handle of the field.
+     * @param value the new value.
+     */
+    public void setLong(Entity entity, int field, long value) {
+        buffer.putLong(positionOf(entity) + longOffsets[field], value);
+    }
+
+    /**
+     * Writes the slot count and flushes a mapped file to disk.
+     */
+    public void force() {
+        buffer.putInt(USED_SLOTS_OFFSET, usedSlots);
+        if (buffer instanceof MappedByteBuffer) {
+            ((MappedByteBuffer) buffer).force();
+        }
+    }
+
+    /**
+     * Flushes a mapped file and closes it, the store cannot be used afterwards.
+     * @throws IOException if the file cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        force();
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    /**
+     * Maps the file and rebuilds the slot index and free list from the slots in it.
+     * @throws IOException if the file cannot be mapped or holds a different component layout.
+     */
+    private void load() throws IOException {
+        long fileSize = channel.size();
+        if (fileSize < HEADER_SIZE) {
+            capacity = INITIAL_CAPACITY;
+            map();
+            writeHeader();
+            return;
+        }
+        capacity = (int) ((fileSize - HEADER_SIZE) / slotSize);
+        map();
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a component store file.");
+        }
+        if (buffer.getInt(8) != layoutHash() || buffer.getInt(12) != slotSize) {
+            throw new IOException("The file holds a different layout than " + layout.getComponentClass().getName());
+        }
+        usedSlots = buffer.getInt(USED_SLOTS_OFFSET);
+        for (int slot = 0; slot < usedSlots; slot++) {
+            long id = buffer.getLong(position(slot));
+            if (id == FREE_SLOT) {
+                if (freeSlotCount == freeSlots.length) {
+                    freeSlots = Arrays.copyOf(freeSlots, freeSlotCount * 2);
+                }
+                freeSlots[freeSlotCount++] = slot;
+            } else {
+                slots.put(id, slot);
+            }
+        }
+    }
+
+    /**
+     * Maps the file with room for the current capacity, growing the file if needed.
+     * @throws IOException if the file cannot be mapped.
+     */
+    private void map() throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * slotSize)
+                .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Writes the header of an empty store.
+     */
+    private void writeHeader() {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, layoutHash());
+        buffer.putInt(12, slotSize);
+        buffer.putInt(USED_SLOTS_OFFSET, usedSlots);
+    }
+
+    /**
+     * Hashes the field names and types so a file is only loaded with the layout that wrote it.
+     * @return the hash of the layout.
+     */
+    private int layoutHash() {
+        int hash = 17;
+        for (Field[] fields : new Field[][]{layout.getLongFields(), layout.getFloatFields(), layout.getIntFields()}) {
+            for (Field field : fields) {
+                hash = 31 * hash + field.getName().hashCode();
+                hash = 31 * hash + field.getType().getName().hashCode();
+            }
+            hash = 31 * hash + fields.length;
+        }
+        return hash;
+    }
+
+    /**
+     * Takes a free slot or a new one, growing the buffer if every slot is used.
+     * @return the slot.
+     */
+    private int allocateSlot() {
+        if (freeSlotCount > 0) {
+            return freeSlots[--freeSlotCount];
+        }
+        if (usedSlots == capacity) {
+            grow();
+        }
+        int slot = usedSlots++;
+        buffer.putInt(USED_SLOTS_OFFSET, usedSlots);
+        return slot;
+    }
+
+    /**
+     * Doubles the number of slots.
+     */
+    private void grow() {
+        capacity *= 2;
+        if (channel != null) {
+            try {
+                map();
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not grow the mapped component store.", e);
+            }
+        } else {
+            ByteBuffer grown = ByteBuffer.allocateDirect(HEADER_SIZE + capacity * slotSize).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.clear();
+            grown.put(buffer);
+            buffer = grown;
+        }
+    }
+
+    /**
+     * Finds the byte position of an entity's slot.
+     * @param entity the entity with the component.
+     * @return the position of the slot.
+     */
+    private int positionOf(Entity entity) {
+        int slot = slots.get(entity.getId());
+        if (slot < 0) {
+            throw new IllegalArgumentException("No component stored for " + entity);
+        }
+        return position(slot);
+    }
+
+    /**
+     * Finds the byte position of a slot.
+     * @param slot the slot.
+     * @return the position of the slot.
+     */
+    private int position(int slot) {
+        return HEADER_SIZE + slot * slotSize;
+    }
+}
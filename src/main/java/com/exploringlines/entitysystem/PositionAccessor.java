@@ -0,0 +1,19 @@
+package com.exploringlines.entitysystem;
+
+/**
+ * Reads the position out of a position component for a {@link SpatialGrid}.
+ * @param <T> the type of the position component.
+ */
+public interface PositionAccessor<T extends Component> {
+    /**
+     * @param component the position component.
+     * @return the x coordinate of the position.
+     */
+    float getX(T component);
+
+    /**
+     * @param component the position component.
+     * @return the y coordinate of the position.
+     */
+    float getY(T component);
+}
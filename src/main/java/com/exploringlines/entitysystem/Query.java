@@ -0,0 +1,187 @@
+package com.exploringlines.entitysystem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Describes which component types an entity must, may, or must not have to be part of an entity set.
+ * Queries are immutable and compare equal when they describe the same types so sets can be cached by query.
+ * Example: {@code entitySystem.getEntities(all(Position.class, Velocity.class), exclude(Frozen.class))}.
+ */
+public final class Query {
+    /**
+     * Query that every entity matches.
+     */
+    private static final Query EVERYTHING = new Query(Collections.<Class>emptySet(),
+            Collections.<Set<Class>>emptySet(), Collections.<Class>emptySet());
+
+    /**
+     * Types an entity must have.
+     */
+    private final Set<Class> all;
+
+    /**
+     * Groups of types where an entity must have at least one type of each group.
+     */
+    private final Set<Set<Class>> any;
+
+    /**
+     * Types an entity must not have.
+     */
+    private final Set<Class> exclude;
+
+    /**
+     * Initializes the query.
+     * @param all types an entity must have.
+     * @param any groups of types where an entity must have one type of each group.
+     * @param exclude types an entity must not have.
+     */
+    private Query(Set<Class> all, Set<Set<Class>> any, Set<Class> exclude) {
+        this.all = Collections.unmodifiableSet(all);
+        this.any = Collections.unmodifiableSet(any);
+        this.exclude = Collections.unmodifiableSet(exclude);
+    }
+
+    /**
+     * Creates a query matching entities that have every given type.
+     * @param componentClasses the types an entity must have.
+     * @return the query.
+     */
+    @SafeVarargs
+    public static Query all(Class<? extends Component>... componentClasses) {
+        return new Query(toSet(componentClasses), Collections.<Set<Class>>emptySet(), Collections.<Class>emptySet());
+    }
+
+    /**
+     * Creates a query matching entities that have at least one of the given types.
+     * @param componentClasses the types an entity must have one of.
+     * @return the query.
+     */
+    @SafeVarargs
+    public static Query any(Class<? extends Component>... componentClasses) {
+        if (componentClasses.length == 0) {
+            throw new IllegalArgumentException("An any query needs at least one component type.");
+        }
+        return new Query(Collections.<Class>emptySet(), Collections.singleton(toSet(componentClasses)),
+                Collections.<Class>emptySet());
+    }
+
+    /**
+     * Creates a query matching entities that have none of the given types.
+     * @param componentClasses the types an entity must not have.
+     * @return the query.
+     */
+    @SafeVarargs
+    public static Query exclude(Class<? extends Component>... componentClasses) {
+        return new Query(Collections.<Class>emptySet(), Collections.<Set<Class>>emptySet(), toSet(componentClasses));
+    }
+
+    /**
+     * Combines queries so an entity has to match all of them.
+     * @param queries the queries to combine.
+     * @return the combined query, matching every entity if no queries are given.
+     */
+    public static Query of(Query... queries) {
+        Query query = EVERYTHING;
+        for (Query other : queries) {
+            query = query.and(other);
+        }
+        return query;
+    }
+
+    /**
+     * Combines this query with another so an entity has to match both.
+     * @param other the query to combine with.
+     * @return the combined query.
+     */
+    public Query and(Query other) {
+        Set<Class> combinedAll = new LinkedHashSet<Class>(all);
+        combinedAll.addAll(other.all);
+        Set<Set<Class>> combinedAny = new LinkedHashSet<Set<Class>>(any);
+        combinedAny.addAll(other.any);
+        Set<Class> combinedExclude = new LinkedHashSet<Class>(exclude);
+        combinedExclude.addAll(other.exclude);
+        return new Query(combinedAll, combinedAny, combinedExclude);
+    }
+
+    /**
+     * @return the types an entity must have.
+     */
+    public Set<Class> getAll() {
+        return all;
+    }
+
+    /**
+     * @return the groups of types where an entity must have at least one type of each group.
+     */
+    public Set<Set<Class>> getAny() {
+        return any;
+    }
+
+    /**
+     * @return the types an entity must not have.
+     */
+    public Set<Class> getExclude() {
+        return exclude;
+    }
+
+    /**
+     * Collects every type the query refers to.
+     * @return the types in the all, any, and exclude parts.
+     */
+    List<Class> getReferencedTypes() {
+        List<Class> types = new ArrayList<Class>(all);
+        for (Set<Class> group : any) {
+            types.addAll(group);
+        }
+        types.addAll(exclude);
+        return types;
+    }
+
+    /**
+     * Copies types into an immutable set.
+     * @param componentClasses the types to copy.
+     * @return the set of types.
+     */
+    @SafeVarargs
+    private static Set<Class> toSet(Class<? extends Component>... componentClasses) {
+        Set<Class> types = new HashSet<Class>();
+        for (Class<? extends Component> componentClass : componentClasses) {
+            types.add(componentClass);
+        }
+        return Collections.unmodifiableSet(types);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Query)) {
+            return false;
+        }
+        Query query = (Query) o;
+        return all.equals(query.all) && any.equals(query.any) && exclude.equals(query.exclude);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = all.hashCode();
+        result = 31 * result + any.hashCode();
+        result = 31 * result + exclude.hashCode();
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "Query{" +
+                "all=" + all +
+                ", any=" + any +
+                ", exclude=" + exclude +
+                '}';
+    }
+}
@@ -0,0 +1,119 @@
+package com.exploringlines.entitysystem;
+
+/**
+ * A query resolved against the component type ids of an entity system together with the set it maintains.
+ * Matching is done on archetype masks so a membership test never looks at the components themselves.
+ */
+final class QueryMatcher {
+    /**
+     * Types an entity must have.
+     */
+    private final ComponentMask all;
+
+    /**
+     * Groups where an entity must have at least one type of each group.
+     */
+    private final ComponentMask[] any;
+
+    /**
+     * Types an entity must not have.
+     */
+    private final ComponentMask exclude;
+
+    /**
+     * Types whose replacement marks a member as changed.
+     */
+    private final ComponentMask tracked;
+
+    /**
+     * The set kept up to date with the matching entities.
+     */
+    private final EntitySet entitySet;
+
+    /**
+     * Number of flushes of the entity system when the set was last retrieved.
+     */
+    long lastUsed;
+
+    /**
+     * Initializes the matcher.
+     * @param all types an entity must have.
+     * @param any groups where an entity must have at least one type of each group.
+     * @param exclude types an entity must not have.
+     * @param entitySet the set kept up to date with the matching entities.
+     */
+    QueryMatcher(ComponentMask all, ComponentMask[] any, ComponentMask exclude, EntitySet entitySet) {
+        this.all = all;
+        this.any = any;
+        this.exclude = exclude;
+        this.entitySet = entitySet;
+        ComponentMask trackedTypes = all;
+        for (ComponentMask group : any) {
+            for (int typeId = group.nextTypeId(0); typeId >= 0; typeId = group.nextTypeId(typeId + 1)) {
+                trackedTypes = trackedTypes.with(typeId);
+            }
+        }
+        this.tracked = trackedTypes;
+    }
+
+    /**
+     * Checks if an entity with the given types belongs in the set.
+     * @param mask the types of the entity.
+     * @return true if the types match the query.
+     */
+    boolean matches(ComponentMask mask) {
+        if (!mask.containsAll(all) || mask.intersects(exclude)) {
+            return false;
+        }
+        for (ComponentMask group : any) {
+            if (!mask.intersects(group)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the types an entity must have.
+     */
+    ComponentMask getAll() {
+        return all;
+    }
+
+    /**
+     * Checks if replacing a component of the type counts as a change for the set.
+     * @param typeId the id of the replaced type.
+     * @return true if the type is required or optional in the query.
+     */
+    boolean tracks(int typeId) {
+        return tracked.has(typeId);
+    }
+
+    /**
+     * @return the set kept up to date with the matching entities.
+     */
+    EntitySet getEntitySet() {
+        return entitySet;
+    }
+
+    /**
+     * Updates the set after the types of an entity changed.
+     * @param entity the entity that changed.
+     * @param oldMask the types of the entity before the change.
+     * @param newMask the types of the entity after the change.
+     * @param typeId the id of the type that was set or removed.
+     */
+    void update(Entity entity, ComponentMask oldMask, ComponentMask newMask, int typeId) {
+        boolean matched = matches(oldMask);
+        boolean matching = oldMask == newMask ? matched : matches(newMask);
+        if (matched && matching) {
+            if (oldMask == newMask && tracks(typeId)) {
+                entitySet.addChangedEntity(entity);
+            }
+        } else if (matching) {
+            entitySet.addEntity(entity);
+        } else if (matched) {
+            entitySet.removeEntity(entity);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.exploringlines.entitysystem;
+
+/**
+ * Chooses the shard of an entity of a {@link ShardedWorld} from one of its components, such as its position.
+ * @param <T> the type of the component the shard is chosen from.
+ */
+public interface ShardPartitioner<T extends Component> {
+    /**
+     * Chooses the shard an entity belongs in.
+     * Called on the thread of the shard holding the entity, must not change the component.
+     * @param component the component of the entity.
+     * @param shardCount the number of shards.
+     * @return the index of the shard.
+     */
+    int shardOf(T component, int shardCount);
+}
@@ -0,0 +1,599 @@
+package com.exploringlines.entitysystem;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * One logical world split across several entity systems, the shards, each stepped by its own
+ * {@link GameLoop} on its own daemon thread, so a shard always steps on the same thread.
+ * Entities are created through the world and get a {@link GlobalHandle} that stays the same when the entity
+ * migrates to another shard. Migrating copies every component with {@link Component#copy()} into the target
+ * shard so the shards never share components, then removes the entity from its old shard.
+ * Migrations requested while the shards step are applied once every shard finished its steps. With a
+ * {@link ShardPartitioner} set, entities whose partition component was added or replaced migrate to the shard
+ * it chooses, for example the shard owning the region of their position.
+ * Methods other than {@link #requestMigration(long, int)} and lookups are meant for the thread calling
+ * {@link #step()} and {@link #advance(long)}, between steps. Subsystems of a shard only touch their own shard.
+ */
+public class ShardedWorld {
+    /**
+     * The shards.
+     */
+    private final EntitySystem[] shards;
+
+    /**
+     * Loop stepping each shard.
+     */
+    private final GameLoop[] loops;
+
+    /**
+     * Single thread executor stepping each shard, indexed by shard.
+     */
+    private final ExecutorService[] executors;
+
+    /**
+     * Location of each entity by global handle.
+     */
+    private final LongObjectMap<Location> locations = new LongObjectMap<Location>();
+
+    /**
+     * Next global handle to give out.
+     */
+    private long nextHandle = 0;
+
+    /**
+     * Migrations requested while the shards step.
+     */
+    private final Queue<Migration> migrations = new ConcurrentLinkedQueue<Migration>();
+
+    /**
+     * Entities removed by the subsystems of a shard, their handles are dropped once the shards finished stepping.
+     */
+    private final Queue<Removal> removals = new ConcurrentLinkedQueue<Removal>();
+
+    /**
+     * Initializes the world with empty shards.
+     * @param shardCount the number of shards.
+     * @param stepsPerSecond the number of simulation steps per second of every shard.
+     */
+    public ShardedWorld(int shardCount, float stepsPerSecond) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("At least one shard is needed: " + shardCount);
+        }
+        shards = new EntitySystem[shardCount];
+        loops = new GameLoop[shardCount];
+        executors = new ExecutorService[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new EntitySystem();
+            loops[i] = new GameLoop(shards[i], stepsPerSecond);
+            trackRemovals(shards[i]);
+            final String threadName = "ShardedWorld shard " + i;
+            executors[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, threadName);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    /**
+     * @return the number of shards.
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * @param shard the index of the shard.
+     * @return the entity system of the shard.
+     */
+    public EntitySystem getShard(int shard) {
+        return shards[shard];
+    }
+
+    /**
+     * Retrieves the loop of a shard, used to add the subsystems of the shard.
+     * @param shard the index of the shard.
+     * @return the loop of the shard.
+     */
+    public GameLoop getLoop(int shard) {
+        return loops[shard];
+    }
+
+    /**
+     * Migrates the entities with a component to the shard chosen from the component whenever the component is
+     * added or replaced. Entities are checked when the set changes of their shard are flushed.
+     * @param componentClass the type of the component the shard is chosen from.
+     * @param partitioner chooses the shard from the component.
+     * @param <T> the type of the component.
+     */
+    public <T extends Component> void setPartitioner(final Class<T> componentClass,
+                                                     final ShardPartitioner<T> partitioner) {
+        for (int i = 0; i < shards.length; i++) {
+            final int shard = i;
+            final EntitySystem entitySystem = shards[i];
+            entitySystem.addListener(componentClass, new EntitySetListener() {
+                @Override
+                public void entitiesAdded(EntitySet set, List<Entity> entities) {
+                    partition(entities);
+                }
+
+                @Override
+                public void entitiesChanged(EntitySet set, List<Entity> entities) {
+                    partition(entities);
+                }
+
+                @Override
+                public void entitiesRemoved(EntitySet set, List<Entity> entities) {
+                }
+
+                /**
+                 * Requests the migration of the entities that belong in another shard.
+                 * @param entities the entities to check.
+                 */
+                private void partition(List<Entity> entities) {
+                    for (int j = 0; j < entities.size(); j++) {
+                        Entity entity = entities.get(j);
+                        GlobalHandle handle = entitySystem.getComponent(entity, GlobalHandle.class);
+                        int target = partitioner.shardOf(entitySystem.getComponent(entity, componentClass),
+                                shards.length);
+                        if (handle != null && target != shard) {
+                            requestMigration(handle.handle, target);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Creates an entity in a shard.
+     * @param shard the index of the shard.
+     * @param name the name of the entity, null for none.
+     * @return the global handle of the entity.
+     */
+    public long createEntity(int shard, String name) {
+        long handle = nextHandle++;
+        Entity entity = shards[shard].createEntity(name);
+        shards[shard].setComponent(entity, new GlobalHandle(handle));
+        locations.put(handle, new Location(shard, entity));
+        return handle;
+    }
+
+    /**
+     * Retrieves an entity by its global handle.
+     * @param handle the global handle.
+     * @return the entity in its current shard, null if none has the handle.
+     */
+    public Entity getEntity(long handle) {
+        Location location = locations.get(handle);
+        return location == null ? null : location.entity;
+    }
+
+    /**
+     * Finds the shard holding an entity.
+     * @param handle the global handle of the entity.
+     * @return the index of the shard, -1 if no entity has the handle.
+     */
+    public int getShardOf(long handle) {
+        Location location = locations.get(handle);
+        return location == null ? -1 : location.shard;
+    }
+
+    /**
+     * Retrieves a component of an entity in whichever shard holds it.
+     * @param handle the global handle of the entity.
+     * @param componentClass the class of the component.
+     * @param <T> the type of component.
+     * @return the component, null if the entity does not exist or has none.
+     */
+    public <T extends Component> T getComponent(long handle, Class<T> componentClass) {
+        Location location = locations.get(handle);
+        return location == null ? null : shards[location.shard].getComponent(location.entity, componentClass);
+    }
+
+    /**
+     * Sets a component to an entity in whichever shard holds it.
+     * @param handle the global handle of the entity.
+     * @param component the component.
+     * @param <T> the type of component.
+     * @return the component.
+     * @throws IllegalArgumentException if no entity has the handle.
+     */
+    public <T extends Component> T setComponent(long handle, T component) {
+        Location location = locate(handle);
+        return shards[location.shard].setComponent(location.entity, component);
+    }
+
+    /**
+     * Removes an entity from whichever shard holds it.
+     * @param handle the global handle of the entity.
+     * @return true if an entity had the handle.
+     */
+    public boolean removeEntity(long handle) {
+        Location location = locations.remove(handle);
+        if (location == null) {
+            return false;
+        }
+        shards[location.shard].removeEntity(location.entity);
+        return true;
+    }
+
+    /**
+     * Moves an entity and copies of its components to another shard right away.
+     * @param handle the global handle of the entity.
+     * @param shard the index of the target shard.
+     * @return the entity in the target shard.
+     * @throws IllegalArgumentException if no entity has the handle or a component does not return a real copy,
+     * the entity stays in its shard then.
+     */
+    public Entity migrate(long handle, int shard) {
+        Location location = locate(handle);
+        EntitySystem source = shards[location.shard];
+        if (!source.hasEntity(location.entity)) {
+            // Removed by a subsystem of its shard before the removal was noticed.
+            locations.remove(handle);
+            throw new IllegalArgumentException("No entity has the handle " + handle);
+        }
+        if (location.shard == shard) {
+            return location.entity;
+        }
+        List<Component> components = source.getComponents(location.entity);
+        for (int i = 0; i < components.size(); i++) {
+            components.set(i, EntitySystem.copyComponent(components.get(i)));
+        }
+        EntitySystem target = shards[shard];
+        Entity migrated = target.createEntity(location.entity.getName());
+        for (int i = 0; i < components.size(); i++) {
+            target.setComponent(migrated, components.get(i));
+        }
+        source.removeEntity(location.entity);
+        location.shard = shard;
+        location.entity = migrated;
+        return migrated;
+    }
+
+    /**
+     * Requests an entity to move to another shard once the shards finished stepping, safe to call from any
+     * thread. Requests for entities removed in the meantime are ignored.
+     * @param handle the global handle of the entity.
+     * @param shard the index of the target shard.
+     */
+    public void requestMigration(long handle, int shard) {
+        if (shard < 0 || shard >= shards.length) {
+            throw new IllegalArgumentException("No shard " + shard);
+        }
+        migrations.add(new Migration(handle, shard));
+    }
+
+    /**
+     * Runs one step of every shard in parallel, then applies the requested migrations.
+     */
+    public void step() {
+        runShards(new ShardTask() {
+            @Override
+            public void run(GameLoop loop) {
+                loop.step();
+            }
+        });
+        dropRemovedHandles();
+        applyMigrations();
+    }
+
+    /**
+     * Runs the steps of every shard that fit in the elapsed time in parallel, then applies the requested
+     * migrations.
+     * @param elapsedNanos the real time elapsed since the last call.
+     */
+    public void advance(final long elapsedNanos) {
+        runShards(new ShardTask() {
+            @Override
+            public void run(GameLoop loop) {
+                loop.advance(elapsedNanos);
+            }
+        });
+        dropRemovedHandles();
+        applyMigrations();
+    }
+
+    /**
+     * Retrieves the entities matching every query in each shard.
+     * @param queries the queries an entity must match, no queries match every entity.
+     * @return the cached set of each shard, indexed by shard.
+     */
+    public List<EntitySet> getEntities(Query... queries) {
+        List<EntitySet> sets = new ArrayList<EntitySet>(shards.length);
+        for (EntitySystem shard : shards) {
+            sets.add(shard.getEntities(queries));
+        }
+        return Collections.unmodifiableList(sets);
+    }
+
+    /**
+     * Counts the entities matching every query across the shards.
+     * @param queries the queries an entity must match, no queries match every entity.
+     * @return the number of matching entities.
+     */
+    public int count(Query... queries) {
+        int count = 0;
+        for (EntitySystem shard : shards) {
+            count += shard.getEntities(queries).size();
+        }
+        return count;
+    }
+
+    /**
+     * Retrieves the components of a type across the shards.
+     * The collection is a read only view that stays up to date with the shards.
+     * @param componentClass the component type.
+     * @param <T> the type of component.
+     * @return the components of every shard, shard by shard.
+     */
+    public <T extends Component> Collection<T> getComponentsOfType(Class<T> componentClass) {
+        final List<Collection<T>> parts = new ArrayList<Collection<T>>(shards.length);
+        for (EntitySystem shard : shards) {
+            parts.add(shard.getComponentsOfType(componentClass));
+        }
+        return new AbstractCollection<T>() {
+            @Override
+            public Iterator<T> iterator() {
+                return new Iterator<T>() {
+                    private int part = 0;
+
+                    private Iterator<T> current = parts.get(0).iterator();
+
+                    @Override
+                    public boolean hasNext() {
+                        while (!current.hasNext() && part + 1 < parts.size()) {
+                            current = parts.get(++part).iterator();
+                        }
+                        return current.hasNext();
+                    }
+
+                    @Override
+                    public T next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        return current.next();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                int size = 0;
+                for (Collection<T> collection : parts) {
+                    size += collection.size();
+                }
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Stops the threads of the shards.
+     */
+    public void shutdown() {
+        for (ExecutorService executor : executors) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Queues the entities a shard removes so their handles are dropped between steps.
+     * @param shard the entity system of the shard.
+     */
+    private void trackRemovals(final EntitySystem shard) {
+        shard.addListener(GlobalHandle.class, new EntitySetListener() {
+            @Override
+            public void entitiesAdded(EntitySet set, List<Entity> entities) {
+            }
+
+            @Override
+            public void entitiesChanged(EntitySet set, List<Entity> entities) {
+            }
+
+            @Override
+            public void entitiesRemoved(EntitySet set, List<Entity> entities) {
+                for (int i = 0; i < entities.size(); i++) {
+                    Entity entity = entities.get(i);
+                    // Removed entities keep their components until the flush ends, live entities lost the handle.
+                    GlobalHandle handle = shard.getComponent(entity, GlobalHandle.class);
+                    if (handle != null && !shard.hasEntity(entity)) {
+                        removals.add(new Removal(handle.handle, entity));
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Drops the handles of the entities removed by the shards.
+     */
+    private void dropRemovedHandles() {
+        Removal removal;
+        while ((removal = removals.poll()) != null) {
+            Location location = locations.get(removal.handle);
+            // A migrated entity was removed from its old shard but the handle lives on in the new one.
+            if (location != null && location.entity == removal.entity) {
+                locations.remove(removal.handle);
+            }
+        }
+    }
+
+    /**
+     * Applies the requested migrations.
+     */
+    private void applyMigrations() {
+        Migration migration;
+        while ((migration = migrations.poll()) != null) {
+            Location location = locations.get(migration.handle);
+            if (location == null) {
+                continue;
+            }
+            if (!shards[location.shard].hasEntity(location.entity)) {
+                locations.remove(migration.handle);
+                continue;
+            }
+            migrate(migration.handle, migration.shard);
+        }
+    }
+
+    /**
+     * Runs a task for every shard on the threads of the shards and waits for all of them.
+     * @param task the task to run.
+     */
+    private void runShards(final ShardTask task) {
+        List<Future<?>> futures = new ArrayList<Future<?>>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            final GameLoop loop = loops[i];
+            futures.add(executors[i].submit(new Runnable() {
+                @Override
+                public void run() {
+                    task.run(loop);
+                }
+            }));
+        }
+        // Wait for every shard before reporting a failure so no shard still steps afterwards.
+        ExecutionException failure = null;
+        try {
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while stepping the shards.", e);
+        }
+        if (failure != null) {
+            if (failure.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) failure.getCause();
+            }
+            if (failure.getCause() instanceof Error) {
+                throw (Error) failure.getCause();
+            }
+            throw new IllegalStateException(failure.getCause());
+        }
+    }
+
+    /**
+     * Finds the location of an entity.
+     * @param handle the global handle of the entity.
+     * @return the location.
+     * @throws IllegalArgumentException if no entity has the handle.
+     */
+    private Location locate(long handle) {
+        Location location = locations.get(handle);
+        if (location == null) {
+            throw new IllegalArgumentException("No entity has the handle " + handle);
+        }
+        return location;
+    }
+
+    /**
+     * Work done on the loop of each shard.
+     */
+    private interface ShardTask {
+        /**
+         * Runs the work.
+         * @param loop the loop of the shard.
+         */
+        void run(GameLoop loop);
+    }
+
+    /**
+     * The shard and entity of a global handle.
+     */
+    private static final class Location {
+        /**
+         * Index of the shard.
+         */
+        int shard;
+
+        /**
+         * The entity in the shard.
+         */
+        Entity entity;
+
+        /**
+         * Initializes the location.
+         * @param shard index of the shard.
+         * @param entity the entity in the shard.
+         */
+        Location(int shard, Entity entity) {
+            this.shard = shard;
+            this.entity = entity;
+        }
+    }
+
+    /**
+     * An entity removed by a shard.
+     */
+    private static final class Removal {
+        /**
+         * Global handle of the entity.
+         */
+        final long handle;
+
+        /**
+         * The removed entity.
+         */
+        final Entity entity;
+
+        /**
+         * Initializes the removal.
+         * @param handle global handle of the entity.
+         * @param entity the removed entity.
+         */
+        Removal(long handle, Entity entity) {
+            this.handle = handle;
+            this.entity = entity;
+        }
+    }
+
+    /**
+     * A requested migration.
+     */
+    private static final class Migration {
+        /**
+         * Global handle of the entity.
+         */
+        final long handle;
+
+        /**
+         * Index of the target shard.
+         */
+        final int shard;
+
+        /**
+         * Initializes the migration.
+         * @param handle global handle of the entity.
+         * @param shard index of the target shard.
+         */
+        Migration(long handle, int shard) {
+            this.handle = handle;
+            this.shard = shard;
+        }
+    }
+}
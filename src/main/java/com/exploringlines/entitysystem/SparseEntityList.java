@@ -0,0 +1,215 @@
+package com.exploringlines.entitysystem;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A sparse set of entities keyed by the index of the entity, which is the id unless ids are recycled.
+ * Entities are packed in a dense array for iteration and a paged sparse array maps
+ * each id to its dense index, giving constant time add, remove, and contains.
+ * Removal moves the last entity into the freed index so the order is not kept.
+ */
+final class SparseEntityList {
+    /**
+     * Number of ids covered by one sparse page, a power of two.
+     */
+    private static final int PAGE_SIZE = 1024;
+
+    /**
+     * Shift to go from an id to its page.
+     */
+    private static final int PAGE_SHIFT = Integer.numberOfTrailingZeros(PAGE_SIZE);
+
+    /**
+     * Starting capacity of the dense array.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Entities in the list, only the first size entries are used.
+     */
+    private Entity[] dense = new Entity[INITIAL_CAPACITY];
+
+    /**
+     * Dense index plus one of each id grouped in pages, zero when the id is not in the list.
+     * Pages are allocated when an id in their range is first added.
+     */
+    private int[][] sparse = new int[0][];
+
+    /**
+     * Number of entities in the list.
+     */
+    private int size = 0;
+
+    /**
+     * Read only list backed by the dense array.
+     */
+    private final List<Entity> view = new AbstractList<Entity>() {
+        @Override
+        public Entity get(int index) {
+            if (index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+            return dense[index];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    };
+
+    /**
+     * Adds an entity.
+     * @param entity the entity to add.
+     * @return true if the entity was added, false if an entity with the index is already in the list.
+     */
+    boolean add(Entity entity) {
+        long id = entity.index;
+        int page = page(id);
+        if (page >= sparse.length) {
+            sparse = Arrays.copyOf(sparse, Math.max(page + 1, sparse.length * 2));
+        }
+        int[] indexes = sparse[page];
+        if (indexes == null) {
+            indexes = new int[PAGE_SIZE];
+            sparse[page] = indexes;
+        }
+        int offset = (int) id & (PAGE_SIZE - 1);
+        if (indexes[offset] != 0) {
+            return false;
+        }
+        if (size == dense.length) {
+            dense = Arrays.copyOf(dense, size * 2);
+        }
+        dense[size] = entity;
+        indexes[offset] = ++size;
+        return true;
+    }
+
+    /**
+     * Grows the dense array so the given number of entities fit without growing again.
+     * @param capacity the number of entities needed.
+     */
+    void ensureCapacity(int capacity) {
+        if (capacity > dense.length) {
+            dense = Arrays.copyOf(dense, capacity);
+        }
+    }
+
+    /**
+     * Removes an entity by moving the last entity into its place.
+     * @param entity the entity to remove.
+     * @return true if the entity was in the list.
+     */
+    boolean remove(Entity entity) {
+        long id = entity.index;
+        int index = indexOf(entity);
+        if (index < 0) {
+            return false;
+        }
+        int last = --size;
+        if (index != last) {
+            Entity moved = dense[last];
+            dense[index] = moved;
+            setIndex(moved.index, index + 1);
+        }
+        dense[last] = null;
+        setIndex(id, 0);
+        return true;
+    }
+
+    /**
+     * Checks if an entity is in the list.
+     * @param entity the entity to check.
+     * @return true if an entity with the index is in the list.
+     */
+    boolean contains(Entity entity) {
+        return indexOf(entity) >= 0;
+    }
+
+    /**
+     * Finds the dense index of an entity.
+     * Removing an entity moves the last entity into the index of the removed entity.
+     * @param entity the entity to find.
+     * @return the dense index or -1 if no entity with the index is in the list.
+     */
+    int indexOf(Entity entity) {
+        int index = indexOf(entity.index);
+        // A recycled index may hold an entity of another generation.
+        return index >= 0 && dense[index].getId() == entity.getId() ? index : -1;
+    }
+
+    /**
+     * Retrieves the entity at a dense index.
+     * @param index the index, less than {@link #size()}.
+     * @return the entity at the index.
+     */
+    Entity get(int index) {
+        return dense[index];
+    }
+
+    /**
+     * @return the number of entities.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Removes every entity, takes time proportional to the number of entities.
+     */
+    void clear() {
+        for (int i = 0; i < size; i++) {
+            setIndex(dense[i].index, 0);
+            dense[i] = null;
+        }
+        size = 0;
+    }
+
+    /**
+     * @return a read only list view of the entities that stays up to date.
+     */
+    List<Entity> asList() {
+        return view;
+    }
+
+    /**
+     * Finds the dense index of an id.
+     * @param id the id to find.
+     * @return the dense index or -1 if the id is not in the list.
+     */
+    private int indexOf(long id) {
+        if (id < 0) {
+            return -1;
+        }
+        long page = id >>> PAGE_SHIFT;
+        if (page >= sparse.length || sparse[(int) page] == null) {
+            return -1;
+        }
+        return sparse[(int) page][(int) id & (PAGE_SIZE - 1)] - 1;
+    }
+
+    /**
+     * Stores the dense index of an id that has a page.
+     * @param id the id.
+     * @param indexPlusOne the dense index plus one, zero to clear.
+     */
+    private void setIndex(long id, int indexPlusOne) {
+        sparse[(int) (id >>> PAGE_SHIFT)][(int) id & (PAGE_SIZE - 1)] = indexPlusOne;
+    }
+
+    /**
+     * Finds the sparse page of an id.
+     * @param id the id.
+     * @return the page index.
+     */
+    private static int page(long id) {
+        long page = id >>> PAGE_SHIFT;
+        if (id < 0 || page >= Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Entity id out of range: " + id);
+        }
+        return (int) page;
+    }
+}
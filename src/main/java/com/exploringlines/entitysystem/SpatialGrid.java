@@ -0,0 +1,570 @@
+package com.exploringlines.entitysystem;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Uniform grid over the entities with a position component, for radius and box queries without scanning
+ * every entity. Grids are created and cached by {@link EntitySystem#getSpatialGrid(Class, PositionAccessor, float)}.
+ * The grid listens to the set of the position type, so the positions of entities that gained, replaced, or
+ * lost the component are picked up when the set changes are flushed. A position modified in place is only
+ * picked up after {@link #update(Entity)} is called for the entity.
+ * Queries test the positions the grid holds and do not allocate.
+ * @param <T> the type of the position component.
+ */
+public class SpatialGrid<T extends Component> {
+    /**
+     * Starting number of entries and cells.
+     */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * Starting number of entries per cell.
+     */
+    private static final int INITIAL_CELL_CAPACITY = 4;
+
+    /**
+     * Entity system the positions are read from.
+     */
+    private final EntitySystem entitySystem;
+
+    /**
+     * Type of the position component.
+     */
+    private final Class<T> positionClass;
+
+    /**
+     * Reads the coordinates out of a position.
+     */
+    private final PositionAccessor<T> accessor;
+
+    /**
+     * Width and height of a cell.
+     */
+    private final float cellSize;
+
+    /**
+     * One over the size of a cell.
+     */
+    private final float inverseCellSize;
+
+    /**
+     * Maps an entity id to its entry.
+     */
+    private final LongIntMap entriesById = new LongIntMap();
+
+    /**
+     * Entity of each entry.
+     */
+    private Entity[] entities = new Entity[INITIAL_CAPACITY];
+
+    /**
+     * X coordinate of each entry.
+     */
+    private float[] xs = new float[INITIAL_CAPACITY];
+
+    /**
+     * Y coordinate of each entry.
+     */
+    private float[] ys = new float[INITIAL_CAPACITY];
+
+    /**
+     * Cell of each entry.
+     */
+    private int[] cellOf = new int[INITIAL_CAPACITY];
+
+    /**
+     * Position of each entry within its cell.
+     */
+    private int[] slotOf = new int[INITIAL_CAPACITY];
+
+    /**
+     * Number of entries.
+     */
+    private int size = 0;
+
+    /**
+     * Maps the packed coordinates of a cell to its index.
+     */
+    private final LongIntMap cellsByKey = new LongIntMap();
+
+    /**
+     * Entries of each cell.
+     */
+    private int[][] cells = new int[INITIAL_CAPACITY][];
+
+    /**
+     * Number of entries of each cell.
+     */
+    private int[] cellSizes = new int[INITIAL_CAPACITY];
+
+    /**
+     * Packed coordinates of each cell.
+     */
+    private long[] cellKeys = new long[INITIAL_CAPACITY];
+
+    /**
+     * Number of cell indexes handed out, including freed cells.
+     */
+    private int cellCount = 0;
+
+    /**
+     * Indexes of the cells freed when they emptied, reused before new indexes are handed out.
+     */
+    private int[] freeCells = new int[INITIAL_CAPACITY];
+
+    /**
+     * Number of freed cells.
+     */
+    private int freeCellCount = 0;
+
+    /**
+     * Lowest x cell coordinate in use, bounds the cells a query visits.
+     */
+    private int minCellX = Integer.MAX_VALUE;
+
+    /**
+     * Lowest y cell coordinate in use.
+     */
+    private int minCellY = Integer.MAX_VALUE;
+
+    /**
+     * Highest x cell coordinate in use.
+     */
+    private int maxCellX = Integer.MIN_VALUE;
+
+    /**
+     * Highest y cell coordinate in use.
+     */
+    private int maxCellY = Integer.MIN_VALUE;
+
+    /**
+     * True if a cell on the bounds was freed, the bounds are recomputed before the next query.
+     */
+    private boolean boundsStale = false;
+
+    /**
+     * Keeps the grid up to date with the set of the position type.
+     */
+    private final EntitySetListener listener = new EntitySetListener() {
+        @Override
+        public void entitiesAdded(EntitySet set, List<Entity> entities) {
+            for (int i = 0; i < entities.size(); i++) {
+                update(entities.get(i));
+            }
+        }
+
+        @Override
+        public void entitiesChanged(EntitySet set, List<Entity> entities) {
+            for (int i = 0; i < entities.size(); i++) {
+                update(entities.get(i));
+            }
+        }
+
+        @Override
+        public void entitiesRemoved(EntitySet set, List<Entity> entities) {
+            for (int i = 0; i < entities.size(); i++) {
+                remove(entities.get(i));
+            }
+        }
+    };
+
+    /**
+     * Initializes the grid with every entity that has the position type.
+     * @param entitySystem the entity system the positions are read from.
+     * @param positionClass the type of the position component.
+     * @param accessor reads the coordinates out of a position.
+     * @param cellSize width and height of a cell, about the radius of a typical query.
+     * @param positions the set of the position type.
+     */
+    SpatialGrid(EntitySystem entitySystem, Class<T> positionClass, PositionAccessor<T> accessor, float cellSize,
+                EntitySet positions) {
+        if (!(cellSize > 0)) {
+            throw new IllegalArgumentException("Cell size must be positive: " + cellSize);
+        }
+        this.entitySystem = entitySystem;
+        this.positionClass = positionClass;
+        this.accessor = accessor;
+        this.cellSize = cellSize;
+        this.inverseCellSize = 1 / cellSize;
+        List<Entity> members = positions.getEntities();
+        for (int i = 0; i < members.size(); i++) {
+            update(members.get(i));
+        }
+    }
+
+    /**
+     * @return the type of the position component.
+     */
+    public Class<T> getPositionClass() {
+        return positionClass;
+    }
+
+    /**
+     * @return width and height of a cell.
+     */
+    public float getCellSize() {
+        return cellSize;
+    }
+
+    /**
+     * @return the number of entities in the grid.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Reads the position of an entity again, used after the position was modified in place.
+     * An entity without the position type is removed from the grid.
+     * @param entity the entity.
+     */
+    public void update(Entity entity) {
+        // Removed entities still return their components until the set changes are flushed.
+        T position = entitySystem.hasEntity(entity) ? entitySystem.getComponent(entity, positionClass) : null;
+        if (position == null) {
+            remove(entity);
+            return;
+        }
+        float x = accessor.getX(position);
+        float y = accessor.getY(position);
+        int cell = cellAt(x, y);
+        int entry = entriesById.get(entity.getId());
+        if (entry < 0) {
+            entry = size++;
+            if (entry == entities.length) {
+                growEntries();
+            }
+            entities[entry] = entity;
+            entriesById.put(entity.getId(), entry);
+            addToCell(cell, entry);
+        } else if (cellOf[entry] != cell) {
+            removeFromCell(entry);
+            addToCell(cell, entry);
+        }
+        xs[entry] = x;
+        ys[entry] = y;
+    }
+
+    /**
+     * Removes an entity from the grid.
+     * @param entity the entity.
+     * @return true if the entity was in the grid.
+     */
+    public boolean remove(Entity entity) {
+        int entry = entriesById.remove(entity.getId());
+        if (entry < 0) {
+            return false;
+        }
+        removeFromCell(entry);
+        int last = --size;
+        if (entry != last) {
+            // Move the last entry into the hole, pointing its cell slot at the new entry.
+            entities[entry] = entities[last];
+            xs[entry] = xs[last];
+            ys[entry] = ys[last];
+            cellOf[entry] = cellOf[last];
+            slotOf[entry] = slotOf[last];
+            cells[cellOf[entry]][slotOf[entry]] = entry;
+            entriesById.put(entities[entry].getId(), entry);
+        }
+        entities[last] = null;
+        return true;
+    }
+
+    /**
+     * Visits the entities within a distance of a point.
+     * @param x x coordinate of the point.
+     * @param y y coordinate of the point.
+     * @param radius the distance, inclusive.
+     * @param visitor the visitor to call with each entity.
+     * @return the number of entities visited.
+     */
+    public int queryRadius(float x, float y, float radius, EntityVisitor visitor) {
+        return query(x - radius, y - radius, x + radius, y + radius, x, y, radius * radius, visitor, null);
+    }
+
+    /**
+     * Finds the ids of the entities within a distance of a point.
+     * @param x x coordinate of the point.
+     * @param y y coordinate of the point.
+     * @param radius the distance, inclusive.
+     * @param ids the array to write the ids to, ids past its length are counted but not written.
+     * @return the number of entities found, more than the length of the array if it was too small.
+     */
+    public int queryRadius(float x, float y, float radius, long[] ids) {
+        return query(x - radius, y - radius, x + radius, y + radius, x, y, radius * radius, null, ids);
+    }
+
+    /**
+     * Visits the entities within an axis aligned box.
+     * @param minX lowest x coordinate of the box, inclusive.
+     * @param minY lowest y coordinate of the box, inclusive.
+     * @param maxX highest x coordinate of the box, inclusive.
+     * @param maxY highest y coordinate of the box, inclusive.
+     * @param visitor the visitor to call with each entity.
+     * @return the number of entities visited.
+     */
+    public int queryBox(float minX, float minY, float maxX, float maxY, EntityVisitor visitor) {
+        return query(minX, minY, maxX, maxY, 0, 0, -1, visitor, null);
+    }
+
+    /**
+     * Finds the ids of the entities within an axis aligned box.
+     * @param minX lowest x coordinate of the box, inclusive.
+     * @param minY lowest y coordinate of the box, inclusive.
+     * @param maxX highest x coordinate of the box, inclusive.
+     * @param maxY highest y coordinate of the box, inclusive.
+     * @param ids the array to write the ids to, ids past its length are counted but not written.
+     * @return the number of entities found, more than the length of the array if it was too small.
+     */
+    public int queryBox(float minX, float minY, float maxX, float maxY, long[] ids) {
+        return query(minX, minY, maxX, maxY, 0, 0, -1, null, ids);
+    }
+
+    /**
+     * @return the number of cells holding entities.
+     */
+    int getCellCount() {
+        return cellCount - freeCellCount;
+    }
+
+    /**
+     * @return the listener keeping the grid up to date with the set of the position type.
+     */
+    EntitySetListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Finds the entities within a box and optionally within a distance of a point.
+     * A range covering more cells than are in use visits the cells in use instead of every cell of the range.
+     * @param minX lowest x coordinate of the box.
+     * @param minY lowest y coordinate of the box.
+     * @param maxX highest x coordinate of the box.
+     * @param maxY highest y coordinate of the box.
+     * @param x x coordinate of the point.
+     * @param y y coordinate of the point.
+     * @param radiusSquared the squared distance, negative to only test the box.
+     * @param visitor the visitor to call with each entity, or null.
+     * @param ids the array to write ids to, or null.
+     * @return the number of entities found.
+     */
+    private int query(float minX, float minY, float maxX, float maxY, float x, float y, float radiusSquared,
+                      EntityVisitor visitor, long[] ids) {
+        if (boundsStale) {
+            recomputeBounds();
+        }
+        int fromX = Math.max(cellCoordinate(minX), minCellX);
+        int fromY = Math.max(cellCoordinate(minY), minCellY);
+        int toX = Math.min(cellCoordinate(maxX), maxCellX);
+        int toY = Math.min(cellCoordinate(maxY), maxCellY);
+        if (fromX > toX || fromY > toY) {
+            return 0;
+        }
+        int found = 0;
+        if (((long) toX - fromX + 1) * ((long) toY - fromY + 1) > getCellCount()) {
+            for (int cell = 0; cell < cellCount; cell++) {
+                if (cellSizes[cell] == 0) {
+                    continue;
+                }
+                int cellX = (int) (cellKeys[cell] >> 32);
+                int cellY = (int) cellKeys[cell];
+                if (cellX >= fromX && cellX <= toX && cellY >= fromY && cellY <= toY) {
+                    found = queryCell(cell, minX, minY, maxX, maxY, x, y, radiusSquared, visitor, ids, found);
+                }
+            }
+            return found;
+        }
+        // Long counters so a range ending at the highest int terminates.
+        for (long cellX = fromX; cellX <= toX; cellX++) {
+            for (long cellY = fromY; cellY <= toY; cellY++) {
+                int cell = cellsByKey.get(key((int) cellX, (int) cellY));
+                if (cell >= 0) {
+                    found = queryCell(cell, minX, minY, maxX, maxY, x, y, radiusSquared, visitor, ids, found);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Tests the entries of one cell against a query.
+     * @param cell the index of the cell.
+     * @param minX lowest x coordinate of the box.
+     * @param minY lowest y coordinate of the box.
+     * @param maxX highest x coordinate of the box.
+     * @param maxY highest y coordinate of the box.
+     * @param x x coordinate of the point.
+     * @param y y coordinate of the point.
+     * @param radiusSquared the squared distance, negative to only test the box.
+     * @param visitor the visitor to call with each entity, or null.
+     * @param ids the array to write ids to, or null.
+     * @param found the number of entities found before the cell.
+     * @return the number of entities found including the cell.
+     */
+    private int queryCell(int cell, float minX, float minY, float maxX, float maxY, float x, float y,
+                          float radiusSquared, EntityVisitor visitor, long[] ids, int found) {
+        int[] entries = cells[cell];
+        for (int i = 0; i < cellSizes[cell]; i++) {
+            int entry = entries[i];
+            float entryX = xs[entry];
+            float entryY = ys[entry];
+            if (radiusSquared >= 0) {
+                float dx = entryX - x;
+                float dy = entryY - y;
+                if (dx * dx + dy * dy > radiusSquared) {
+                    continue;
+                }
+            } else if (entryX < minX || entryX > maxX || entryY < minY || entryY > maxY) {
+                continue;
+            }
+            if (ids != null && found < ids.length) {
+                ids[found] = entities[entry].getId();
+            }
+            found++;
+            if (visitor != null) {
+                visitor.visit(entities[entry]);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Finds the cell holding a point, creating it if needed.
+     * @param x x coordinate of the point.
+     * @param y y coordinate of the point.
+     * @return the index of the cell.
+     */
+    private int cellAt(float x, float y) {
+        int cellX = cellCoordinate(x);
+        int cellY = cellCoordinate(y);
+        long key = key(cellX, cellY);
+        int cell = cellsByKey.get(key);
+        if (cell < 0) {
+            if (freeCellCount > 0) {
+                // Freed cells keep their entry array.
+                cell = freeCells[--freeCellCount];
+            } else {
+                cell = cellCount++;
+                if (cell == cells.length) {
+                    cells = Arrays.copyOf(cells, cell * 2);
+                    cellSizes = Arrays.copyOf(cellSizes, cell * 2);
+                    cellKeys = Arrays.copyOf(cellKeys, cell * 2);
+                }
+                cells[cell] = new int[INITIAL_CELL_CAPACITY];
+            }
+            cellKeys[cell] = key;
+            cellsByKey.put(key, cell);
+            minCellX = Math.min(minCellX, cellX);
+            minCellY = Math.min(minCellY, cellY);
+            maxCellX = Math.max(maxCellX, cellX);
+            maxCellY = Math.max(maxCellY, cellY);
+        }
+        return cell;
+    }
+
+    /**
+     * Adds an entry to a cell.
+     * @param cell the index of the cell.
+     * @param entry the entry.
+     */
+    private void addToCell(int cell, int entry) {
+        int slot = cellSizes[cell]++;
+        if (slot == cells[cell].length) {
+            cells[cell] = Arrays.copyOf(cells[cell], slot * 2);
+        }
+        cells[cell][slot] = entry;
+        cellOf[entry] = cell;
+        slotOf[entry] = slot;
+    }
+
+    /**
+     * Removes an entry from its cell by moving the last entry of the cell into its place.
+     * A cell left empty is freed.
+     * @param entry the entry.
+     */
+    private void removeFromCell(int entry) {
+        int cell = cellOf[entry];
+        int slot = slotOf[entry];
+        int last = --cellSizes[cell];
+        if (slot != last) {
+            int moved = cells[cell][last];
+            cells[cell][slot] = moved;
+            slotOf[moved] = slot;
+        }
+        if (last == 0) {
+            freeCell(cell);
+        }
+    }
+
+    /**
+     * Frees an empty cell so its index is reused and queries stop visiting it.
+     * @param cell the index of the cell.
+     */
+    private void freeCell(int cell) {
+        long key = cellKeys[cell];
+        cellsByKey.remove(key);
+        if (freeCellCount == freeCells.length) {
+            freeCells = Arrays.copyOf(freeCells, freeCellCount * 2);
+        }
+        freeCells[freeCellCount++] = cell;
+        int cellX = (int) (key >> 32);
+        int cellY = (int) key;
+        if (cellX == minCellX || cellX == maxCellX || cellY == minCellY || cellY == maxCellY) {
+            boundsStale = true;
+        }
+    }
+
+    /**
+     * Shrinks the bounds to the cells in use.
+     */
+    private void recomputeBounds() {
+        minCellX = Integer.MAX_VALUE;
+        minCellY = Integer.MAX_VALUE;
+        maxCellX = Integer.MIN_VALUE;
+        maxCellY = Integer.MIN_VALUE;
+        for (int cell = 0; cell < cellCount; cell++) {
+            if (cellSizes[cell] > 0) {
+                int cellX = (int) (cellKeys[cell] >> 32);
+                int cellY = (int) cellKeys[cell];
+                minCellX = Math.min(minCellX, cellX);
+                minCellY = Math.min(minCellY, cellY);
+                maxCellX = Math.max(maxCellX, cellX);
+                maxCellY = Math.max(maxCellY, cellY);
+            }
+        }
+        boundsStale = false;
+    }
+
+    /**
+     * Doubles the capacity of the entries.
+     */
+    private void growEntries() {
+        int capacity = entities.length * 2;
+        entities = Arrays.copyOf(entities, capacity);
+        xs = Arrays.copyOf(xs, capacity);
+        ys = Arrays.copyOf(ys, capacity);
+        cellOf = Arrays.copyOf(cellOf, capacity);
+        slotOf = Arrays.copyOf(slotOf, capacity);
+    }
+
+    /**
+     * Finds the cell coordinate of a coordinate.
+     * @param coordinate the coordinate.
+     * @return the cell coordinate, clamped to the range of an int.
+     */
+    private int cellCoordinate(float coordinate) {
+        return (int) Math.floor(coordinate * inverseCellSize);
+    }
+
+    /**
+     * Packs cell coordinates into a key.
+     * @param cellX the x cell coordinate.
+     * @param cellY the y cell coordinate.
+     * @return the key.
+     */
+    private static long key(int cellX, int cellY) {
+        return ((long) cellX << 32) | (cellY & 0xFFFFFFFFL);
+    }
+}
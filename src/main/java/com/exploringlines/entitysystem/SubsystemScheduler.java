@@ -0,0 +1,354 @@
+package com.exploringlines.entitysystem;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs subsystems each tick, running subsystems whose component access does not conflict in parallel.
+ * Each subsystem declares the component types it reads and writes. Two subsystems conflict when one
+ * writes a type the other reads or writes. A subsystem runs after every earlier registered subsystem it
+ * conflicts with, subsystems without conflicts between them share a phase and run on the fork join pool.
+ * After all update phases the subsystems are cleaned up in registration order and then the set changes
+ * of the entity system are flushed.
+ * Subsystems sharing a phase must only read and modify the components they declared,
+ * structural changes such as setting, removing, or creating are recorded into the command buffer of the
+ * subsystem and played back after the phase in registration order, or made by an exclusive subsystem.
+ */
+public class SubsystemScheduler {
+    /**
+     * Entity system flushed at the end of each tick.
+     */
+    private final EntitySystem entitySystem;
+
+    /**
+     * Pool that runs the subsystems of a phase.
+     */
+    private final ForkJoinPool pool;
+
+    /**
+     * True if the pool was created by the scheduler and should be shut down with it.
+     */
+    private final boolean ownsPool;
+
+    /**
+     * Subsystems in registration order.
+     */
+    private final List<ScheduledSubsystem> subsystems = new ArrayList<ScheduledSubsystem>();
+
+    /**
+     * Subsystems grouped into phases, rebuilt when the subsystems change.
+     */
+    private List<List<ScheduledSubsystem>> phases = null;
+
+    /**
+     * Initializes the scheduler with its own pool using every available processor.
+     * @param entitySystem the entity system to flush at the end of each tick.
+     */
+    public SubsystemScheduler(EntitySystem entitySystem) {
+        this(entitySystem, new ForkJoinPool(), true);
+    }
+
+    /**
+     * Initializes the scheduler with a shared pool.
+     * @param entitySystem the entity system to flush at the end of each tick.
+     * @param pool the pool to run subsystems on, not shut down by the scheduler.
+     */
+    public SubsystemScheduler(EntitySystem entitySystem, ForkJoinPool pool) {
+        this(entitySystem, pool, false);
+    }
+
+    /**
+     * Initializes the scheduler.
+     * @param entitySystem the entity system to flush at the end of each tick.
+     * @param pool the pool to run subsystems on.
+     * @param ownsPool true if the pool should be shut down with the scheduler.
+     */
+    private SubsystemScheduler(EntitySystem entitySystem, ForkJoinPool pool, boolean ownsPool) {
+        this.entitySystem = entitySystem;
+        this.pool = pool;
+        this.ownsPool = ownsPool;
+    }
+
+    /**
+     * Adds a subsystem with the component types it accesses.
+     * @param subsystem the subsystem to add.
+     * @param reads the component types the subsystem only reads.
+     * @param writes the component types the subsystem modifies.
+     */
+    public void addSubsystem(Subsystem subsystem, Class[] reads, Class[] writes) {
+        subsystems.add(new ScheduledSubsystem(subsystem, reads, writes, false, new CommandBuffer(entitySystem)));
+        phases = null;
+    }
+
+    /**
+     * Adds a subsystem that conflicts with every other subsystem and so always runs alone.
+     * Use for subsystems that make structural changes to the entity system.
+     * @param subsystem the subsystem to add.
+     */
+    public void addExclusiveSubsystem(Subsystem subsystem) {
+        subsystems.add(new ScheduledSubsystem(subsystem, new Class[0], new Class[0], true,
+                new CommandBuffer(entitySystem)));
+        phases = null;
+    }
+
+    /**
+     * Removes a subsystem without destroying it.
+     * @param subsystem the subsystem to remove.
+     * @return true if the subsystem was scheduled.
+     */
+    public boolean removeSubsystem(Subsystem subsystem) {
+        for (int i = 0; i < subsystems.size(); i++) {
+            if (subsystems.get(i).subsystem == subsystem) {
+                subsystems.remove(i);
+                phases = null;
+                entitySystem.getMetricsSink().subsystemRemoved(subsystem);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Retrieves the command buffer of a subsystem.
+     * The buffer is played back after the phase of the subsystem, before later phases run.
+     * @param subsystem the scheduled subsystem.
+     * @return the command buffer of the subsystem.
+     */
+    public CommandBuffer getCommandBuffer(Subsystem subsystem) {
+        for (ScheduledSubsystem scheduled : subsystems) {
+            if (scheduled.subsystem == subsystem) {
+                return scheduled.commandBuffer;
+            }
+        }
+        throw new IllegalArgumentException("Subsystem is not scheduled: " + subsystem);
+    }
+
+    /**
+     * Runs one tick: every update phase, the cleanup phase, then flushes the set changes.
+     * The command buffers of a phase are played back in registration order once the phase is done.
+     * @param tpf the time per frame.
+     */
+    public void update(float tpf) {
+        MetricsSink metrics = entitySystem.getMetricsSink();
+        for (List<ScheduledSubsystem> phase : getPhases()) {
+            // Subsystems of one phase never write the same types, so they share a change tick.
+            entitySystem.advanceChangeTick();
+            if (phase.size() == 1) {
+                updateSubsystem(phase.get(0).subsystem, tpf, metrics);
+            } else {
+                // Subsystems of a parallel phase must record structural changes into their command buffers.
+                entitySystem.enterParallelIteration();
+                try {
+                    pool.invoke(new PhaseTask(phase, tpf, metrics));
+                } finally {
+                    entitySystem.exitParallelIteration();
+                }
+            }
+            for (ScheduledSubsystem scheduled : phase) {
+                scheduled.commandBuffer.playback();
+            }
+        }
+        for (ScheduledSubsystem scheduled : subsystems) {
+            if (metrics == MetricsSink.NONE) {
+                scheduled.subsystem.cleanupSubsystem();
+            } else {
+                long start = System.nanoTime();
+                scheduled.subsystem.cleanupSubsystem();
+                metrics.subsystemCleanedUp(scheduled.subsystem, System.nanoTime() - start);
+            }
+        }
+        entitySystem.flushSetChanges();
+    }
+
+    /**
+     * Updates a subsystem, timing the update when metrics are enabled.
+     * @param subsystem the subsystem to update.
+     * @param tpf the time per frame.
+     * @param metrics the sink to report the time to.
+     */
+    static void updateSubsystem(Subsystem subsystem, float tpf, MetricsSink metrics) {
+        if (metrics == MetricsSink.NONE) {
+            subsystem.update(tpf);
+            return;
+        }
+        long start = System.nanoTime();
+        subsystem.update(tpf);
+        metrics.subsystemUpdated(subsystem, System.nanoTime() - start);
+    }
+
+    /**
+     * Destroys every subsystem and shuts down the pool if the scheduler created it.
+     */
+    public void destroy() {
+        for (ScheduledSubsystem scheduled : subsystems) {
+            scheduled.subsystem.destroy();
+        }
+        subsystems.clear();
+        phases = null;
+        if (ownsPool) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Retrieves the update phases, building them if the subsystems changed.
+     * @return the subsystems grouped by phase in run order.
+     */
+    List<List<ScheduledSubsystem>> getPhases() {
+        if (phases == null) {
+            phases = buildPhases(subsystems);
+        }
+        return phases;
+    }
+
+    /**
+     * Places each subsystem in the phase after the latest earlier subsystem it conflicts with.
+     * @param subsystems the subsystems in registration order.
+     * @return the subsystems grouped by phase in run order.
+     */
+    private static List<List<ScheduledSubsystem>> buildPhases(List<ScheduledSubsystem> subsystems) {
+        List<List<ScheduledSubsystem>> phases = new ArrayList<List<ScheduledSubsystem>>();
+        int[] levels = new int[subsystems.size()];
+        for (int i = 0; i < subsystems.size(); i++) {
+            ScheduledSubsystem scheduled = subsystems.get(i);
+            int level = 0;
+            for (int j = 0; j < i; j++) {
+                if (levels[j] >= level && scheduled.conflictsWith(subsystems.get(j))) {
+                    level = levels[j] + 1;
+                }
+            }
+            levels[i] = level;
+            if (level == phases.size()) {
+                phases.add(new ArrayList<ScheduledSubsystem>());
+            }
+            phases.get(level).add(scheduled);
+        }
+        return phases;
+    }
+
+    /**
+     * A subsystem with its declared component access.
+     */
+    static final class ScheduledSubsystem {
+        /**
+         * The scheduled subsystem.
+         */
+        final Subsystem subsystem;
+
+        /**
+         * Component types the subsystem only reads.
+         */
+        private final Set<Class> reads;
+
+        /**
+         * Component types the subsystem modifies.
+         */
+        private final Set<Class> writes;
+
+        /**
+         * True if the subsystem conflicts with every other subsystem.
+         */
+        private final boolean exclusive;
+
+        /**
+         * Buffer for the structural changes of the subsystem.
+         */
+        final CommandBuffer commandBuffer;
+
+        /**
+         * Initializes the scheduled subsystem.
+         * @param subsystem the scheduled subsystem.
+         * @param reads component types the subsystem only reads.
+         * @param writes component types the subsystem modifies.
+         * @param exclusive true if the subsystem conflicts with every other subsystem.
+         * @param commandBuffer buffer for the structural changes of the subsystem.
+         */
+        ScheduledSubsystem(Subsystem subsystem, Class[] reads, Class[] writes, boolean exclusive,
+                           CommandBuffer commandBuffer) {
+            this.subsystem = subsystem;
+            this.reads = Collections.unmodifiableSet(new HashSet<Class>(Arrays.asList(reads)));
+            this.writes = Collections.unmodifiableSet(new HashSet<Class>(Arrays.asList(writes)));
+            this.exclusive = exclusive;
+            this.commandBuffer = commandBuffer;
+        }
+
+        /**
+         * Checks if the subsystems may not run at the same time.
+         * @param other the other subsystem.
+         * @return true if either writes a type the other accesses.
+         */
+        boolean conflictsWith(ScheduledSubsystem other) {
+            if (exclusive || other.exclusive) {
+                return true;
+            }
+            for (Class type : writes) {
+                if (other.reads.contains(type) || other.writes.contains(type)) {
+                    return true;
+                }
+            }
+            for (Class type : other.writes) {
+                if (reads.contains(type)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Updates every subsystem of a phase in parallel.
+     */
+    private static final class PhaseTask extends RecursiveAction {
+        /**
+         * Version of the serialized form.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Subsystems of the phase.
+         */
+        private final List<ScheduledSubsystem> phase;
+
+        /**
+         * The time per frame.
+         */
+        private final float tpf;
+
+        /**
+         * Sink the update times are reported to.
+         */
+        private final MetricsSink metrics;
+
+        /**
+         * Initializes the task.
+         * @param phase subsystems of the phase.
+         * @param tpf the time per frame.
+         * @param metrics sink the update times are reported to.
+         */
+        PhaseTask(List<ScheduledSubsystem> phase, float tpf, MetricsSink metrics) {
+            this.phase = phase;
+            this.tpf = tpf;
+            this.metrics = metrics;
+        }
+
+        @Override
+        protected void compute() {
+            List<RecursiveAction> tasks = new ArrayList<RecursiveAction>(phase.size());
+            for (final ScheduledSubsystem scheduled : phase) {
+                tasks.add(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        updateSubsystem(scheduled.subsystem, tpf, metrics);
+                    }
+                });
+            }
+            invokeAll(tasks);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.exploringlines.entitysystem;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the views of an entity system, copying only the chunks of rows and the location pages that
+ * changed since the previous view and sharing the rest.
+ */
+final class ViewPublisher {
+    /**
+     * Entity system the views are built from.
+     */
+    private final EntitySystem entitySystem;
+
+    /**
+     * The last published view, null before the first.
+     */
+    private WorldView previous = null;
+
+    /**
+     * Location pages of entities removed since the previous view.
+     */
+    private final BitSet removedPages = new BitSet();
+
+    /**
+     * Component type ids of the previous view, shared while no types are added.
+     */
+    private Map<Class, Integer> typeIds = new HashMap<Class, Integer>();
+
+    /**
+     * Initializes the publisher.
+     * @param entitySystem the entity system to build views from.
+     */
+    ViewPublisher(EntitySystem entitySystem) {
+        this.entitySystem = entitySystem;
+    }
+
+    /**
+     * Records that an entity was removed so its location page is rebuilt.
+     * @param entity the removed entity.
+     */
+    void entityRemoved(Entity entity) {
+        removedPages.set((int) (entity.index >>> WorldView.PAGE_SHIFT));
+    }
+
+    /**
+     * Builds a view of the current state of the entity system.
+     * @return the new view.
+     */
+    @SuppressWarnings("unchecked")
+    WorldView publish() {
+        List<Archetype> archetypeList = entitySystem.getArchetypes();
+        Class[] classes = entitySystem.getComponentClasses();
+        if (classes.length != typeIds.size()) {
+            typeIds = new HashMap<Class, Integer>();
+            for (int typeId = 0; typeId < classes.length; typeId++) {
+                typeIds.put(classes[typeId], typeId);
+            }
+        }
+
+        // Copy the changed chunks of each archetype and note the pages of the entities in them.
+        BitSet dirtyPages = removedPages;
+        WorldView.ArchetypeView[] previousArchetypes = previous == null
+                ? new WorldView.ArchetypeView[0] : previous.getArchetypes();
+        WorldView.ArchetypeView[] archetypes = new WorldView.ArchetypeView[archetypeList.size()];
+        Map<Archetype, Integer> archetypeIndexes = new IdentityHashMap<Archetype, Integer>();
+        int size = 0;
+        for (int i = 0; i < archetypes.length; i++) {
+            Archetype archetype = archetypeList.get(i);
+            archetypeIndexes.put(archetype, i);
+            WorldView.ArchetypeView previousArchetype = i < previousArchetypes.length ? previousArchetypes[i] : null;
+            ComponentMask mask = archetype.getMask();
+            int[] typeIdsOfColumns = new int[mask.cardinality()];
+            int[] columnIndex = new int[typeIdsOfColumns.length == 0 ? 0 : maxTypeId(mask) + 1];
+            Arrays.fill(columnIndex, -1);
+            int column = 0;
+            for (int typeId = mask.nextTypeId(0); typeId >= 0; typeId = mask.nextTypeId(typeId + 1)) {
+                typeIdsOfColumns[column] = typeId;
+                columnIndex[typeId] = column++;
+            }
+            int chunkCount = (archetype.size() + Archetype.CHUNK_SIZE - 1) >>> Archetype.CHUNK_SHIFT;
+            WorldView.Chunk[] chunks = new WorldView.Chunk[chunkCount];
+            for (int chunk = 0; chunk < chunkCount; chunk++) {
+                int first = chunk << Archetype.CHUNK_SHIFT;
+                int rows = Math.min(Archetype.CHUNK_SIZE, archetype.size() - first);
+                if (previousArchetype != null && chunk < previousArchetype.chunks.length
+                        && !archetype.isChunkDirty(chunk) && previousArchetype.chunks[chunk].ids.length == rows) {
+                    chunks[chunk] = previousArchetype.chunks[chunk];
+                } else {
+                    chunks[chunk] = copyChunk(archetype, typeIdsOfColumns, first, rows, dirtyPages);
+                }
+            }
+            archetype.clearDirtyChunks();
+            archetypes[i] = new WorldView.ArchetypeView(mask, archetype.size(), columnIndex, chunks);
+            size += archetype.size();
+        }
+
+        // Rebuild the location pages with a moved, added, or removed entity.
+        int pageCount = (int) ((entitySystem.getNextId() + WorldView.PAGE_SIZE - 1) >>> WorldView.PAGE_SHIFT);
+        int[][] pages = previous == null ? new int[pageCount][] : Arrays.copyOf(previous.getPages(), pageCount);
+        for (int page = 0; page < pageCount; page++) {
+            if (previous == null || page >= previous.getPages().length || dirtyPages.get(page)) {
+                pages[page] = buildPage(page, archetypeIndexes);
+            }
+        }
+        removedPages.clear();
+
+        previous = new WorldView(previous == null ? 0 : previous.getVersion() + 1, size, entitySystem.getIdMode(),
+                typeIds, archetypes, pages);
+        return previous;
+    }
+
+    /**
+     * Copies the rows of a chunk.
+     * @param archetype the archetype of the rows.
+     * @param typeIds the type id of each column.
+     * @param first the first row of the chunk.
+     * @param rows the number of rows in the chunk.
+     * @param dirtyPages the location pages to rebuild, the pages of the entities in the chunk are added.
+     * @return the copied chunk.
+     */
+    private WorldView.Chunk copyChunk(Archetype archetype, int[] typeIds, int first, int rows, BitSet dirtyPages) {
+        long[] ids = new long[rows];
+        for (int row = 0; row < rows; row++) {
+            Entity entity = archetype.getEntity(first + row);
+            ids[row] = entity.getId();
+            dirtyPages.set((int) (entity.index >>> WorldView.PAGE_SHIFT));
+        }
+        Component[][] columns = new Component[typeIds.length][rows];
+        for (int column = 0; column < typeIds.length; column++) {
+            ComponentStore store = entitySystem.getComponentStore(typeIds[column]);
+            for (int row = 0; row < rows; row++) {
+                // Stores already create a new component when retrieving.
+                columns[column][row] = store != null ? store.get(archetype.getEntity(first + row))
+                        : archetype.get(first + row, typeIds[column]).copy();
+            }
+        }
+        return new WorldView.Chunk(ids, columns);
+    }
+
+    /**
+     * Builds a location page from the current location of the entities whose index is in its range.
+     * @param page the index of the page.
+     * @param archetypeIndexes the index of each archetype.
+     * @return the page or null if no entity in the range exists.
+     */
+    private int[] buildPage(int page, Map<Archetype, Integer> archetypeIndexes) {
+        int[] locations = null;
+        long firstIndex = (long) page << WorldView.PAGE_SHIFT;
+        for (int i = 0; i < WorldView.PAGE_SIZE; i++) {
+            Entity entity = entitySystem.getEntityAtIndex(firstIndex + i);
+            if (entity != null && entity.archetype != null) {
+                if (locations == null) {
+                    locations = new int[WorldView.PAGE_SIZE * 2];
+                }
+                locations[i << 1] = archetypeIndexes.get(entity.archetype) + 1;
+                locations[(i << 1) + 1] = entity.row;
+            }
+        }
+        return locations;
+    }
+
+    /**
+     * Finds the highest type id of a mask.
+     * @param mask the mask, not empty.
+     * @return the highest type id.
+     */
+    private static int maxTypeId(ComponentMask mask) {
+        int max = -1;
+        for (int typeId = mask.nextTypeId(0); typeId >= 0; typeId = mask.nextTypeId(typeId + 1)) {
+            max = typeId;
+        }
+        return max;
+    }
+}
@@ -0,0 +1,13 @@
+package com.exploringlines.entitysystem;
+
+/**
+ * Visits the entities of a {@link WorldView}.
+ */
+public interface ViewVisitor {
+    /**
+     * Visits an entity.
+     * @param view the view the entity is part of, used to retrieve its components.
+     * @param entityId the id of the entity.
+     */
+    void visit(WorldView view, long entityId);
+}
@@ -0,0 +1,223 @@
+package com.exploringlines.entitysystem;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a whole entity system to a channel in a compact binary form and restores it.
+ * A snapshot holds the id counter, the id and name of every entity, and every component, grouped by
+ * archetype so a restore fills each archetype and each cached set in one pass instead of one component
+ * at a time. Components are written field by field, see {@link ComponentCodec} for the supported fields.
+ * Removed entities whose components are still retrievable until the next flush are not part of a snapshot.
+ */
+public final class WorldSnapshot {
+    /**
+     * Marks the start of a snapshot.
+     */
+    private static final int MAGIC = 0x45535353;
+
+    /**
+     * Version of the snapshot format.
+     */
+    private static final int VERSION = 2;
+
+    /**
+     * Only static methods.
+     */
+    private WorldSnapshot() {
+    }
+
+    /**
+     * Writes every entity and component of an entity system.
+     * The system must not change while it is written.
+     * @param entitySystem the entity system to write.
+     * @param channel the channel to write to, left open.
+     * @throws IOException if the channel cannot be written.
+     * @throws IllegalArgumentException if a component has a field that cannot be written.
+     */
+    public static void write(EntitySystem entitySystem, WritableByteChannel channel) throws IOException {
+        ChannelOutput output = new ChannelOutput(channel);
+        output.putInt(MAGIC);
+        output.putInt(VERSION);
+        output.putByte((byte) entitySystem.getIdMode().ordinal());
+        output.putLong(entitySystem.getNextId());
+
+        // Write the layout of every type an entity has.
+        List<Archetype> archetypes = entitySystem.getArchetypes();
+        Class[] classes = entitySystem.getComponentClasses();
+        ComponentCodec[] codecs = new ComponentCodec[classes.length];
+        ComponentMask used = ComponentMask.EMPTY;
+        int archetypeCount = 0;
+        for (Archetype archetype : archetypes) {
+            if (archetype.size() > 0) {
+                used = used.with(archetype.getMask());
+                archetypeCount++;
+            }
+        }
+        output.putInt(used.cardinality());
+        for (int typeId = used.nextTypeId(0); typeId >= 0; typeId = used.nextTypeId(typeId + 1)) {
+            codecs[typeId] = codec(classes[typeId]);
+            output.putInt(typeId);
+            codecs[typeId].writeLayout(output);
+        }
+
+        // Write each archetype as its entities followed by one column of components per type.
+        output.putInt(archetypeCount);
+        for (Archetype archetype : archetypes) {
+            int size = archetype.size();
+            if (size == 0) {
+                continue;
+            }
+            ComponentMask mask = archetype.getMask();
+            output.putInt(mask.cardinality());
+            for (int typeId = mask.nextTypeId(0); typeId >= 0; typeId = mask.nextTypeId(typeId + 1)) {
+                output.putInt(typeId);
+            }
+            output.putInt(size);
+            for (int row = 0; row < size; row++) {
+                Entity entity = archetype.getEntity(row);
+                output.putLong(entity.getId());
+                output.putString(entity.getName());
+            }
+            for (int typeId = mask.nextTypeId(0); typeId >= 0; typeId = mask.nextTypeId(typeId + 1)) {
+                writeColumn(output, entitySystem, archetype, typeId, codecs[typeId]);
+            }
+        }
+        output.flush();
+    }
+
+    /**
+     * Restores a snapshot into an entity system without entities.
+     * Component stores and sets of the system are kept, the restored entities are added to the sets in bulk.
+     * Entities are given their ids and names from the snapshot, entities created afterwards get ids above them.
+     * @param entitySystem the entity system to restore into.
+     * @param channel the channel to read from, left open.
+     * @throws IOException if the channel cannot be read or does not hold a snapshot of the same components.
+     * @throws IllegalStateException if the entity system has entities.
+     * @throws IllegalArgumentException if the channel is in non-blocking mode.
+     */
+    public static void read(EntitySystem entitySystem, ReadableByteChannel channel) throws IOException {
+        if (entitySystem.getEntityCount() != 0) {
+            throw new IllegalStateException("A snapshot can only be restored into an entity system without entities.");
+        }
+        ChannelInput input = new ChannelInput(channel);
+        if (input.getInt() != MAGIC || input.getInt() != VERSION) {
+            throw new IOException("Not an entity system snapshot.");
+        }
+        if (input.getByte() != entitySystem.getIdMode().ordinal()) {
+            throw new IOException("The snapshot was taken from an entity system with another id mode.");
+        }
+        long nextId = input.getLong();
+
+        // Map the type ids of the snapshot to the type ids of the system.
+        int typeCount = input.getInt();
+        Map<Integer, ComponentCodec> codecs = new HashMap<Integer, ComponentCodec>();
+        Map<Integer, Integer> typeIds = new HashMap<Integer, Integer>();
+        for (int i = 0; i < typeCount; i++) {
+            int snapshotTypeId = input.getInt();
+            String className = input.getString();
+            Class componentClass;
+            try {
+                componentClass = Class.forName(className);
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Component type " + className + " of the snapshot is not available.", e);
+            }
+            ComponentCodec codec = codec(componentClass);
+            codec.checkLayout(input);
+            codecs.put(snapshotTypeId, codec);
+            typeIds.put(snapshotTypeId, entitySystem.getComponentTypeId(componentClass));
+        }
+
+        int archetypeCount = input.getInt();
+        for (int i = 0; i < archetypeCount; i++) {
+            int[] snapshotTypeIds = new int[input.getInt()];
+            ComponentMask mask = ComponentMask.EMPTY;
+            for (int j = 0; j < snapshotTypeIds.length; j++) {
+                snapshotTypeIds[j] = input.getInt();
+                Integer typeId = typeIds.get(snapshotTypeIds[j]);
+                if (typeId == null) {
+                    throw new IOException("Corrupt snapshot, unknown type " + snapshotTypeIds[j]);
+                }
+                mask = mask.with(typeId);
+            }
+            Archetype archetype = entitySystem.getArchetype(mask);
+            int firstRow = archetype.size();
+            int size = input.getInt();
+            for (int row = 0; row < size; row++) {
+                long id = input.getLong();
+                String name = input.getString();
+                entitySystem.restoreEntity(id, name, archetype);
+            }
+            for (int snapshotTypeId : snapshotTypeIds) {
+                readColumn(input, entitySystem, archetype, firstRow, typeIds.get(snapshotTypeId),
+                        codecs.get(snapshotTypeId));
+            }
+            entitySystem.addToSets(archetype, firstRow);
+        }
+        entitySystem.advanceNextId(nextId);
+    }
+
+    /**
+     * Writes the components of one type of every entity in an archetype.
+     * @param output the output to write to.
+     * @param entitySystem the entity system the archetype belongs to.
+     * @param archetype the archetype.
+     * @param typeId the id of the type.
+     * @param codec the codec of the type.
+     */
+    @SuppressWarnings("unchecked")
+    private static void writeColumn(ChannelOutput output, EntitySystem entitySystem, Archetype archetype, int typeId,
+                                    ComponentCodec codec) throws IOException {
+        ComponentStore store = entitySystem.getComponentStore(typeId);
+        if (store == null) {
+            Component[] column = archetype.getColumn(typeId);
+            for (int row = 0; row < archetype.size(); row++) {
+                codec.write(output, column[row]);
+            }
+        } else {
+            // Copy the stored data into one reused component.
+            Component component = codec.newInstance();
+            for (int row = 0; row < archetype.size(); row++) {
+                store.readInto(archetype.getEntity(row), component);
+                codec.write(output, component);
+            }
+        }
+    }
+
+    /**
+     * Reads the components of one type of the restored entities of an archetype.
+     * @param input the input to read from.
+     * @param entitySystem the entity system the archetype belongs to.
+     * @param archetype the archetype.
+     * @param firstRow the row of the first restored entity.
+     * @param typeId the id of the type.
+     * @param codec the codec of the type.
+     */
+    @SuppressWarnings("unchecked")
+    private static void readColumn(ChannelInput input, EntitySystem entitySystem, Archetype archetype, int firstRow,
+                                   int typeId, ComponentCodec codec) throws IOException {
+        ComponentStore store = entitySystem.getComponentStore(typeId);
+        for (int row = firstRow; row < archetype.size(); row++) {
+            Component component = codec.read(input);
+            if (store == null) {
+                archetype.set(row, typeId, component);
+            } else {
+                store.set(archetype.getEntity(row), component);
+            }
+        }
+    }
+
+    /**
+     * Creates the codec of a component type.
+     * @param componentClass the component type.
+     * @return the codec.
+     */
+    @SuppressWarnings("unchecked")
+    private static ComponentCodec codec(Class componentClass) {
+        return new ComponentCodec(componentClass);
+    }
+}
@@ -0,0 +1,305 @@
+package com.exploringlines.entitysystem;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable view of the entities and components of an entity system at the moment it was published.
+ * Views are published with {@link EntitySystem#publishView()} and can be read from any thread without
+ * locks while the entity system keeps changing. The components of a view are copies made with
+ * {@link Component#copy()} and must not be modified. A view shares every chunk of rows that did not
+ * change with the view published before it, so publishing costs time proportional to what changed.
+ */
+public final class WorldView {
+    /**
+     * Number of ids covered by one location page.
+     */
+    static final int PAGE_SIZE = 1024;
+
+    /**
+     * Shift to go from an id to its page.
+     */
+    static final int PAGE_SHIFT = Integer.numberOfTrailingZeros(PAGE_SIZE);
+
+    /**
+     * Number of views published before this one by the entity system.
+     */
+    private final long version;
+
+    /**
+     * Number of entities in the view.
+     */
+    private final int size;
+
+    /**
+     * How the entity system gives out ids.
+     */
+    private final EntityIdMode idMode;
+
+    /**
+     * Component type ids of the entity system when the view was published.
+     */
+    private final Map<Class, Integer> typeIds;
+
+    /**
+     * Archetypes indexed like the archetypes of the entity system.
+     */
+    private final ArchetypeView[] archetypes;
+
+    /**
+     * Location of each entity index grouped in pages, two ints per index: the archetype index plus one and
+     * the row. A null page has no entities.
+     */
+    private final int[][] pages;
+
+    /**
+     * Initializes the view.
+     * @param version number of views published before this one.
+     * @param size number of entities in the view.
+     * @param idMode how the entity system gives out ids.
+     * @param typeIds component type ids of the entity system, not modified afterwards.
+     * @param archetypes the archetypes of the view.
+     * @param pages the location pages of the view.
+     */
+    WorldView(long version, int size, EntityIdMode idMode, Map<Class, Integer> typeIds, ArchetypeView[] archetypes,
+              int[][] pages) {
+        this.version = version;
+        this.size = size;
+        this.idMode = idMode;
+        this.typeIds = typeIds;
+        this.archetypes = archetypes;
+        this.pages = pages;
+    }
+
+    /**
+     * @return the number of views published before this one, increasing with each published view.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the number of entities in the view.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Checks if an entity existed when the view was published.
+     * @param entityId the id of the entity.
+     * @return true if the entity is in the view.
+     */
+    public boolean hasEntity(long entityId) {
+        return locate(entityId) >= 0;
+    }
+
+    /**
+     * Retrieves the component an entity had when the view was published.
+     * @param entityId the id of the entity.
+     * @param componentClass the class of the component.
+     * @param <T> the type of component.
+     * @return the component, shared with other readers and not to be modified, or null if the entity had none.
+     */
+    public <T extends Component> T getComponent(long entityId, Class<T> componentClass) {
+        Integer typeId = typeIds.get(componentClass);
+        int offset = locate(entityId);
+        if (typeId == null || offset < 0) {
+            return null;
+        }
+        int[] page = pages[(int) (idMode.indexOf(entityId) >>> PAGE_SHIFT)];
+        return componentClass.cast(archetypes[page[offset] - 1].get(page[offset + 1], typeId));
+    }
+
+    /**
+     * Checks if an entity had a component when the view was published.
+     * @param entityId the id of the entity.
+     * @param componentClass the class of the component.
+     * @return true if the entity had the component.
+     */
+    public boolean hasComponent(long entityId, Class<? extends Component> componentClass) {
+        return getComponent(entityId, componentClass) != null;
+    }
+
+    /**
+     * Visits every entity of the view that matches every given query.
+     * @param visitor the visitor to call with each entity.
+     * @param queries the queries an entity must match, no queries match every entity.
+     */
+    public void forEach(ViewVisitor visitor, Query... queries) {
+        QueryMatcher matcher = matcher(Query.of(queries));
+        for (ArchetypeView archetype : archetypes) {
+            if (archetype.size == 0 || !matcher.matches(archetype.mask)) {
+                continue;
+            }
+            for (Chunk chunk : archetype.chunks) {
+                for (long id : chunk.ids) {
+                    visitor.visit(this, id);
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts the entities of the view that match every given query.
+     * @param queries the queries an entity must match, no queries match every entity.
+     * @return the number of matching entities.
+     */
+    public int count(Query... queries) {
+        QueryMatcher matcher = matcher(Query.of(queries));
+        int count = 0;
+        for (ArchetypeView archetype : archetypes) {
+            if (matcher.matches(archetype.mask)) {
+                count += archetype.size;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the archetypes of the view, used to share chunks with the next view.
+     */
+    ArchetypeView[] getArchetypes() {
+        return archetypes;
+    }
+
+    /**
+     * @return the location pages of the view, used to share pages with the next view.
+     */
+    int[][] getPages() {
+        return pages;
+    }
+
+    /**
+     * Resolves a query against the types of the view.
+     * Types the entity system did not know about get ids no archetype has.
+     * @param query the query to resolve.
+     * @return the matcher of the query.
+     */
+    private QueryMatcher matcher(Query query) {
+        int[] unknownTypeId = {typeIds.size()};
+        ComponentMask[] any = new ComponentMask[query.getAny().size()];
+        int i = 0;
+        for (Set<Class> group : query.getAny()) {
+            any[i++] = toMask(group, unknownTypeId);
+        }
+        return new QueryMatcher(toMask(query.getAll(), unknownTypeId), any,
+                toMask(query.getExclude(), unknownTypeId), null);
+    }
+
+    /**
+     * Resolves component classes to a mask.
+     * @param types the classes to resolve.
+     * @param unknownTypeId the next id to give a class the view has no id for.
+     * @return the mask of the classes.
+     */
+    private ComponentMask toMask(Set<Class> types, int[] unknownTypeId) {
+        ComponentMask mask = ComponentMask.EMPTY;
+        for (Class type : types) {
+            Integer typeId = typeIds.get(type);
+            mask = mask.with(typeId != null ? typeId : unknownTypeId[0]++);
+        }
+        return mask;
+    }
+
+    /**
+     * Finds the location of an entity in its location page.
+     * The id stored at the location is compared so a recycled id of another generation is not found.
+     * @param entityId the id.
+     * @return the offset of the location in the page of the entity or -1 if the entity is not in the view.
+     */
+    private int locate(long entityId) {
+        long index = idMode.indexOf(entityId);
+        long pageIndex = index >>> PAGE_SHIFT;
+        if (entityId < 0 || pageIndex >= pages.length || pages[(int) pageIndex] == null) {
+            return -1;
+        }
+        int[] page = pages[(int) pageIndex];
+        int offset = ((int) index & (PAGE_SIZE - 1)) << 1;
+        int archetype = page[offset] - 1;
+        if (archetype < 0) {
+            return -1;
+        }
+        int row = page[offset + 1];
+        long id = archetypes[archetype].chunks[row >>> Archetype.CHUNK_SHIFT].ids[row & (Archetype.CHUNK_SIZE - 1)];
+        return id == entityId ? offset : -1;
+    }
+
+    /**
+     * The rows of one archetype in a view.
+     */
+    static final class ArchetypeView {
+        /**
+         * Component types of the entities.
+         */
+        final ComponentMask mask;
+
+        /**
+         * Number of entities.
+         */
+        final int size;
+
+        /**
+         * Maps a type id to its index in the columns of the chunks, -1 if the entities do not have the type.
+         */
+        private final int[] columnIndex;
+
+        /**
+         * Rows grouped in chunks of {@link Archetype#CHUNK_SIZE}.
+         */
+        final Chunk[] chunks;
+
+        /**
+         * Initializes the archetype view.
+         * @param mask component types of the entities.
+         * @param size number of entities.
+         * @param columnIndex maps a type id to its column index.
+         * @param chunks the rows grouped in chunks.
+         */
+        ArchetypeView(ComponentMask mask, int size, int[] columnIndex, Chunk[] chunks) {
+            this.mask = mask;
+            this.size = size;
+            this.columnIndex = columnIndex;
+            this.chunks = chunks;
+        }
+
+        /**
+         * Retrieves a component.
+         * @param row the row of the entity.
+         * @param typeId the id of the component type.
+         * @return the component or null if the entities do not have the type.
+         */
+        Component get(int row, int typeId) {
+            int column = typeId < columnIndex.length ? columnIndex[typeId] : -1;
+            if (column < 0) {
+                return null;
+            }
+            return chunks[row >>> Archetype.CHUNK_SHIFT].columns[column][row & (Archetype.CHUNK_SIZE - 1)];
+        }
+    }
+
+    /**
+     * Copies of a chunk of rows, shared between views until one of the rows changes.
+     */
+    static final class Chunk {
+        /**
+         * Ids of the entities in the rows.
+         */
+        final long[] ids;
+
+        /**
+         * Copied components indexed by column then row within the chunk.
+         */
+        final Component[][] columns;
+
+        /**
+         * Initializes the chunk.
+         * @param ids ids of the entities in the rows.
+         * @param columns copied components indexed by column then row.
+         */
+        Chunk(long[] ids, Component[][] columns) {
+            this.ids = ids;
+            this.columns = columns;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.exploringlines.entitysystem;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Tests recording and playing back structural changes.
+ */
+public class CommandBufferTest {
+    private class TestComponent implements Component {
+        @Override
+        public Component copy() {
+            return null;
+        }
+    }
+
+    /**
+     * Entity system to play back into.
+     */
+    private EntitySystem entitySystem;
+
+    /**
+     * Buffer to test.
+     */
+    private CommandBuffer buffer;
+
+    @Before
+    public void setUp() throws Exception {
+        entitySystem = new EntitySystem();
+        buffer = new CommandBuffer(entitySystem);
+    }
+
+    @Test
+    public void testPlayback() throws Exception {
+        EntitySet set = entitySystem.getEntities(TestComponent.class);
+        Entity existing = entitySystem.createEntity();
+        entitySystem.setComponent(existing, new TestComponent());
+
+        Entity created = buffer.createEntity("Created");
+        buffer.setComponent(created, new TestComponent());
+        buffer.removeComponent(existing, TestComponent.class);
+        Entity removed = buffer.createEntity();
+        buffer.removeEntity(removed);
+        Assert.assertEquals(5, buffer.size());
+
+        // Nothing is applied until playback.
+        Assert.assertFalse(entitySystem.hasEntity(created));
+        Assert.assertTrue(set.contains(existing));
+
+        buffer.playback();
+        Assert.assertTrue(buffer.isEmpty());
+        Assert.assertSame(created, entitySystem.getEntity("Created"));
+        Assert.assertTrue(set.contains(created));
+        Assert.assertFalse(set.contains(existing));
+        Assert.assertFalse(entitySystem.hasEntity(removed));
+    }
+
+    @Test
+    public void testSetComponentOfRemovedEntityIsSkipped() throws Exception {
+        Entity entity = entitySystem.createEntity();
+        buffer.removeEntity(entity);
+        buffer.setComponent(entity, new TestComponent());
+
+        buffer.playback();
+        Assert.assertFalse(entitySystem.hasEntity(entity));
+        Assert.assertEquals(0, entitySystem.getEntities(TestComponent.class).size());
+    }
+
+    @Test
+    public void testClearReleasesReservedSlots() throws Exception {
+        EntitySystem recycled = new EntitySystem(EntityIdMode.RECYCLED);
+        CommandBuffer recycledBuffer = new CommandBuffer(recycled);
+        Entity discarded = recycledBuffer.createEntity();
+        recycledBuffer.setComponent(discarded, new TestComponent());
+        recycledBuffer.clear();
+
+        // The slot of the discarded entity is handed out again, its handle never finds the new entity.
+        Entity created = recycled.createEntity();
+        Assert.assertEquals(1, recycled.getNextId());
+        Assert.assertFalse(discarded.getId() == created.getId());
+        Assert.assertNull(recycled.getEntity(discarded.getId()));
+        Assert.assertSame(created, recycled.getEntity(created.getId()));
+    }
+
+    @Test
+    public void testLookupsWhileReservingFromThreads() throws Exception {
+        EntitySystem recycled = new EntitySystem(EntityIdMode.RECYCLED);
+        final Entity[] existing = new Entity[32];
+        for (int i = 0; i < existing.length; i++) {
+            existing[i] = recycled.createEntity();
+        }
+        final CommandBuffer recycledBuffer = new CommandBuffer(recycled);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 100000; i++) {
+                    recycledBuffer.createEntity();
+                }
+            }
+        });
+        thread.start();
+
+        // Lookups keep working while the slot table grows on the other thread.
+        while (thread.isAlive()) {
+            for (Entity entity : existing) {
+                Assert.assertSame(entity, recycled.getEntity(entity.getId()));
+            }
+        }
+        thread.join();
+        recycledBuffer.playback();
+        Assert.assertEquals(100032, recycled.getEntityCount());
+    }
+
+    @Test
+    public void testMarkChangedDuringParallelIteration() throws Exception {
+        EntitySet set = entitySystem.getEntities(TestComponent.class);
+        Entity entity = entitySystem.createEntity();
+        entitySystem.setComponent(entity, new TestComponent());
+        entitySystem.flushSetChanges();
+
+        set.parallelForEach(new EntityVisitor() {
+            @Override
+            public void visit(Entity visited) {
+                try {
+                    entitySystem.markChanged(visited, TestComponent.class);
+                    Assert.fail("Marking a change during a parallel iteration must be rejected.");
+                } catch (ConcurrentModificationException e) {
+                    synchronized (buffer) {
+                        buffer.markChanged(visited, TestComponent.class);
+                    }
+                }
+            }
+        });
+        Assert.assertTrue(set.getChangedEntities().isEmpty());
+
+        buffer.playback();
+        Assert.assertEquals(1, set.getChangedEntities().size());
+        Assert.assertSame(entity, set.getChangedEntities().get(0));
+    }
+
+    @Test
+    public void testReserveIdsFromThreads() throws Exception {
+        final CommandBuffer[] buffers = new CommandBuffer[4];
+        Thread[] threads = new Thread[buffers.length];
+        for (int i = 0; i < threads.length; i++) {
+            final CommandBuffer threadBuffer = new CommandBuffer(entitySystem);
+            buffers[i] = threadBuffer;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        threadBuffer.setComponent(threadBuffer.createEntity(), new TestComponent());
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (CommandBuffer threadBuffer : buffers) {
+            threadBuffer.playback();
+        }
+
+        // Every reserved id is unique.
+        EntitySet set = entitySystem.getEntities(TestComponent.class);
+        Assert.assertEquals(4000, set.size());
+        Set<Long> ids = new HashSet<Long>();
+        for (int i = 0; i < set.size(); i++) {
+            ids.add(set.get(i).getId());
+        }
+        Assert.assertEquals(4000, ids.size());
+    }
+}
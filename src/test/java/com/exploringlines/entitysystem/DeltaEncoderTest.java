@@ -0,0 +1,175 @@
+package com.exploringlines.entitysystem;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Tests encoding the changes of an entity system and replaying them onto another.
+ */
+public class DeltaEncoderTest {
+    /**
+     * Entity system the changes are made to.
+     */
+    private EntitySystem source;
+
+    /**
+     * Encoder of the source.
+     */
+    private DeltaEncoder encoder;
+
+    /**
+     * Every delta written, in order.
+     */
+    private ByteArrayOutputStream log;
+
+    @Before
+    public void setUp() throws Exception {
+        source = new EntitySystem();
+        encoder = new DeltaEncoder(source, WorldSnapshotTest.Unit.class, WorldSnapshotTest.Marker.class);
+        log = new ByteArrayOutputStream();
+    }
+
+    /**
+     * Encodes the changes of the tick, appends them to the log, and flushes the source.
+     * @return the delta of the tick.
+     */
+    private byte[] tick() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        encoder.encode(Channels.newChannel(bytes));
+        source.flushSetChanges();
+        log.write(bytes.toByteArray());
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Creates a unit.
+     * @param health the health of the unit.
+     * @return the unit.
+     */
+    private WorldSnapshotTest.Unit unit(double health) {
+        WorldSnapshotTest.Unit unit = new WorldSnapshotTest.Unit();
+        unit.health = health;
+        return unit;
+    }
+
+    @Test
+    public void testApplyEachTick() throws Exception {
+        EntitySystem replica = new EntitySystem();
+        DeltaApplier applier = new DeltaApplier(replica);
+
+        Entity a = source.createEntity("a");
+        Entity b = source.createEntity();
+        Entity c = source.createEntity();
+        source.setComponent(a, unit(1));
+        source.setComponent(b, unit(2));
+        source.setComponent(b, new WorldSnapshotTest.Marker());
+        source.setComponent(c, new WorldSnapshotTest.Marker());
+        Assert.assertTrue(applier.apply(Channels.newChannel(new ByteArrayInputStream(tick()))));
+        Assert.assertEquals(3, replica.getEntities().size());
+        Assert.assertEquals(a.getId(), replica.getEntity("a").getId());
+        Assert.assertEquals(2, replica.getComponent(replica.getEntity(b.getId()), WorldSnapshotTest.Unit.class).health, 0);
+        Assert.assertEquals(2, replica.getEntities(WorldSnapshotTest.Marker.class).size());
+
+        source.setComponent(a, unit(5));
+        source.removeComponent(b, WorldSnapshotTest.Marker.class);
+        source.removeEntity(c);
+        Entity shortLived = source.createEntity();
+        source.setComponent(shortLived, unit(9));
+        source.removeEntity(shortLived);
+        byte[] delta = tick();
+        applier.apply(Channels.newChannel(new ByteArrayInputStream(delta)));
+        Assert.assertEquals(5, replica.getComponent(replica.getEntity(a.getId()), WorldSnapshotTest.Unit.class).health, 0);
+        Assert.assertFalse(replica.hasComponent(replica.getEntity(b.getId()), WorldSnapshotTest.Marker.class));
+        Assert.assertNull(replica.getEntity(c.getId()));
+        Assert.assertNull(replica.getEntity(shortLived.getId()));
+        Assert.assertEquals(2, replica.getEntities().size());
+
+        // A tick without changes encodes to a few bytes.
+        Assert.assertTrue(tick().length < 32);
+
+        // Ids stay in step with the source.
+        Assert.assertEquals(source.createEntity().getId(), replica.createEntity().getId());
+    }
+
+    @Test
+    public void testEncoderSurvivesReleaseIdleSets() throws Exception {
+        EntitySystem replica = new EntitySystem();
+        DeltaApplier applier = new DeltaApplier(replica);
+        tick();
+        tick();
+        Assert.assertEquals(0, source.releaseIdleSets(0));
+
+        Entity entity = source.createEntity();
+        source.setComponent(entity, unit(4));
+        applier.apply(Channels.newChannel(new ByteArrayInputStream(tick())));
+        Assert.assertEquals(4, replica.getComponent(replica.getEntity(entity.getId()), WorldSnapshotTest.Unit.class)
+                .health, 0);
+
+        // Closed encoders no longer keep their sets.
+        encoder.close();
+        Assert.assertEquals(3, source.releaseIdleSets(0));
+    }
+
+    @Test
+    public void testReplayLog() throws Exception {
+        Entity entity = source.createEntity();
+        source.setComponent(entity, unit(1));
+        tick();
+        source.setComponent(entity, unit(2));
+        tick();
+        source.removeComponent(entity, WorldSnapshotTest.Unit.class);
+        source.setComponent(entity, new WorldSnapshotTest.Marker());
+        tick();
+
+        EntitySystem replica = new EntitySystem();
+        DeltaApplier applier = new DeltaApplier(replica);
+        ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(log.toByteArray()));
+        int applied = 0;
+        while (applier.apply(channel)) {
+            applied++;
+        }
+        Assert.assertEquals(3, applied);
+        Entity replicated = replica.getEntity(entity.getId());
+        Assert.assertFalse(replica.hasComponent(replicated, WorldSnapshotTest.Unit.class));
+        Assert.assertTrue(replica.hasComponent(replicated, WorldSnapshotTest.Marker.class));
+    }
+
+    @Test
+    public void testRejectsNonBlockingChannels() throws Exception {
+        Pipe pipe = Pipe.open();
+        try {
+            pipe.source().configureBlocking(false);
+            new DeltaApplier(new EntitySystem()).apply(pipe.source());
+            Assert.fail("Reading a non-blocking channel would spin.");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        } finally {
+            pipe.source().close();
+            pipe.sink().close();
+        }
+    }
+
+    @Test
+    public void testApplyOntoSnapshot() throws Exception {
+        Entity entity = source.createEntity();
+        source.setComponent(entity, unit(1));
+        tick();
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        WorldSnapshot.write(source, Channels.newChannel(snapshot));
+
+        source.setComponent(entity, unit(3));
+        byte[] delta = tick();
+
+        EntitySystem replica = new EntitySystem();
+        WorldSnapshot.read(replica, Channels.newChannel(new ByteArrayInputStream(snapshot.toByteArray())));
+        new DeltaApplier(replica).apply(Channels.newChannel(new ByteArrayInputStream(delta)));
+        Assert.assertEquals(3, replica.getComponent(replica.getEntity(entity.getId()), WorldSnapshotTest.Unit.class).health, 0);
+    }
+}
@@ -6,6 +6,12 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ConcurrentModificationException;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.StreamSupport;
+
 /**
  * Created with IntelliJ IDEA.
  * User: MW
@@ -65,4 +71,97 @@ public class EntitySetTest {
         entitySet.clear();
         Assert.assertEquals(0, entitySet.getEntities().size());
     }
+
+    @Test
+    public void testIterateWithoutIterator() throws Exception {
+        Assert.assertEquals(2, entitySet.size());
+        final long[] idSum = new long[1];
+        entitySet.forEach(new EntityVisitor() {
+            @Override
+            public void visit(Entity visited) {
+                idSum[0] += visited.getId();
+                entitySet.removeEntity(visited);
+            }
+        });
+        Assert.assertEquals(15, idSum[0]);
+        Assert.assertEquals(0, entitySet.size());
+    }
+
+    @Test
+    public void testSwapRemove() throws Exception {
+        for (int i = 100; i < 10100; i++) {
+            entitySet.addEntity(new Entity(i));
+        }
+        Assert.assertEquals(10002, entitySet.size());
+        entitySet.removeEntity(entitySet.get(0));
+        entitySet.removeEntity(entity);
+        Assert.assertEquals(10000, entitySet.size());
+        Assert.assertFalse(entitySet.contains(entity));
+        for (int i = 0; i < entitySet.size(); i++) {
+            Assert.assertTrue(entitySet.contains(entitySet.get(i)));
+            Assert.assertTrue(entitySet.get(i).getId() >= 100);
+        }
+    }
+
+    @Test
+    public void testChangeTracking() throws Exception {
+        // Entities added since the flush are not tracked as changed.
+        entitySet.addChangedEntity(entity);
+        Assert.assertEquals(0, entitySet.getChangedEntities().size());
+        Assert.assertEquals(2, entitySet.getAddedEntities().size());
+
+        entitySet.flushChanges();
+        for (int i = 0; i < 60; i++) {
+            entitySet.addChangedEntity(entity);
+        }
+        entitySet.removeEntity(entity);
+        entitySet.removeEntity(entity);
+        Assert.assertEquals(0, entitySet.getAddedEntities().size());
+        Assert.assertEquals(1, entitySet.getChangedEntities().size());
+        Assert.assertEquals(1, entitySet.getRemovedEntities().size());
+
+        entitySet.flushChanges();
+        Assert.assertEquals(0, entitySet.getChangedEntities().size());
+        Assert.assertEquals(0, entitySet.getRemovedEntities().size());
+        entitySet.addChangedEntity(entitySet.get(0));
+        Assert.assertEquals(1, entitySet.getChangedEntities().size());
+    }
+
+    @Test
+    public void testParallelForEach() throws Exception {
+        for (int i = 100; i < 10100; i++) {
+            entitySet.addEntity(new Entity(i));
+        }
+        final AtomicLong idSum = new AtomicLong();
+        entitySet.parallelForEach(new EntityVisitor() {
+            @Override
+            public void visit(Entity visited) {
+                idSum.addAndGet(visited.getId());
+            }
+        }, 100, ForkJoinPool.commonPool());
+        Assert.assertEquals(15 + (100L + 10099L) * 10000L / 2, idSum.get());
+    }
+
+    @Test(expected = ConcurrentModificationException.class)
+    public void testParallelForEachRejectsChanges() throws Exception {
+        entitySet.parallelForEach(new EntityVisitor() {
+            @Override
+            public void visit(Entity visited) {
+                entitySet.addEntity(new Entity(visited.getId() + 1000));
+            }
+        });
+    }
+
+    @Test
+    public void testSpliterator() throws Exception {
+        for (int i = 100; i < 10100; i++) {
+            entitySet.addEntity(new Entity(i));
+        }
+        Spliterator<Entity> spliterator = entitySet.spliterator(1000);
+        Assert.assertTrue(spliterator.hasCharacteristics(Spliterator.SUBSIZED));
+        Spliterator<Entity> prefix = spliterator.trySplit();
+        Assert.assertEquals(10002, prefix.estimateSize() + spliterator.estimateSize());
+        Assert.assertEquals(10002, StreamSupport.stream(entitySet.spliterator(16), true).count());
+        Assert.assertNull(entitySet.spliterator(10002).trySplit());
+    }
 }
@@ -8,7 +8,10 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.List;
 
 /**
  * Created with IntelliJ IDEA.
@@ -29,12 +32,32 @@ public class EntitySystemTest {
     private class TestComponent2 implements Component {
         public int something = 50;
 
+        @Override
+        public Component copy() {
+            TestComponent2 copy = new TestComponent2();
+            copy.something = something;
+            return copy;
+        }
+    }
+
+    private class TestComponent3 implements Component {
         @Override
         public Component copy() {
             return null;
         }
     }
 
+    private static class PooledComponent implements Component {
+        public int value;
+
+        @Override
+        public Component copy() {
+            PooledComponent copy = new PooledComponent();
+            copy.value = value;
+            return copy;
+        }
+    }
+
     /**
      * Entity system to test with.
      */
@@ -76,6 +99,27 @@ public class EntitySystemTest {
         Assert.assertNull(entitySystem.getEntity("None"));
     }
 
+    @Test
+    public void testGetEntityAfterRemoval() throws Exception {
+        Entity first = entitySystem.getEntity("Test");
+        Entity second = entitySystem.createEntity("Test");
+        Entity third = entitySystem.createEntity("Test");
+        Assert.assertSame(first, entitySystem.getEntity("Test"));
+        Assert.assertSame(second, entitySystem.getEntity(second.getId()));
+        Assert.assertTrue(entitySystem.hasEntity(second));
+
+        // The next earliest entity with the name takes over.
+        entitySystem.removeEntity(first);
+        Assert.assertSame(second, entitySystem.getEntity("Test"));
+        entitySystem.removeEntity(third);
+        Assert.assertSame(second, entitySystem.getEntity("Test"));
+        entitySystem.removeEntity(second);
+        Assert.assertNull(entitySystem.getEntity("Test"));
+        Assert.assertNull(entitySystem.getEntity(second.getId()));
+        Assert.assertFalse(entitySystem.hasEntity(second));
+        Assert.assertFalse(entitySystem.hasEntity(new Entity(0)));
+    }
+
     @Test
     public void testRemoveEntity() throws Exception {
         // Test for the removal list.
@@ -121,12 +165,17 @@ public class EntitySystemTest {
         Assert.assertEquals(1, set.getAddedEntities().size());
         Assert.assertEquals(0, set.getChangedEntities().size());
 
-        // Test the changed list.
+        // Newly added entities are not in the changed list.
+        entitySystem.setComponent(entitySystem.getEntity("Test"), new TestComponent2());
+        Assert.assertEquals(0, set.getChangedEntities().size());
+        set.flushChanges();
+
+        // Test the changed list, an entity is only in it once per flush.
         entitySystem.setComponent(entitySystem.getEntity("Test"), new TestComponent2());
         entitySystem.setComponent(entitySystem.getEntity("Test"), new TestComponent2());
         Assert.assertEquals(0, set.getRemovedEntities().size());
-        Assert.assertEquals(1, set.getAddedEntities().size());
-        Assert.assertEquals(2, set.getChangedEntities().size());
+        Assert.assertEquals(0, set.getAddedEntities().size());
+        Assert.assertEquals(1, set.getChangedEntities().size());
     }
 
     @Test
@@ -151,6 +200,42 @@ public class EntitySystemTest {
         Assert.assertEquals(0, set.getChangedEntities().size());
     }
 
+    @Test
+    public void testForeignEntitiesAreNotTouched() throws Exception {
+        EntitySystem other = new EntitySystem();
+        Entity foreign = other.createEntity();
+        other.setComponent(foreign, new TestComponent());
+        EntitySet otherSet = other.getEntities(TestComponent.class);
+
+        // Removals of entities the system does not hold are ignored and leave the owner alone.
+        entitySystem.removeComponent(foreign, TestComponent.class);
+        entitySystem.removeEntity(foreign);
+        Assert.assertTrue(other.hasEntity(foreign));
+        Assert.assertNotNull(other.getComponent(foreign, TestComponent.class));
+        Assert.assertTrue(otherSet.contains(foreign));
+
+        // Setting components is rejected for foreign, never added and removed entities.
+        Entity removed = entitySystem.createEntity();
+        entitySystem.removeEntity(removed);
+        for (Entity entity : new Entity[] {foreign, new Entity(1000L), removed}) {
+            try {
+                entitySystem.setComponent(entity, new TestComponent2());
+                Assert.fail();
+            } catch (IllegalArgumentException expected) {
+                // Expected.
+            }
+        }
+        try {
+            entitySystem.setComponents(new Entity[] {entitySystem.getEntity("Test"), foreign}, TestComponent2.class,
+                    new TestComponent2[] {new TestComponent2(), new TestComponent2()});
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+            // Expected, nothing of the batch is set.
+        }
+        Assert.assertNull(entitySystem.getComponent(entitySystem.getEntity("Test"), TestComponent2.class));
+        Assert.assertEquals(0, entitySystem.getEntities(TestComponent2.class).size());
+    }
+
     @Test
     public void testGetEntities() throws Exception {
         EntitySet set = entitySystem.getEntities(TestComponent.class);
@@ -159,6 +244,69 @@ public class EntitySystemTest {
         Assert.assertFalse(set.contains(entitySystem.getEntity("Test")));
     }
 
+    @Test
+    public void testGetEntitiesWithQuery() throws Exception {
+        Entity entity = entitySystem.getEntity("Test");
+        EntitySet set = entitySystem.getEntities(Query.all(TestComponent.class), Query.exclude(TestComponent3.class));
+        Assert.assertSame(set, entitySystem.getEntities(Query.exclude(TestComponent3.class), Query.all(TestComponent.class)));
+        Assert.assertTrue(set.contains(entity));
+        set.flushChanges();
+
+        // Only types in the query mark the entity as changed.
+        entitySystem.setComponent(entity, new TestComponent());
+        entitySystem.setComponent(entity, new TestComponent2());
+        Assert.assertEquals(1, set.getChangedEntities().size());
+        Assert.assertEquals(0, set.getAddedEntities().size());
+
+        // Excluded types remove the entity.
+        entitySystem.setComponent(entity, new TestComponent3());
+        Assert.assertFalse(set.contains(entity));
+        Assert.assertEquals(1, set.getRemovedEntities().size());
+        entitySystem.removeComponent(entity, TestComponent3.class);
+        Assert.assertTrue(set.contains(entity));
+        Assert.assertEquals(1, set.getAddedEntities().size());
+    }
+
+    @Test
+    public void testGetEntitiesWithAnyQuery() throws Exception {
+        EntitySet set = entitySystem.getEntities(Query.any(TestComponent2.class, TestComponent3.class));
+        Assert.assertEquals(0, set.getEntities().size());
+        Entity entity = entitySystem.createEntity();
+        entitySystem.setComponent(entity, new TestComponent3());
+        entitySystem.setComponent(entity, new TestComponent2());
+        Assert.assertTrue(set.contains(entity));
+        entitySystem.removeComponent(entity, TestComponent3.class);
+        Assert.assertTrue(set.contains(entity));
+        entitySystem.removeEntity(entity);
+        Assert.assertFalse(set.contains(entity));
+
+        // A query without types holds every entity.
+        EntitySet everything = entitySystem.getEntities();
+        Assert.assertEquals(2, everything.getEntities().size());
+        entitySystem.createEntity();
+        Assert.assertEquals(3, everything.getEntities().size());
+    }
+
+    @Test
+    public void testStructuralChangesRejectedDuringParallelIteration() throws Exception {
+        final Entity entity = entitySystem.getEntity("Test");
+        final boolean[] rejected = new boolean[1];
+        entitySystem.getEntities(TestComponent.class).parallelForEach(new EntityVisitor() {
+            @Override
+            public void visit(Entity visited) {
+                try {
+                    entitySystem.setComponent(visited, new TestComponent2());
+                } catch (ConcurrentModificationException e) {
+                    rejected[0] = true;
+                }
+            }
+        });
+        Assert.assertTrue(rejected[0]);
+        Assert.assertFalse(entitySystem.hasComponent(entity, TestComponent2.class));
+        entitySystem.setComponent(entity, new TestComponent2());
+        Assert.assertTrue(entitySystem.hasComponent(entity, TestComponent2.class));
+    }
+
     @Test
     public void testGetComponentsOfType() throws Exception {
         Collection<TestComponent> components = entitySystem.getComponentsOfType(TestComponent.class);
@@ -166,4 +314,388 @@ public class EntitySystemTest {
         Collection<TestComponent2> components2 = entitySystem.getComponentsOfType(TestComponent2.class);
         Assert.assertEquals(0, components2.size());
     }
+
+    @Test
+    public void testGetComponentsOfTypeOnlyHoldsType() throws Exception {
+        Entity entity = entitySystem.getEntity("Test");
+        Collection<TestComponent2> components = entitySystem.getComponentsOfType(TestComponent2.class);
+        TestComponent2 component = entitySystem.setComponent(entity, new TestComponent2());
+        entitySystem.setComponent(entitySystem.createEntity(), new TestComponent2());
+
+        // The view is live and holds no components of the other types on the entities.
+        Assert.assertEquals(2, components.size());
+        for (Object other : components) {
+            Assert.assertTrue(other instanceof TestComponent2);
+        }
+        Assert.assertTrue(components.contains(component));
+        entitySystem.removeComponent(entity, TestComponent2.class);
+        Assert.assertEquals(1, components.size());
+        Assert.assertFalse(components.contains(component));
+        Assert.assertSame(components, entitySystem.getComponentsOfType(TestComponent2.class));
+    }
+
+    @Test
+    public void testRecycledIds() throws Exception {
+        EntitySystem recycled = new EntitySystem(EntityIdMode.RECYCLED);
+        EntitySet set = recycled.getEntities(TestComponent2.class);
+        Entity first = recycled.createEntity();
+        Entity second = recycled.createEntity("second");
+        recycled.setComponent(first, new TestComponent2());
+        recycled.setComponent(second, new TestComponent2());
+        Assert.assertEquals(0, EntityIdMode.getSlot(first.getId()));
+        Assert.assertEquals(1, EntityIdMode.getSlot(second.getId()));
+
+        // The slot is held back until the change lists are flushed.
+        recycled.removeEntity(first);
+        Entity third = recycled.createEntity();
+        Assert.assertEquals(2, EntityIdMode.getSlot(third.getId()));
+        Assert.assertTrue(set.getRemovedEntities().contains(first));
+        recycled.flushSetChanges();
+
+        Entity reused = recycled.createEntity();
+        recycled.setComponent(reused, new TestComponent2());
+        Assert.assertEquals(0, EntityIdMode.getSlot(reused.getId()));
+        Assert.assertEquals(1, EntityIdMode.getGeneration(reused.getId()));
+        Assert.assertNull(recycled.getEntity(first.getId()));
+        Assert.assertFalse(recycled.hasEntity(first));
+        Assert.assertSame(reused, recycled.getEntity(reused.getId()));
+        Assert.assertTrue(set.contains(reused));
+        Assert.assertFalse(set.contains(first));
+        Assert.assertEquals(2, set.size());
+        Assert.assertSame(second, recycled.getEntity("second"));
+    }
+
+    @Test
+    public void testComponentsMoveWithEntity() throws Exception {
+        Entity entity = entitySystem.getEntity("Test");
+        Entity other = entitySystem.createEntity();
+        TestComponent component = entitySystem.getComponent(entity, TestComponent.class);
+        entitySystem.setComponent(other, new TestComponent());
+
+        // Adding and removing types moves the entities between archetypes.
+        TestComponent2 component2 = entitySystem.setComponent(entity, new TestComponent2());
+        Assert.assertSame(component, entitySystem.getComponent(entity, TestComponent.class));
+        Assert.assertSame(component2, entitySystem.getComponent(entity, TestComponent2.class));
+        entitySystem.removeComponent(entity, TestComponent.class);
+        Assert.assertNull(entitySystem.getComponent(entity, TestComponent.class));
+        Assert.assertSame(component2, entitySystem.getComponent(entity, TestComponent2.class));
+        Assert.assertNotNull(entitySystem.getComponent(other, TestComponent.class));
+        Assert.assertEquals(1, entitySystem.getComponentsOfType(TestComponent.class).size());
+    }
+
+    @Test
+    public void testCreateEntitiesFromTemplate() throws Exception {
+        EntitySet set = entitySystem.getEntities(TestComponent2.class);
+        TestComponent2 prototype = new TestComponent2();
+        prototype.something = 7;
+        Entity[] entities = entitySystem.createEntities(3, new EntityTemplate(prototype));
+
+        // Each entity gets its own copy and the ids are taken as one range.
+        Assert.assertEquals(3, set.size());
+        Assert.assertEquals(3, set.getAddedEntities().size());
+        for (int i = 0; i < entities.length; i++) {
+            TestComponent2 component = entitySystem.getComponent(entities[i], TestComponent2.class);
+            Assert.assertNotSame(prototype, component);
+            Assert.assertEquals(7, component.something);
+            Assert.assertEquals(entities[0].getId() + i, entities[i].getId());
+            Assert.assertTrue(entitySystem.hasEntity(entities[i]));
+        }
+        Assert.assertNotSame(entitySystem.getComponent(entities[0], TestComponent2.class),
+                entitySystem.getComponent(entities[1], TestComponent2.class));
+    }
+
+    @Test
+    public void testTemplateWithoutRealCopiesIsRejected() throws Exception {
+        EntitySet set = entitySystem.getEntities(TestComponent2.class);
+        int count = entitySystem.getEntityCount();
+        try {
+            entitySystem.createEntities(2, new EntityTemplate(new TestComponent2(), new TestComponent()));
+            Assert.fail("A component copying to null must be rejected.");
+        } catch (IllegalArgumentException e) {
+            Assert.assertEquals(count, entitySystem.getEntityCount());
+            Assert.assertEquals(0, set.size());
+        }
+    }
+
+    @Test
+    public void testSetComponents() throws Exception {
+        EntitySet set = entitySystem.getEntities(Query.all(TestComponent.class, TestComponent2.class));
+        Entity entity = entitySystem.getEntity("Test");
+        Entity other = entitySystem.createEntity();
+        TestComponent2[] components = {new TestComponent2(), new TestComponent2()};
+        entitySystem.setComponents(new Entity[]{entity, other}, TestComponent2.class, components);
+
+        Assert.assertSame(components[0], entitySystem.getComponent(entity, TestComponent2.class));
+        Assert.assertSame(components[1], entitySystem.getComponent(other, TestComponent2.class));
+        Assert.assertTrue(set.contains(entity));
+        Assert.assertFalse(set.contains(other));
+    }
+
+    @Test
+    public void testListenersGetCoalescedBatches() throws Exception {
+        final List<String> events = new ArrayList<String>();
+        entitySystem.addListener(TestComponent2.class, new EntitySetListener() {
+            @Override
+            public void entitiesAdded(EntitySet set, List<Entity> entities) {
+                events.add("added " + entities.size());
+            }
+
+            @Override
+            public void entitiesChanged(EntitySet set, List<Entity> entities) {
+                events.add("changed " + entities.size());
+            }
+
+            @Override
+            public void entitiesRemoved(EntitySet set, List<Entity> entities) {
+                for (Entity entity : entities) {
+                    // Components of removed entities can still be read during the dispatch.
+                    Assert.assertNotNull(entitySystem.getComponent(entity, TestComponent2.class));
+                }
+                events.add("removed " + entities.size());
+            }
+        });
+        Entity entity = entitySystem.getEntity("Test");
+        Entity other = entitySystem.createEntity();
+        Entity shortLived = entitySystem.createEntity();
+        entitySystem.setComponent(entity, new TestComponent2());
+        entitySystem.setComponent(entity, new TestComponent2());
+        entitySystem.setComponent(other, new TestComponent2());
+        entitySystem.setComponent(shortLived, new TestComponent2());
+        entitySystem.removeEntity(shortLived);
+        Assert.assertTrue(events.isEmpty());
+        entitySystem.flushSetChanges();
+        Assert.assertEquals("[added 2]", events.toString());
+
+        events.clear();
+        entitySystem.setComponent(entity, new TestComponent2());
+        entitySystem.removeEntity(other);
+        entitySystem.flushSetChanges();
+        Assert.assertEquals("[changed 1, removed 1]", events.toString());
+
+        events.clear();
+        entitySystem.flushSetChanges();
+        Assert.assertTrue(events.isEmpty());
+
+        // Joining, leaving and joining again is a first join, leaving and joining again is a change.
+        Entity rejoined = entitySystem.createEntity();
+        entitySystem.setComponent(rejoined, new TestComponent2());
+        entitySystem.removeComponent(rejoined, TestComponent2.class);
+        entitySystem.setComponent(rejoined, new TestComponent2());
+        entitySystem.flushSetChanges();
+        Assert.assertEquals("[added 1]", events.toString());
+
+        events.clear();
+        entitySystem.removeComponent(rejoined, TestComponent2.class);
+        entitySystem.setComponent(rejoined, new TestComponent2());
+        entitySystem.flushSetChanges();
+        Assert.assertEquals("[changed 1]", events.toString());
+    }
+
+    @Test
+    public void testListenerAddedBetweenFlushes() throws Exception {
+        EntitySet set = entitySystem.getEntities(TestComponent2.class);
+        Entity joined = entitySystem.createEntity();
+        entitySystem.setComponent(joined, new TestComponent2());
+        Entity member = entitySystem.getEntity("Test");
+        entitySystem.setComponent(member, new TestComponent2());
+        entitySystem.flushSetChanges();
+        entitySystem.setComponent(member, new TestComponent2());
+        Entity late = entitySystem.createEntity();
+        entitySystem.setComponent(late, new TestComponent2());
+
+        // Joins before the first listener was added are still reported as joins.
+        final List<String> events = new ArrayList<String>();
+        EntitySetListener listener = new EntitySetListener() {
+            @Override
+            public void entitiesAdded(EntitySet set, List<Entity> entities) {
+                events.add("added " + entities);
+            }
+
+            @Override
+            public void entitiesChanged(EntitySet set, List<Entity> entities) {
+                events.add("changed " + entities);
+            }
+
+            @Override
+            public void entitiesRemoved(EntitySet set, List<Entity> entities) {
+                events.add("removed " + entities);
+            }
+        };
+        set.addListener(listener);
+        entitySystem.flushSetChanges();
+        Assert.assertEquals("[added [" + late + "], changed [" + member + "]]", events.toString());
+
+        // Without listeners no dispatch happens, a new listener starts from the current changes.
+        Assert.assertTrue(set.removeListener(listener));
+        events.clear();
+        entitySystem.removeEntity(joined);
+        entitySystem.flushSetChanges();
+        Assert.assertTrue(events.isEmpty());
+        set.addListener(listener);
+        entitySystem.removeEntity(late);
+        entitySystem.flushSetChanges();
+        Assert.assertEquals("[removed [" + late + "]]", events.toString());
+    }
+
+    @Test(expected = ConcurrentModificationException.class)
+    public void testListenersCannotChangeStructure() throws Exception {
+        entitySystem.addListener(Query.all(TestComponent.class), new EntitySetListener() {
+            @Override
+            public void entitiesAdded(EntitySet set, List<Entity> entities) {
+                entitySystem.createEntity();
+            }
+
+            @Override
+            public void entitiesChanged(EntitySet set, List<Entity> entities) {
+            }
+
+            @Override
+            public void entitiesRemoved(EntitySet set, List<Entity> entities) {
+            }
+        });
+        entitySystem.setComponent(entitySystem.createEntity(), new TestComponent());
+        entitySystem.flushSetChanges();
+    }
+
+    @Test
+    public void testGetEntitiesUsesTypeIndex() throws Exception {
+        Entity entity = entitySystem.getEntity("Test");
+        entitySystem.setComponent(entity, new TestComponent2());
+        Entity other = entitySystem.createEntity();
+        entitySystem.setComponent(other, new TestComponent2());
+        entitySystem.setComponent(other, new TestComponent3());
+
+        EntitySet set = entitySystem.getEntities(Query.all(TestComponent2.class).and(Query.exclude(TestComponent3.class)));
+        Assert.assertEquals(1, set.size());
+        Assert.assertTrue(set.contains(entity));
+        Assert.assertEquals(2, entitySystem.getEntities(Query.exclude(TestComponent3.class)).size());
+    }
+
+    @Test
+    public void testReleaseEntities() throws Exception {
+        Query query = Query.all(TestComponent.class);
+        EntitySet set = entitySystem.getEntities(query);
+        Assert.assertTrue(entitySystem.releaseEntities(query));
+        Assert.assertFalse(entitySystem.releaseEntities(query));
+        Assert.assertTrue(set.isReleased());
+
+        // The released set is no longer updated and a new query builds a new set.
+        entitySystem.setComponent(entitySystem.createEntity(), new TestComponent());
+        EntitySet rebuilt = entitySystem.getEntities(query);
+        Assert.assertNotSame(set, rebuilt);
+        Assert.assertEquals(2, rebuilt.size());
+    }
+
+    @Test
+    public void testReleaseIdleSets() throws Exception {
+        EntitySet used = entitySystem.getEntities(TestComponent.class);
+        EntitySet idle = entitySystem.getEntities(TestComponent2.class);
+        entitySystem.flushSetChanges();
+        entitySystem.getEntities(TestComponent.class);
+        entitySystem.flushSetChanges();
+        Assert.assertEquals(1, entitySystem.releaseIdleSets(2));
+        Assert.assertSame(used, entitySystem.getEntities(TestComponent.class));
+        Assert.assertNotSame(idle, entitySystem.getEntities(TestComponent2.class));
+
+        // A released set fails instead of silently going stale.
+        Assert.assertTrue(idle.isReleased());
+        try {
+            idle.size();
+            Assert.fail("A released set must not be usable.");
+        } catch (IllegalStateException e) {
+            Assert.assertFalse(used.isReleased());
+        }
+    }
+
+    @Test
+    public void testPooledComponentsAreReused() throws Exception {
+        entitySystem.setPoolCapacity(PooledComponent.class, 2);
+        Entity entity = entitySystem.getEntity("Test");
+        Entity other = entitySystem.createEntity();
+        PooledComponent first = entitySystem.setComponent(entity, entitySystem.obtain(PooledComponent.class));
+        PooledComponent second = entitySystem.setComponent(other, entitySystem.obtain(PooledComponent.class));
+        PooledComponent replacement = entitySystem.setComponent(entity, entitySystem.obtain(PooledComponent.class));
+        entitySystem.removeEntity(other);
+
+        // Components are only pooled once the set changes are flushed.
+        Assert.assertNotSame(first, entitySystem.obtain(PooledComponent.class));
+        entitySystem.flushSetChanges();
+        PooledComponent reused = entitySystem.obtain(PooledComponent.class);
+        Assert.assertTrue(reused == first || reused == second);
+        Assert.assertNotSame(replacement, reused);
+
+        entitySystem.removeComponent(entity, PooledComponent.class);
+        entitySystem.flushSetChanges();
+        Assert.assertNotNull(entitySystem.obtain(PooledComponent.class));
+        Assert.assertNotNull(entitySystem.obtain(PooledComponent.class));
+    }
+
+    @Test
+    public void testMovedComponentsAreNotPooled() throws Exception {
+        entitySystem.setPoolCapacity(PooledComponent.class, 2);
+        Entity entity = entitySystem.getEntity("Test");
+        Entity other = entitySystem.createEntity();
+        Entity removed = entitySystem.createEntity();
+        PooledComponent moved = entitySystem.setComponent(entity, entitySystem.obtain(PooledComponent.class));
+        PooledComponent inherited = entitySystem.setComponent(removed, entitySystem.obtain(PooledComponent.class));
+        entitySystem.flushSetChanges();
+
+        // Components let go of and set again within one flush stay attached.
+        entitySystem.removeComponent(entity, PooledComponent.class);
+        entitySystem.setComponent(other, moved);
+        entitySystem.removeEntity(removed);
+        entitySystem.setComponent(entity, inherited);
+        entitySystem.flushSetChanges();
+        PooledComponent obtained = entitySystem.obtain(PooledComponent.class);
+        Assert.assertNotSame(moved, obtained);
+        Assert.assertNotSame(inherited, obtained);
+        Assert.assertSame(moved, entitySystem.getComponent(other, PooledComponent.class));
+    }
+
+    @Test
+    public void testMarkChanged() throws Exception {
+        EntitySet set = entitySystem.getEntities(TestComponent.class);
+        entitySystem.flushSetChanges();
+        Entity entity = entitySystem.getEntity("Test");
+        entitySystem.getComponent(entity, TestComponent.class).test = "Changed";
+        Assert.assertTrue(entitySystem.markChanged(entity, TestComponent.class));
+        Assert.assertEquals(1, set.getChangedEntities().size());
+        Assert.assertSame(entity, set.getChangedEntities().get(0));
+        Assert.assertFalse(entitySystem.markChanged(entity, TestComponent2.class));
+    }
+
+    @Test
+    public void testChangedSinceKeepsTicksAcrossFlushes() throws Exception {
+        Entity test = entitySystem.getEntity("Test");
+        Entity other = entitySystem.createEntity();
+        entitySystem.setComponent(other, new TestComponent());
+        long read = entitySystem.getChangeTick();
+        entitySystem.flushSetChanges();
+
+        final List<Entity> changed = new ArrayList<Entity>();
+        EntityVisitor collector = new EntityVisitor() {
+            @Override
+            public void visit(Entity entity) {
+                changed.add(entity);
+            }
+        };
+        Assert.assertEquals(0, entitySystem.forEachChangedSince(TestComponent.class, read, collector));
+
+        entitySystem.markChanged(test, TestComponent.class);
+        // Moving to another archetype keeps the tick of the components already set.
+        entitySystem.setComponent(other, new TestComponent2());
+        entitySystem.flushSetChanges();
+        entitySystem.flushSetChanges();
+        Assert.assertEquals(1, entitySystem.forEachChangedSince(TestComponent.class, read, collector));
+        Assert.assertSame(test, changed.get(0));
+        Assert.assertEquals(read + 1, entitySystem.getChangeTick(test, TestComponent.class));
+        Assert.assertEquals(read, entitySystem.getChangeTick(other, TestComponent.class));
+        Assert.assertEquals(-1, entitySystem.getChangeTick(test, TestComponent2.class));
+
+        changed.clear();
+        Assert.assertEquals(1, entitySystem.forEachChangedSince(TestComponent2.class, read, collector));
+        Assert.assertSame(other, changed.get(0));
+        Assert.assertEquals(0, entitySystem.forEachChangedSince(TestComponent.class,
+                entitySystem.getChangeTick(), collector));
+    }
 }
@@ -0,0 +1,158 @@
+package com.exploringlines.entitysystem;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests keeping flat components as primitive arrays.
+ */
+public class FlatComponentStoreTest {
+    @FlatComponent
+    public static class Position implements Component {
+        public float x;
+        public float y;
+        public int layer;
+        public long stamp;
+
+        @Override
+        public Component copy() {
+            Position position = new Position();
+            position.x = x;
+            position.y = y;
+            position.layer = layer;
+            position.stamp = stamp;
+            return position;
+        }
+    }
+
+    public static class NotFlat implements Component {
+        public String name;
+
+        @Override
+        public Component copy() {
+            return null;
+        }
+    }
+
+    /**
+     * Entity system to test with.
+     */
+    private EntitySystem entitySystem;
+
+    /**
+     * Store of the positions.
+     */
+    private FlatComponentStore<Position> store;
+
+    @Before
+    public void setUp() throws Exception {
+        entitySystem = new EntitySystem();
+        store = entitySystem.registerFlatComponent(Position.class);
+    }
+
+    /**
+     * Creates a position.
+     * @param x the x position.
+     * @param y the y position.
+     * @return the position.
+     */
+    private Position position(float x, float y) {
+        Position position = new Position();
+        position.x = x;
+        position.y = y;
+        position.layer = 3;
+        position.stamp = 1L << 40;
+        return position;
+    }
+
+    @Test
+    public void testSetAndGet() throws Exception {
+        EntitySet set = entitySystem.getEntities(Position.class);
+        Entity entity = entitySystem.createEntity();
+        Position position = entitySystem.setComponent(entity, position(1, 2));
+        Assert.assertTrue(set.contains(entity));
+
+        // The retrieved component is a copy of the stored data.
+        Position stored = entitySystem.getComponent(entity, Position.class);
+        Assert.assertNotSame(position, stored);
+        Assert.assertEquals(2, stored.y, 0);
+        Assert.assertEquals(3, stored.layer);
+        Assert.assertEquals(1L << 40, stored.stamp);
+
+        set.flushChanges();
+        entitySystem.setComponent(entity, position(5, 6));
+        Assert.assertEquals(1, set.getChangedEntities().size());
+        Assert.assertEquals(5, entitySystem.getComponent(entity, Position.class).x, 0);
+        Assert.assertEquals(1, entitySystem.getComponentsOfType(Position.class).size());
+    }
+
+    @Test
+    public void testFieldAccess() throws Exception {
+        Entity entity = entitySystem.createEntity();
+        entitySystem.setComponent(entity, position(1, 2));
+        int x = store.floatField("x");
+        int layer = store.intField("layer");
+        store.setFloat(entity, x, store.getFloat(entity, x) + 10);
+        store.setInt(entity, layer, 7);
+
+        Position target = new Position();
+        Assert.assertTrue(store.readInto(entity, target));
+        Assert.assertEquals(11, target.x, 0);
+        Assert.assertEquals(7, target.layer);
+        Assert.assertEquals(1L << 40, store.getLong(entity, store.longField("stamp")));
+    }
+
+    @Test
+    public void testWritesToRetrievedCopiesNeedSetComponent() throws Exception {
+        EntitySet set = entitySystem.getEntities(Position.class);
+        Entity entity = entitySystem.createEntity();
+        entitySystem.setComponent(entity, position(1, 2));
+        set.flushChanges();
+
+        // Every get creates a detached copy, writing to it changes nothing.
+        Position copy = entitySystem.getComponent(entity, Position.class);
+        Assert.assertNotSame(copy, entitySystem.getComponent(entity, Position.class));
+        copy.x = 9;
+        Assert.assertEquals(1, entitySystem.getComponent(entity, Position.class).x, 0);
+        Assert.assertEquals(0, set.getChangedEntities().size());
+
+        // Setting the copy stores the write.
+        entitySystem.setComponent(entity, copy);
+        Assert.assertEquals(9, entitySystem.getComponent(entity, Position.class).x, 0);
+        Assert.assertEquals(1, set.getChangedEntities().size());
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        Entity first = entitySystem.createEntity();
+        Entity second = entitySystem.createEntity();
+        entitySystem.setComponent(first, position(1, 1));
+        entitySystem.setComponent(second, position(2, 2));
+
+        // The data of the last entity moves into the freed index.
+        entitySystem.removeComponent(first, Position.class);
+        Assert.assertNull(entitySystem.getComponent(first, Position.class));
+        Assert.assertEquals(2, entitySystem.getComponent(second, Position.class).x, 0);
+        Assert.assertEquals(1, store.size());
+
+        // Removed entities keep their components until the flush.
+        entitySystem.removeEntity(second);
+        Assert.assertEquals(0, store.size());
+        Assert.assertEquals(2, entitySystem.getComponent(second, Position.class).x, 0);
+        entitySystem.flushSetChanges();
+        Assert.assertNull(entitySystem.getComponent(second, Position.class));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNonFlatComponents() throws Exception {
+        entitySystem.registerFlatComponent(NotFlat.class);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRejectsLateRegistration() throws Exception {
+        EntitySystem other = new EntitySystem();
+        other.setComponent(other.createEntity(), new Position());
+        other.registerFlatComponent(Position.class);
+    }
+}
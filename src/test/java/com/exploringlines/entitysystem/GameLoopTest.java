@@ -0,0 +1,112 @@
+package com.exploringlines.entitysystem;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the fixed step game loop.
+ */
+public class GameLoopTest {
+    /**
+     * Records the time per frame of each update and optionally spins for a while.
+     */
+    private class CountingSubsystem implements Subsystem {
+        final String name;
+
+        final long spinNanos;
+
+        final List<Float> updates = new ArrayList<Float>();
+
+        int cleanups = 0;
+
+        CountingSubsystem(String name, long spinNanos) {
+            this.name = name;
+            this.spinNanos = spinNanos;
+        }
+
+        @Override
+        public void update(float tpf) {
+            updates.add(tpf);
+            order.add(name);
+            long end = System.nanoTime() + spinNanos;
+            while (System.nanoTime() < end) {
+                Thread.yield();
+            }
+        }
+
+        @Override
+        public void cleanupSubsystem() {
+            cleanups++;
+        }
+
+        @Override
+        public void destroy() {
+        }
+    }
+
+    private final List<String> order = new ArrayList<String>();
+
+    private EntitySystem entitySystem;
+
+    private GameLoop loop;
+
+    @Before
+    public void setUp() throws Exception {
+        entitySystem = new EntitySystem();
+        loop = new GameLoop(entitySystem, 60);
+    }
+
+    @Test
+    public void testFixedStepWithCatchUpCap() throws Exception {
+        CountingSubsystem physics = new CountingSubsystem("physics", 0);
+        loop.addSubsystem(physics);
+        long step = TimeUnit.SECONDS.toNanos(1) / 60;
+        Assert.assertEquals(0, loop.advance(step / 2));
+        Assert.assertEquals(1, loop.advance(step / 2 + 1));
+        Assert.assertEquals(5, loop.advance(step * 20));
+        Assert.assertEquals(6, physics.updates.size());
+        Assert.assertEquals(6, physics.cleanups);
+        Assert.assertEquals(15, loop.getDroppedStepCount());
+        Assert.assertEquals(1 / 60f, physics.updates.get(0), 1e-6);
+    }
+
+    @Test
+    public void testFrequenciesAndPriorities() throws Exception {
+        CountingSubsystem ai = new CountingSubsystem("ai", 0);
+        CountingSubsystem physics = new CountingSubsystem("physics", 0);
+        loop.addSubsystem(ai, 10, GameLoop.PRIORITY_NORMAL);
+        loop.addSubsystem(physics, 60, GameLoop.PRIORITY_NORMAL + 1);
+        for (int i = 0; i < 12; i++) {
+            loop.step();
+        }
+        Assert.assertEquals(12, physics.updates.size());
+        Assert.assertEquals(2, ai.updates.size());
+        Assert.assertEquals(0.1f, ai.updates.get(1), 1e-6);
+        Assert.assertEquals("physics", order.get(0));
+        Assert.assertEquals(2, ai.cleanups);
+    }
+
+    @Test
+    public void testBudgetDefersLowPriority() throws Exception {
+        CountingSubsystem slow = new CountingSubsystem("slow", TimeUnit.MILLISECONDS.toNanos(5));
+        CountingSubsystem effects = new CountingSubsystem("effects", 0);
+        loop.addSubsystem(slow);
+        loop.addSubsystem(effects, 0, GameLoop.PRIORITY_NORMAL - 1);
+        loop.setStepBudget(1, TimeUnit.MILLISECONDS);
+
+        // Deferred once, then run with the time of both steps.
+        loop.step();
+        Assert.assertEquals(0, effects.updates.size());
+        loop.step();
+        Assert.assertEquals(1, effects.updates.size());
+        Assert.assertEquals(2 / 60f, effects.updates.get(0), 1e-6);
+        Assert.assertEquals(1, loop.getDeferralCount());
+        Assert.assertEquals(2, loop.getOverrunCount());
+        Assert.assertEquals(2, loop.getStepTimes().getCount());
+    }
+}
@@ -0,0 +1,138 @@
+package com.exploringlines.entitysystem;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+
+/**
+ * Tests the runtime metrics reported to a JMX sink.
+ */
+public class JmxMetricsSinkTest {
+    private class Position implements Component {
+        @Override
+        public Component copy() {
+            return new Position();
+        }
+    }
+
+    /**
+     * Subsystem doing nothing.
+     */
+    private class IdleSubsystem implements Subsystem {
+        @Override
+        public void update(float tpf) {
+        }
+
+        @Override
+        public void cleanupSubsystem() {
+        }
+
+        @Override
+        public void destroy() {
+        }
+    }
+
+    private EntitySystem entitySystem;
+
+    private JmxMetricsSink sink;
+
+    @Before
+    public void setUp() throws Exception {
+        entitySystem = new EntitySystem();
+        sink = new JmxMetricsSink("test");
+        entitySystem.setMetricsSink(sink);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sink.unregister();
+    }
+
+    @Test
+    public void testCountsOperations() throws Exception {
+        EntitySet set = entitySystem.getEntities(Position.class);
+        Entity entity = entitySystem.createEntity();
+        entitySystem.setComponent(entity, new Position());
+        entitySystem.createEntities(3, new EntityTemplate(new Position()));
+        entitySystem.removeComponent(entity, Position.class);
+        entitySystem.removeEntity(entity);
+        entitySystem.flushSetChanges();
+
+        Assert.assertEquals(4, sink.getEntitiesCreated());
+        Assert.assertEquals(1, sink.getEntitiesRemoved());
+        Assert.assertEquals(Long.valueOf(4), sink.getComponentsSet().get(Position.class.getName()));
+        Assert.assertEquals(Long.valueOf(1), sink.getComponentsRemoved().get(Position.class.getName()));
+        Assert.assertEquals(Integer.valueOf(set.size()), sink.getSetSizes().get(Query.all(Position.class).toString()));
+        Assert.assertEquals(1, sink.getFlushCount());
+    }
+
+    @Test
+    public void testReleasedSetsAreDropped() throws Exception {
+        entitySystem.getEntities(Position.class);
+        entitySystem.flushSetChanges();
+        String query = Query.all(Position.class).toString();
+        Assert.assertTrue(sink.getSetSizes().containsKey(query));
+        Assert.assertEquals(1, entitySystem.releaseIdleSets(0));
+        Assert.assertFalse(sink.getSetSizes().containsKey(query));
+        Assert.assertFalse(sink.getSetChurn().containsKey(query));
+    }
+
+    @Test
+    public void testTimesSubsystemsAndExposesBeans() throws Exception {
+        SubsystemScheduler scheduler = new SubsystemScheduler(entitySystem);
+        scheduler.addExclusiveSubsystem(new IdleSubsystem());
+        scheduler.update(0.016f);
+        scheduler.update(0.016f);
+        scheduler.destroy();
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        Set<ObjectName> names = server.queryNames(new ObjectName(JmxMetricsSink.DOMAIN + ":type=Subsystem,*"), null);
+        Assert.assertEquals(2, names.size());
+        for (ObjectName name : names) {
+            Assert.assertEquals(2L, server.getAttribute(name, "Count"));
+        }
+        Assert.assertEquals(2L, server.getAttribute(
+                new ObjectName(JmxMetricsSink.DOMAIN + ":type=EntitySystem,name=\"test\""), "FlushCount"));
+    }
+
+    @Test
+    public void testRemovedSubsystemsAreUnregistered() throws Exception {
+        SubsystemScheduler scheduler = new SubsystemScheduler(entitySystem);
+        IdleSubsystem removed = new IdleSubsystem();
+        scheduler.addExclusiveSubsystem(removed);
+        GameLoop loop = new GameLoop(entitySystem, 60);
+        IdleSubsystem looped = new IdleSubsystem();
+        loop.addSubsystem(looped);
+        scheduler.update(0.016f);
+        loop.step();
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName pattern = new ObjectName(JmxMetricsSink.DOMAIN + ":type=Subsystem,*");
+        Assert.assertEquals(4, server.queryNames(pattern, null).size());
+        Assert.assertTrue(scheduler.removeSubsystem(removed));
+        Assert.assertEquals(2, server.queryNames(pattern, null).size());
+        Assert.assertTrue(loop.removeSubsystem(looped));
+        Assert.assertTrue(server.queryNames(pattern, null).isEmpty());
+    }
+
+    @Test
+    public void testHistogramPercentiles() throws Exception {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        Assert.assertEquals(1000, histogram.getCount());
+        Assert.assertEquals(1000000, histogram.getMaxNanos());
+        Assert.assertEquals(500000, histogram.getMedianNanos(), 500000 / 8);
+        Assert.assertEquals(990000, histogram.get99thPercentileNanos(), 990000 / 8);
+        for (long value = 0; value < 100000; value += 37) {
+            Assert.assertTrue(Histogram.upperBound(Histogram.bucketOf(value)) >= value);
+        }
+    }
+}
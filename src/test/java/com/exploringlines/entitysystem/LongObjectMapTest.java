@@ -0,0 +1,44 @@
+package com.exploringlines.entitysystem;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the primitive keyed map used by the entity indexes.
+ */
+public class LongObjectMapTest {
+    /**
+     * Map to test with.
+     */
+    private LongObjectMap<String> map;
+
+    @Before
+    public void setUp() throws Exception {
+        map = new LongObjectMap<String>();
+    }
+
+    @Test
+    public void testPutAndGet() throws Exception {
+        Assert.assertNull(map.put(5, "five"));
+        Assert.assertEquals("five", map.put(5, "FIVE"));
+        Assert.assertEquals("FIVE", map.get(5));
+        Assert.assertNull(map.get(6));
+        Assert.assertEquals(1, map.size());
+    }
+
+    @Test
+    public void testRemoveKeepsOtherKeysReachable() throws Exception {
+        for (long i = 0; i < 1000; i++) {
+            map.put(i * 64, Long.toString(i));
+        }
+        for (long i = 0; i < 1000; i += 2) {
+            Assert.assertEquals(Long.toString(i), map.remove(i * 64));
+        }
+        Assert.assertEquals(500, map.size());
+        for (long i = 0; i < 1000; i++) {
+            Assert.assertEquals(i % 2 == 0 ? null : Long.toString(i), map.get(i * 64));
+        }
+        Assert.assertNull(map.remove(0));
+    }
+}
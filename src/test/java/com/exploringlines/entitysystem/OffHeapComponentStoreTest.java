@@ -0,0 +1,148 @@
+package com.exploringlines.entitysystem;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+
+/**
+ * Tests keeping flat components outside of the heap.
+ */
+public class OffHeapComponentStoreTest {
+    /**
+     * Creates a position.
+     * @param x the x position.
+     * @param y the y position.
+     * @return the position.
+     */
+    private FlatComponentStoreTest.Position position(float x, float y) {
+        FlatComponentStoreTest.Position position = new FlatComponentStoreTest.Position();
+        position.x = x;
+        position.y = y;
+        position.layer = 3;
+        position.stamp = 1L << 40;
+        return position;
+    }
+
+    @Test
+    public void testSetGetAndRemove() throws Exception {
+        EntitySystem entitySystem = new EntitySystem();
+        OffHeapComponentStore<FlatComponentStoreTest.Position> store = entitySystem.registerComponentStore(
+                FlatComponentStoreTest.Position.class,
+                new OffHeapComponentStore<FlatComponentStoreTest.Position>(FlatComponentStoreTest.Position.class));
+        Entity[] entities = new Entity[200];
+        for (int i = 0; i < entities.length; i++) {
+            entities[i] = entitySystem.createEntity();
+            entitySystem.setComponent(entities[i], position(i, -i));
+        }
+        Assert.assertEquals(200, store.size());
+        Assert.assertEquals(200, entitySystem.getEntities(FlatComponentStoreTest.Position.class).size());
+
+        FlatComponentStoreTest.Position stored = entitySystem.getComponent(entities[150],
+                FlatComponentStoreTest.Position.class);
+        Assert.assertEquals(150, stored.x, 0);
+        Assert.assertEquals(-150, stored.y, 0);
+        Assert.assertEquals(3, stored.layer);
+        Assert.assertEquals(1L << 40, stored.stamp);
+
+        int x = store.floatField("x");
+        store.setFloat(entities[7], x, 42);
+        Assert.assertEquals(42, store.getFloat(entities[7], x), 0);
+        Assert.assertEquals(3, store.getInt(entities[7], store.intField("layer")));
+
+        // A removed slot is reused by the next component.
+        entitySystem.removeEntity(entities[3]);
+        Assert.assertFalse(store.contains(entities[3]));
+        Assert.assertEquals(199, store.size());
+        Entity entity = entitySystem.createEntity();
+        entitySystem.setComponent(entity, position(5, 6));
+        Assert.assertEquals(6, entitySystem.getComponent(entity, FlatComponentStoreTest.Position.class).y, 0);
+        Assert.assertEquals(42, store.getFloat(entities[7], x), 0);
+        store.close();
+    }
+
+    @Test
+    public void testWritesToRetrievedCopiesNeedSetComponent() throws Exception {
+        EntitySystem entitySystem = new EntitySystem();
+        OffHeapComponentStore<FlatComponentStoreTest.Position> store = entitySystem.registerComponentStore(
+                FlatComponentStoreTest.Position.class,
+                new OffHeapComponentStore<FlatComponentStoreTest.Position>(FlatComponentStoreTest.Position.class));
+        Entity entity = entitySystem.createEntity();
+        entitySystem.setComponent(entity, position(1, 2));
+
+        // Writing to a retrieved component does not reach the buffer.
+        FlatComponentStoreTest.Position copy = entitySystem.getComponent(entity,
+                FlatComponentStoreTest.Position.class);
+        copy.y = 8;
+        Assert.assertEquals(2, store.getFloat(entity, store.floatField("y")), 0);
+
+        entitySystem.setComponent(entity, copy);
+        FlatComponentStoreTest.Position target = new FlatComponentStoreTest.Position();
+        Assert.assertTrue(store.readInto(entity, target));
+        Assert.assertEquals(8, target.y, 0);
+        store.close();
+    }
+
+    @Test
+    public void testReopenMappedFile() throws Exception {
+        File file = File.createTempFile("positions", ".store");
+        file.deleteOnExit();
+        file.delete();
+
+        EntitySystem entitySystem = new EntitySystem();
+        OffHeapComponentStore<FlatComponentStoreTest.Position> store = entitySystem.registerComponentStore(
+                FlatComponentStoreTest.Position.class,
+                OffHeapComponentStore.open(FlatComponentStoreTest.Position.class, file));
+        Entity first = entitySystem.createEntity();
+        entitySystem.createEntity();
+        Entity third = entitySystem.createEntity();
+        for (int i = 0; i < 100; i++) {
+            entitySystem.setComponent(entitySystem.createEntity(), position(i, i));
+        }
+        entitySystem.setComponent(first, position(1, 2));
+        entitySystem.setComponent(third, position(3, 4));
+        entitySystem.removeComponent(third, FlatComponentStoreTest.Position.class);
+        store.close();
+
+        // A new entity system recreates the entities from the file.
+        EntitySystem reopened = new EntitySystem();
+        store = reopened.registerComponentStore(FlatComponentStoreTest.Position.class,
+                OffHeapComponentStore.open(FlatComponentStoreTest.Position.class, file));
+        Assert.assertEquals(101, store.size());
+        Assert.assertEquals(101, reopened.getEntities(FlatComponentStoreTest.Position.class).size());
+        Entity entity = reopened.getEntity(first.getId());
+        Assert.assertNotNull(entity);
+        Assert.assertEquals(2, reopened.getComponent(entity, FlatComponentStoreTest.Position.class).y, 0);
+        Assert.assertNull(reopened.getEntity(third.getId()));
+
+        // New entities do not reuse the ids in the file.
+        Assert.assertTrue(reopened.createEntity().getId() > first.getId() + 100);
+        store.close();
+        file.delete();
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void testRejectsOtherLayout() throws Exception {
+        File file = File.createTempFile("layout", ".store");
+        file.deleteOnExit();
+        file.delete();
+        OffHeapComponentStore.open(FlatComponentStoreTest.Position.class, file).close();
+        try {
+            OffHeapComponentStore.open(Health.class, file);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @FlatComponent
+    public static class Health implements Component {
+        public int value;
+
+        @Override
+        public Component copy() {
+            Health health = new Health();
+            health.value = value;
+            return health;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.exploringlines.entitysystem;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Tests sharding a world across entity systems.
+ */
+public class ShardedWorldTest {
+    private static class Position implements Component {
+        float x;
+
+        Position(float x) {
+            this.x = x;
+        }
+
+        @Override
+        public Component copy() {
+            return new Position(x);
+        }
+    }
+
+    private static class Uncopyable implements Component {
+        @Override
+        public Component copy() {
+            return null;
+        }
+    }
+
+    /**
+     * Records the thread each step runs on.
+     */
+    private static class ThreadRecorder implements Subsystem {
+        private final List<Thread> threads = new ArrayList<Thread>();
+
+        @Override
+        public void update(float tpf) {
+            threads.add(Thread.currentThread());
+        }
+
+        @Override
+        public void cleanupSubsystem() {
+        }
+
+        @Override
+        public void destroy() {
+        }
+    }
+
+    /**
+     * Moves every position right by one unit per step.
+     */
+    private static class Mover implements Subsystem {
+        private final EntitySystem entitySystem;
+
+        Mover(EntitySystem entitySystem) {
+            this.entitySystem = entitySystem;
+        }
+
+        @Override
+        public void update(float tpf) {
+            for (Entity entity : entitySystem.getEntities(Position.class).getEntities()) {
+                Position position = entitySystem.getComponent(entity, Position.class);
+                // Replace the component so the partitioner sees the move.
+                entitySystem.setComponent(entity, new Position(position.x + 1));
+            }
+        }
+
+        @Override
+        public void cleanupSubsystem() {
+        }
+
+        @Override
+        public void destroy() {
+        }
+    }
+
+    /**
+     * Removes every entity with a position.
+     */
+    private static class Reaper implements Subsystem {
+        private final EntitySystem entitySystem;
+
+        Reaper(EntitySystem entitySystem) {
+            this.entitySystem = entitySystem;
+        }
+
+        @Override
+        public void update(float tpf) {
+            List<Entity> entities = new ArrayList<Entity>(entitySystem.getEntities(Position.class).getEntities());
+            for (Entity entity : entities) {
+                entitySystem.removeEntity(entity);
+            }
+        }
+
+        @Override
+        public void cleanupSubsystem() {
+        }
+
+        @Override
+        public void destroy() {
+        }
+    }
+
+    private ShardedWorld world;
+
+    @Before
+    public void setUp() throws Exception {
+        world = new ShardedWorld(2, 60);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        world.shutdown();
+    }
+
+    @Test
+    public void testMigrateCopiesComponents() throws Exception {
+        long handle = world.createEntity(0, "ship");
+        Position position = world.setComponent(handle, new Position(3));
+        Entity migrated = world.migrate(handle, 1);
+
+        Assert.assertEquals(1, world.getShardOf(handle));
+        Assert.assertSame(migrated, world.getEntity(handle));
+        Assert.assertEquals("ship", migrated.getName());
+        Position copied = world.getComponent(handle, Position.class);
+        Assert.assertNotSame(position, copied);
+        Assert.assertEquals(3, copied.x, 0);
+        Assert.assertEquals(handle, world.getComponent(handle, GlobalHandle.class).handle);
+        Assert.assertEquals(0, world.getShard(0).getEntities(Position.class).size());
+        Assert.assertEquals(1, world.count(Query.all(Position.class)));
+
+        Collection<Position> positions = world.getComponentsOfType(Position.class);
+        Assert.assertEquals(1, positions.size());
+        Assert.assertSame(copied, positions.iterator().next());
+        Assert.assertTrue(world.removeEntity(handle));
+        Assert.assertTrue(positions.isEmpty());
+    }
+
+    @Test
+    public void testPartitionerMigratesBetweenSteps() throws Exception {
+        world.setPartitioner(Position.class, new ShardPartitioner<Position>() {
+            @Override
+            public int shardOf(Position component, int shardCount) {
+                return component.x < 2 ? 0 : 1;
+            }
+        });
+        for (int shard = 0; shard < 2; shard++) {
+            world.getLoop(shard).addSubsystem(new Mover(world.getShard(shard)));
+        }
+        long handle = world.createEntity(0, null);
+        world.setComponent(handle, new Position(0));
+
+        world.step();
+        Assert.assertEquals(0, world.getShardOf(handle));
+        world.step();
+        Assert.assertEquals(1, world.getShardOf(handle));
+        world.step();
+        Assert.assertEquals(1, world.getShardOf(handle));
+        Assert.assertEquals(3, world.getComponent(handle, Position.class).x, 0);
+        Assert.assertEquals(1, world.count(Query.all(Position.class)));
+    }
+
+    @Test
+    public void testHandlesOfEntitiesRemovedByShardsAreDropped() throws Exception {
+        world.getLoop(0).addSubsystem(new Reaper(world.getShard(0)));
+        long handle = world.createEntity(0, null);
+        world.setComponent(handle, new Position(0));
+        long migrated = world.createEntity(1, null);
+        world.setComponent(migrated, new Position(0));
+        world.migrate(migrated, 0);
+        world.migrate(migrated, 1);
+
+        world.requestMigration(handle, 1);
+        world.step();
+        Assert.assertEquals(-1, world.getShardOf(handle));
+        Assert.assertNull(world.getEntity(handle));
+        Assert.assertEquals(1, world.getShard(1).getEntities(Query.all(Position.class)).size());
+        Assert.assertEquals(1, world.getShardOf(migrated));
+        try {
+            world.migrate(handle, 1);
+            Assert.fail("Migrating a removed entity must be rejected.");
+        } catch (IllegalArgumentException e) {
+            Assert.assertEquals(1, world.count());
+        }
+    }
+
+    @Test
+    public void testMigrationRejectsMissingCopies() throws Exception {
+        long handle = world.createEntity(0, null);
+        world.setComponent(handle, new Position(1));
+        world.setComponent(handle, new Uncopyable());
+        try {
+            world.migrate(handle, 1);
+            Assert.fail("Components without a real copy cannot migrate.");
+        } catch (IllegalArgumentException e) {
+            // The entity stays where it was and nothing is created in the target shard.
+            Assert.assertEquals(0, world.getShardOf(handle));
+            Assert.assertTrue(world.getShard(0).hasEntity(world.getEntity(handle)));
+            Assert.assertEquals(0, world.getShard(1).getEntities().size());
+        }
+    }
+
+    @Test
+    public void testShardsStepOnTheirOwnDaemonThreads() throws Exception {
+        ThreadRecorder[] recorders = new ThreadRecorder[2];
+        for (int shard = 0; shard < 2; shard++) {
+            recorders[shard] = new ThreadRecorder();
+            world.getLoop(shard).addSubsystem(recorders[shard]);
+        }
+        for (int i = 0; i < 3; i++) {
+            world.step();
+        }
+        for (int shard = 0; shard < 2; shard++) {
+            List<Thread> threads = recorders[shard].threads;
+            Assert.assertEquals(3, threads.size());
+            Assert.assertSame(threads.get(0), threads.get(1));
+            Assert.assertSame(threads.get(0), threads.get(2));
+            Assert.assertTrue(threads.get(0).isDaemon());
+            Assert.assertEquals("ShardedWorld shard " + shard, threads.get(0).getName());
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.exploringlines.entitysystem;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests the spatial grid against a scan over every entity.
+ */
+public class SpatialGridTest {
+    private static class Position implements Component {
+        float x;
+        float y;
+
+        Position(float x, float y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public Component copy() {
+            return new Position(x, y);
+        }
+    }
+
+    private static final PositionAccessor<Position> ACCESSOR = new PositionAccessor<Position>() {
+        @Override
+        public float getX(Position component) {
+            return component.x;
+        }
+
+        @Override
+        public float getY(Position component) {
+            return component.y;
+        }
+    };
+
+    private EntitySystem entitySystem;
+
+    private SpatialGrid<Position> grid;
+
+    @Before
+    public void setUp() throws Exception {
+        entitySystem = new EntitySystem();
+        entitySystem.setComponent(entitySystem.createEntity(), new Position(0, 0));
+        grid = entitySystem.getSpatialGrid(Position.class, ACCESSOR, 10);
+    }
+
+    @Test
+    public void testQueriesMatchScan() throws Exception {
+        Random random = new Random(3);
+        for (int i = 0; i < 500; i++) {
+            entitySystem.setComponent(entitySystem.createEntity(),
+                    new Position(random.nextFloat() * 200 - 100, random.nextFloat() * 200 - 100));
+        }
+        entitySystem.flushSetChanges();
+        Assert.assertEquals(501, grid.size());
+
+        long[] ids = new long[600];
+        for (int query = 0; query < 50; query++) {
+            float x = random.nextFloat() * 200 - 100;
+            float y = random.nextFloat() * 200 - 100;
+            float radius = random.nextFloat() * 30;
+            int found = grid.queryRadius(x, y, radius, ids);
+            Assert.assertArrayEquals(scan(x - radius, y - radius, x + radius, y + radius, x, y, radius),
+                    sorted(ids, found));
+            found = grid.queryBox(x, y, x + radius, y + 2 * radius, ids);
+            Assert.assertArrayEquals(scan(x, y, x + radius, y + 2 * radius, 0, 0, -1), sorted(ids, found));
+        }
+    }
+
+    @Test
+    public void testFollowsChanges() throws Exception {
+        Entity entity = entitySystem.createEntity();
+        entitySystem.setComponent(entity, new Position(50, 50));
+        long[] ids = new long[4];
+        Assert.assertEquals(0, grid.queryRadius(50, 50, 1, ids));
+        entitySystem.flushSetChanges();
+        Assert.assertEquals(1, grid.queryRadius(50, 50, 1, ids));
+        Assert.assertEquals(entity.getId(), ids[0]);
+
+        // A replaced position is picked up at the flush, one modified in place after an update.
+        entitySystem.setComponent(entity, new Position(-50, 5));
+        entitySystem.flushSetChanges();
+        Assert.assertEquals(0, grid.queryRadius(50, 50, 1, ids));
+        Assert.assertEquals(1, grid.queryRadius(-50, 5, 1, ids));
+        entitySystem.getComponent(entity, Position.class).x = 7;
+        grid.update(entity);
+        Assert.assertEquals(1, grid.queryBox(6, 4, 8, 6, ids));
+
+        entitySystem.removeEntity(entity);
+        entitySystem.flushSetChanges();
+        Assert.assertEquals(0, grid.queryRadius(7, 5, 1, ids));
+        Assert.assertEquals(1, grid.size());
+        // The set of the grid has a listener so it is never idle.
+        Assert.assertEquals(0, entitySystem.releaseIdleSets(0));
+        Assert.assertSame(grid, entitySystem.getSpatialGrid(Position.class, ACCESSOR, 10));
+    }
+
+    @Test
+    public void testEmptyCellsAreFreed() throws Exception {
+        Entity entity = entitySystem.createEntity();
+        entitySystem.setComponent(entity, new Position(5, 5));
+        entitySystem.flushSetChanges();
+        Assert.assertEquals(1, grid.getCellCount());
+        long[] ids = new long[4];
+        for (int i = 1; i <= 100; i++) {
+            entitySystem.setComponent(entity, new Position(5 + i * 10, 5));
+            entitySystem.flushSetChanges();
+        }
+        // The entity at the origin and the moving entity each hold one cell.
+        Assert.assertEquals(2, grid.getCellCount());
+        Assert.assertEquals(2, grid.queryBox(-1e6f, -1e6f, 1e6f, 1e6f, ids));
+        Assert.assertEquals(0, grid.queryRadius(55, 5, 1, ids));
+        Assert.assertEquals(1, grid.queryRadius(1005, 5, 1, ids));
+        Assert.assertEquals(entity.getId(), ids[0]);
+    }
+
+    @Test
+    public void testRangesLargerThanTheUsedCellsVisitUsedCells() throws Exception {
+        // Far apart entities span billions of cells, visiting every cell of the range would not finish.
+        Entity low = entitySystem.createEntity();
+        entitySystem.setComponent(low, new Position(-1e8f, -1e8f));
+        Entity high = entitySystem.createEntity();
+        entitySystem.setComponent(high, new Position(1e8f, 1e8f));
+        entitySystem.flushSetChanges();
+        Assert.assertEquals(3, grid.getCellCount());
+
+        long[] ids = new long[4];
+        Assert.assertEquals(3, grid.queryBox(-2e8f, -2e8f, 2e8f, 2e8f, ids));
+        Assert.assertEquals(1, grid.queryBox(-2e8f, -2e8f, -1, -1, ids));
+        Assert.assertEquals(low.getId(), ids[0]);
+        Assert.assertEquals(2, grid.queryRadius(1e8f, 1e8f, 1.5e8f, ids));
+        Assert.assertArrayEquals(scan(-1e9f, -1e9f, 1e9f, 1e9f, 1e8f, 1e8f, 1.5e8f), sorted(ids, 2));
+    }
+
+    @Test
+    public void testReleasingTheSetReleasesTheGrid() throws Exception {
+        Assert.assertTrue(entitySystem.releaseEntities(Query.all(Position.class)));
+        SpatialGrid<Position> recreated = entitySystem.getSpatialGrid(Position.class, ACCESSOR, 10);
+        Assert.assertNotSame(grid, recreated);
+        Assert.assertEquals(1, recreated.size());
+        entitySystem.setComponent(entitySystem.createEntity(), new Position(3, 3));
+        entitySystem.flushSetChanges();
+        Assert.assertEquals(2, recreated.size());
+    }
+
+    /**
+     * Finds the ids of the positions in a box and a radius by testing every entity.
+     */
+    private long[] scan(float minX, float minY, float maxX, float maxY, float x, float y, float radius) {
+        EntitySet set = entitySystem.getEntities(Position.class);
+        long[] ids = new long[set.size()];
+        int found = 0;
+        for (Entity entity : set.getEntities()) {
+            Position position = entitySystem.getComponent(entity, Position.class);
+            boolean inside = radius >= 0
+                    ? (position.x - x) * (position.x - x) + (position.y - y) * (position.y - y) <= radius * radius
+                    : position.x >= minX && position.x <= maxX && position.y >= minY && position.y <= maxY;
+            if (inside) {
+                ids[found++] = entity.getId();
+            }
+        }
+        return sorted(ids, found);
+    }
+
+    private static long[] sorted(long[] ids, int count) {
+        long[] copy = Arrays.copyOf(ids, count);
+        Arrays.sort(copy);
+        return copy;
+    }
+}
@@ -0,0 +1,222 @@
+package com.exploringlines.entitysystem;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the parallel subsystem scheduler.
+ */
+public class SubsystemSchedulerTest {
+    private class Position implements Component {
+        @Override
+        public Component copy() {
+            return null;
+        }
+    }
+
+    private class Velocity implements Component {
+        @Override
+        public Component copy() {
+            return null;
+        }
+    }
+
+    /**
+     * Records the order subsystem steps are run in.
+     */
+    private class RecordingSubsystem implements Subsystem {
+        private final String name;
+
+        RecordingSubsystem(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void update(float tpf) {
+            events.add(name + ".update");
+        }
+
+        @Override
+        public void cleanupSubsystem() {
+            events.add(name + ".cleanup");
+        }
+
+        @Override
+        public void destroy() {
+            events.add(name + ".destroy");
+        }
+    }
+
+    /**
+     * Events recorded by the subsystems.
+     */
+    private List<String> events;
+
+    /**
+     * Pool used by the scheduler.
+     */
+    private ForkJoinPool pool;
+
+    /**
+     * Entity system to flush.
+     */
+    private EntitySystem entitySystem;
+
+    /**
+     * Scheduler to test.
+     */
+    private SubsystemScheduler scheduler;
+
+    @Before
+    public void setUp() throws Exception {
+        events = Collections.synchronizedList(new ArrayList<String>());
+        pool = new ForkJoinPool(2);
+        entitySystem = new EntitySystem();
+        scheduler = new SubsystemScheduler(entitySystem, pool);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void testPhases() throws Exception {
+        scheduler.addSubsystem(new RecordingSubsystem("move"), new Class[]{Velocity.class}, new Class[]{Position.class});
+        scheduler.addSubsystem(new RecordingSubsystem("render"), new Class[]{Position.class}, new Class[0]);
+        scheduler.addSubsystem(new RecordingSubsystem("steer"), new Class[0], new Class[]{Velocity.class});
+        scheduler.addSubsystem(new RecordingSubsystem("sound"), new Class[]{Position.class}, new Class[0]);
+        scheduler.addExclusiveSubsystem(new RecordingSubsystem("spawn"));
+
+        // Readers of a written type wait for the writer, readers share a phase.
+        List<List<SubsystemScheduler.ScheduledSubsystem>> phases = scheduler.getPhases();
+        Assert.assertEquals(3, phases.size());
+        Assert.assertEquals(1, phases.get(0).size());
+        Assert.assertEquals(3, phases.get(1).size());
+        Assert.assertEquals(1, phases.get(2).size());
+
+        scheduler.update(1);
+        Assert.assertEquals("move.update", events.get(0));
+        Assert.assertEquals("spawn.update", events.get(4));
+        Assert.assertEquals("move.cleanup", events.get(5));
+        Assert.assertEquals("spawn.cleanup", events.get(9));
+    }
+
+    @Test
+    public void testParallelPhase() throws Exception {
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        Subsystem waiting = new RecordingSubsystem("waiting") {
+            @Override
+            public void update(float tpf) {
+                try {
+                    // Only passes if both subsystems run at the same time.
+                    barrier.await(5, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+                super.update(tpf);
+            }
+        };
+        Subsystem other = new RecordingSubsystem("other") {
+            @Override
+            public void update(float tpf) {
+                try {
+                    barrier.await(5, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+                super.update(tpf);
+            }
+        };
+        scheduler.addSubsystem(waiting, new Class[]{Position.class}, new Class[0]);
+        scheduler.addSubsystem(other, new Class[]{Position.class}, new Class[]{Velocity.class});
+        scheduler.update(1);
+        Assert.assertEquals(4, events.size());
+    }
+
+    @Test
+    public void testFlushAfterCleanup() throws Exception {
+        EntitySet set = entitySystem.getEntities(Position.class);
+        entitySystem.setComponent(entitySystem.createEntity(), new Position());
+        scheduler.addExclusiveSubsystem(new RecordingSubsystem("check") {
+            @Override
+            public void cleanupSubsystem() {
+                // Changes are still visible during cleanup.
+                events.add("added=" + entitySystem.getEntities(Position.class).getAddedEntities().size());
+            }
+        });
+        scheduler.update(1);
+        Assert.assertEquals("added=1", events.get(1));
+        Assert.assertEquals(0, set.getAddedEntities().size());
+
+        scheduler.destroy();
+        Assert.assertEquals("check.destroy", events.get(2));
+    }
+
+    @Test
+    public void testCommandBufferPlayback() throws Exception {
+        final EntitySet set = entitySystem.getEntities(Position.class);
+        final Subsystem spawner = new RecordingSubsystem("spawner") {
+            @Override
+            public void update(float tpf) {
+                CommandBuffer buffer = scheduler.getCommandBuffer(this);
+                buffer.setComponent(buffer.createEntity(), new Position());
+            }
+        };
+        scheduler.addSubsystem(spawner, new Class[0], new Class[]{Position.class});
+        scheduler.addSubsystem(new RecordingSubsystem("reader") {
+            @Override
+            public void update(float tpf) {
+                // The spawner phase was played back before this phase.
+                events.add("size=" + set.size());
+            }
+        }, new Class[]{Position.class}, new Class[0]);
+        scheduler.update(1);
+        Assert.assertEquals("size=1", events.get(0));
+        Assert.assertTrue(scheduler.getCommandBuffer(spawner).isEmpty());
+    }
+
+    @Test
+    public void testStructuralChangesRejectedInParallelPhase() throws Exception {
+        final Entity entity = entitySystem.createEntity();
+        Subsystem writer = new RecordingSubsystem("writer") {
+            @Override
+            public void update(float tpf) {
+                try {
+                    entitySystem.setComponent(entity, new Velocity());
+                } catch (ConcurrentModificationException e) {
+                    events.add("rejected");
+                }
+                scheduler.getCommandBuffer(this).setComponent(entity, new Velocity());
+            }
+        };
+        Subsystem reader = new RecordingSubsystem("reader") {
+            @Override
+            public void update(float tpf) {
+                try {
+                    entitySystem.getEntities(Position.class);
+                } catch (ConcurrentModificationException e) {
+                    events.add("rejected");
+                }
+            }
+        };
+        scheduler.addSubsystem(writer, new Class[0], new Class[]{Velocity.class});
+        scheduler.addSubsystem(reader, new Class[]{Position.class}, new Class[0]);
+        Assert.assertEquals(1, scheduler.getPhases().size());
+        scheduler.update(1);
+        Assert.assertEquals(2, Collections.frequency(events, "rejected"));
+        Assert.assertTrue(entitySystem.hasComponent(entity, Velocity.class));
+        // The guard is lowered once the phase is done.
+        entitySystem.setComponent(entity, new Position());
+    }
+}
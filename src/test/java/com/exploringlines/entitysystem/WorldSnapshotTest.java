@@ -0,0 +1,210 @@
+package com.exploringlines.entitysystem;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+
+/**
+ * Tests writing and restoring snapshots of an entity system.
+ */
+public class WorldSnapshotTest {
+    public enum Team {
+        RED, BLUE
+    }
+
+    public static class Unit implements Component {
+        public String label;
+        public Team team;
+        public boolean alive;
+        public double health;
+        public int[] inventory;
+        public transient Object cache = new Object();
+
+        @Override
+        public Component copy() {
+            Unit unit = new Unit();
+            unit.label = label;
+            unit.team = team;
+            unit.alive = alive;
+            unit.health = health;
+            unit.inventory = inventory == null ? null : inventory.clone();
+            return unit;
+        }
+    }
+
+    public static class Marker implements Component {
+        public char symbol;
+
+        @Override
+        public Component copy() {
+            Marker marker = new Marker();
+            marker.symbol = symbol;
+            return marker;
+        }
+    }
+
+    /**
+     * Entity system to snapshot.
+     */
+    private EntitySystem entitySystem;
+
+    @Before
+    public void setUp() throws Exception {
+        entitySystem = new EntitySystem();
+    }
+
+    /**
+     * Writes a snapshot of the entity system into memory.
+     * @return the snapshot.
+     */
+    private byte[] snapshot() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        WorldSnapshot.write(entitySystem, Channels.newChannel(bytes));
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Restores a snapshot into an entity system.
+     * @param target the entity system to restore into.
+     * @param snapshot the snapshot.
+     */
+    private void restore(EntitySystem target, byte[] snapshot) throws Exception {
+        WorldSnapshot.read(target, Channels.newChannel(new ByteArrayInputStream(snapshot)));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Entity named = entitySystem.createEntity("hero");
+        Unit unit = new Unit();
+        unit.label = "knight";
+        unit.team = Team.BLUE;
+        unit.alive = true;
+        unit.health = 12.5;
+        unit.inventory = new int[]{1, 2, 3};
+        entitySystem.setComponent(named, unit);
+        Marker marker = new Marker();
+        marker.symbol = 'k';
+        entitySystem.setComponent(named, marker);
+        Entity empty = entitySystem.createEntity();
+        for (int i = 0; i < 5000; i++) {
+            entitySystem.setComponent(entitySystem.createEntity(), new Unit());
+        }
+        Entity removed = entitySystem.createEntity();
+        entitySystem.removeEntity(removed);
+
+        EntitySystem restored = new EntitySystem();
+        restore(restored, snapshot());
+
+        Entity hero = restored.getEntity("hero");
+        Assert.assertEquals(named.getId(), hero.getId());
+        Unit restoredUnit = restored.getComponent(hero, Unit.class);
+        Assert.assertEquals("knight", restoredUnit.label);
+        Assert.assertEquals(Team.BLUE, restoredUnit.team);
+        Assert.assertTrue(restoredUnit.alive);
+        Assert.assertEquals(12.5, restoredUnit.health, 0);
+        Assert.assertArrayEquals(new int[]{1, 2, 3}, restoredUnit.inventory);
+        Assert.assertEquals('k', restored.getComponent(hero, Marker.class).symbol);
+        Assert.assertNotNull(restored.getEntity(empty.getId()));
+        Assert.assertNull(restored.getEntity(removed.getId()));
+        Assert.assertEquals(5001, restored.getEntities(Unit.class).size());
+        Assert.assertEquals(1, restored.getEntities(Query.all(Unit.class, Marker.class)).size());
+
+        // Ids of the removed entities are not reused.
+        Assert.assertTrue(restored.createEntity().getId() > removed.getId());
+    }
+
+    @Test
+    public void testRestoreFillsExistingSets() throws Exception {
+        Entity entity = entitySystem.createEntity();
+        entitySystem.setComponent(entity, new Marker());
+        byte[] snapshot = snapshot();
+
+        EntitySystem restored = new EntitySystem();
+        EntitySet set = restored.getEntities(Marker.class);
+        restore(restored, snapshot);
+        Assert.assertEquals(1, set.size());
+        Assert.assertEquals(entity.getId(), set.get(0).getId());
+        Assert.assertEquals(1, set.getAddedEntities().size());
+    }
+
+    @Test
+    public void testRestoreStampsChangeTicks() throws Exception {
+        Entity entity = entitySystem.createEntity();
+        entitySystem.setComponent(entity, new Marker());
+        byte[] snapshot = snapshot();
+
+        // Leave the ticks of a removed entity behind in the row the restored entity takes.
+        EntitySystem restored = new EntitySystem();
+        Entity stale = restored.createEntity();
+        restored.setComponent(stale, new Marker());
+        restored.removeEntity(stale);
+        restored.flushSetChanges();
+        restored.flushSetChanges();
+        long read = restored.getChangeTick() - 1;
+        restore(restored, snapshot);
+        Entity restoredEntity = restored.getEntity(entity.getId());
+        Assert.assertEquals(restored.getChangeTick(), restored.getChangeTick(restoredEntity, Marker.class));
+        Assert.assertEquals(1, restored.forEachChangedSince(Marker.class, read, new EntityVisitor() {
+            @Override
+            public void visit(Entity visited) {
+            }
+        }));
+    }
+
+    @Test
+    public void testRestoreIntoComponentStore() throws Exception {
+        entitySystem.registerFlatComponent(FlatComponentStoreTest.Position.class);
+        Entity entity = entitySystem.createEntity();
+        FlatComponentStoreTest.Position position = new FlatComponentStoreTest.Position();
+        position.x = 4;
+        entitySystem.setComponent(entity, position);
+        byte[] snapshot = snapshot();
+
+        EntitySystem restored = new EntitySystem();
+        FlatComponentStore<FlatComponentStoreTest.Position> store =
+                restored.registerFlatComponent(FlatComponentStoreTest.Position.class);
+        restore(restored, snapshot);
+        Entity restoredEntity = restored.getEntity(entity.getId());
+        Assert.assertEquals(4, store.getFloat(restoredEntity, store.floatField("x")), 0);
+    }
+
+    @Test
+    public void testRecycledIdsRoundTrip() throws Exception {
+        entitySystem = new EntitySystem(EntityIdMode.RECYCLED);
+        Entity removed = entitySystem.createEntity();
+        entitySystem.removeEntity(removed);
+        entitySystem.flushSetChanges();
+        Entity entity = entitySystem.createEntity();
+        entitySystem.setComponent(entity, new Marker());
+        entitySystem.setComponent(entitySystem.createEntity(), new Marker());
+
+        EntitySystem restored = new EntitySystem(EntityIdMode.RECYCLED);
+        restore(restored, snapshot());
+        Assert.assertEquals(1, EntityIdMode.getGeneration(entity.getId()));
+        Assert.assertNotNull(restored.getEntity(entity.getId()));
+        Assert.assertNull(restored.getEntity(removed.getId()));
+        Assert.assertEquals(2, restored.getEntities(Marker.class).size());
+
+        // New entities take slots no restored entity holds.
+        Entity created = restored.createEntity();
+        Assert.assertEquals(2, EntityIdMode.getSlot(created.getId()));
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void testRestoreRejectsOtherIdMode() throws Exception {
+        byte[] snapshot = snapshot();
+        restore(new EntitySystem(EntityIdMode.RECYCLED), snapshot);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRestoreRequiresEmptySystem() throws Exception {
+        byte[] snapshot = snapshot();
+        EntitySystem restored = new EntitySystem();
+        restored.createEntity();
+        restore(restored, snapshot);
+    }
+}
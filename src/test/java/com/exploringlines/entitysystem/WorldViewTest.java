@@ -0,0 +1,168 @@
+package com.exploringlines.entitysystem;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests publishing immutable views of an entity system.
+ */
+public class WorldViewTest {
+    public static class Position implements Component {
+        public float x;
+        public float y;
+
+        public Position() {
+        }
+
+        public Position(float x, float y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public Component copy() {
+            return new Position(x, y);
+        }
+    }
+
+    public static class Hidden implements Component {
+        @Override
+        public Component copy() {
+            return new Hidden();
+        }
+    }
+
+    /**
+     * Entity system to publish views of.
+     */
+    private EntitySystem entitySystem;
+
+    @Before
+    public void setUp() throws Exception {
+        entitySystem = new EntitySystem();
+    }
+
+    @Test
+    public void testViewIsUnaffectedByLaterChanges() throws Exception {
+        Assert.assertNull(entitySystem.getPublishedView());
+        Entity entity = entitySystem.createEntity();
+        Position position = entitySystem.setComponent(entity, new Position(1, 1));
+        WorldView view = entitySystem.publishView();
+        Assert.assertSame(view, entitySystem.getPublishedView());
+
+        // The view holds a copy.
+        Assert.assertNotSame(position, view.getComponent(entity.getId(), Position.class));
+        position.x = 5;
+        entitySystem.setComponent(entity, new Position(2, 2));
+        entitySystem.setComponent(entity, new Hidden());
+        Entity removed = entitySystem.createEntity();
+        entitySystem.removeEntity(entity);
+        Assert.assertEquals(1, view.getComponent(entity.getId(), Position.class).x, 0);
+        Assert.assertFalse(view.hasComponent(entity.getId(), Hidden.class));
+        Assert.assertFalse(view.hasEntity(removed.getId()));
+
+        WorldView next = entitySystem.publishView();
+        Assert.assertEquals(view.getVersion() + 1, next.getVersion());
+        Assert.assertFalse(next.hasEntity(entity.getId()));
+        Assert.assertTrue(next.hasEntity(removed.getId()));
+        Assert.assertTrue(view.hasEntity(entity.getId()));
+    }
+
+    @Test
+    public void testUnchangedChunksAreShared() throws Exception {
+        Entity[] entities = new Entity[2000];
+        for (int i = 0; i < entities.length; i++) {
+            entities[i] = entitySystem.createEntity();
+            entitySystem.setComponent(entities[i], new Position(i, i));
+        }
+        WorldView view = entitySystem.publishView();
+        entitySystem.setComponent(entities[1500], new Position(-1, -1));
+        WorldView next = entitySystem.publishView();
+
+        Assert.assertEquals(-1, next.getComponent(entities[1500].getId(), Position.class).x, 0);
+        Assert.assertEquals(1500, view.getComponent(entities[1500].getId(), Position.class).x, 0);
+        int shared = 0;
+        int copied = 0;
+        for (int i = 0; i < next.getArchetypes().length; i++) {
+            WorldView.Chunk[] chunks = next.getArchetypes()[i].chunks;
+            for (int chunk = 0; chunk < chunks.length; chunk++) {
+                if (chunks[chunk] == view.getArchetypes()[i].chunks[chunk]) {
+                    shared++;
+                } else {
+                    copied++;
+                }
+            }
+        }
+        Assert.assertEquals(1, copied);
+        Assert.assertTrue(shared > 1);
+        Assert.assertSame(view.getPages()[0], next.getPages()[0]);
+    }
+
+    @Test
+    public void testQueries() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            Entity entity = entitySystem.createEntity();
+            entitySystem.setComponent(entity, new Position(i, 0));
+            if (i % 2 == 0) {
+                entitySystem.setComponent(entity, new Hidden());
+            }
+        }
+        WorldView view = entitySystem.publishView();
+        Assert.assertEquals(10, view.size());
+        Assert.assertEquals(10, view.count());
+        Assert.assertEquals(5, view.count(Query.all(Position.class), Query.exclude(Hidden.class)));
+        Assert.assertEquals(0, view.count(Query.all(WorldSnapshotTest.Marker.class)));
+
+        final float[] sum = new float[1];
+        view.forEach(new ViewVisitor() {
+            @Override
+            public void visit(WorldView view, long entityId) {
+                sum[0] += view.getComponent(entityId, Position.class).x;
+            }
+        }, Query.exclude(Hidden.class));
+        Assert.assertEquals(1 + 3 + 5 + 7 + 9, sum[0], 0);
+    }
+
+    @Test
+    public void testReadersSeeConsistentViews() throws Exception {
+        final Entity[] entities = new Entity[500];
+        for (int i = 0; i < entities.length; i++) {
+            entities[i] = entitySystem.createEntity();
+            entitySystem.setComponent(entities[i], new Position(0, 0));
+        }
+        entitySystem.publishView();
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running.get()) {
+                    WorldView view = entitySystem.getPublishedView();
+                    float expected = view.getComponent(entities[0].getId(), Position.class).x;
+                    for (Entity entity : entities) {
+                        Position position = view.getComponent(entity.getId(), Position.class);
+                        if (position.x != expected || position.y != expected) {
+                            failure.set("Torn view " + view.getVersion());
+                        }
+                    }
+                }
+            }
+        });
+        reader.start();
+        for (int tick = 1; tick <= 200; tick++) {
+            for (Entity entity : entities) {
+                Position position = entitySystem.getComponent(entity, Position.class);
+                position.x = tick;
+                entitySystem.setComponent(entity, new Position(tick, tick));
+            }
+            entitySystem.publishView();
+        }
+        running.set(false);
+        reader.join();
+        Assert.assertNull(failure.get());
+    }
+}